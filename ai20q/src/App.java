@@ -1,18 +1,59 @@
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 public class App {
     private static Boolean solved = false;
+    // Usage: App [--transcripts=<directory>] [knowledge base file | domain directory]
+    // A directory holds one knowledge base per domain; a first question picks the domain.
+    // Games are only logged with --transcripts.
     public static void main(String[] args) throws Exception {
-        KnowledgeBase kb = new KnowledgeBase("animals.json");
-        Solver solver = new Solver(kb.getData());
+        String transcriptDir = null;
+        String target = null;
+        for (String arg : args) {
+            if (arg.startsWith("--transcripts=")) {
+                transcriptDir = arg.substring("--transcripts=".length());
+            } else {
+                target = arg;
+            }
+        }
+        if (target == null) target = new java.io.File("animals.kb").exists() ? "animals.kb" : "animals.json";
         Scanner sc = new Scanner(System.in);
-
-        System.out.println("Think of an animal, and I will try to guess it.");
+        TranscriptLog transcripts = transcriptDir != null ? TranscriptLog.open(transcriptDir) : null;
+        DomainRegistry domains = null;
+        KnowledgeBaseStore store;
+        Solver solver;
+        if (new java.io.File(target).isDirectory()) {
+            domains = DomainRegistry.open(target, 256L << 20);
+            System.out.println("Think of something, and I will try to guess it.");
+            String domain = route(domains.router(), sc);
+            if (domain == null) {
+                System.out.println("I don't know about anything in " + target + ".");
+                sc.close();
+                if (transcripts != null) transcripts.close();
+                return;
+            }
+            solver = domains.newSolver(domain);
+            store = domains.get(domain).store;
+        } else {
+            String base = target.substring(0, Math.max(0, target.lastIndexOf('.')));
+            store = KnowledgeBaseStore.open(target, 5, TimeUnit.SECONDS);
+            if (new java.io.File(base + ".likelihood").exists()) {
+                LikelihoodModel.install(LikelihoodModel.load(base + ".likelihood"));
+            }
+            solver = new Solver(store.snapshot());
+            if (new java.io.File(base + ".book").exists()) {
+                solver.setOpeningBook(OpeningBook.open(base + ".book"));
+            }
+            System.out.println("Think of an animal, and I will try to guess it.");
+        }
+        if (transcripts != null) solver.setTranscript(transcripts);
 
         while (!solved) {
             String step = solver.makeGuess();
             if (step == null) {
                 System.out.println("I don't have any more questions or guesses. I give up.");
+                solver.recordOutcome(false);
+                learn(store, solver, sc);
                 break;
             }
 
@@ -24,15 +65,19 @@ public class App {
                 String ans = sc.nextLine().trim().toLowerCase();
                 if (ans.startsWith("y")) {
                     System.out.println("Yay! I guessed it right.");
+                    solver.recordOutcome(true);
                     solved = true;
                 } else if (ans.startsWith("n")) {
                     if (!solver.hasMoreConcreteGuesses()) {
                         System.out.println("I couldn't guess your animal in 20 questions.");
+                        solver.recordOutcome(false);
+                        learn(store, solver, sc);
                         break;
                     }
                 } else {
                     System.out.println("Please answer 'y' or 'n'.");
                 }
+                continue;
             }
 
             if (step.startsWith("ATTR:")) {
@@ -54,10 +99,13 @@ public class App {
                 String ans = sc.nextLine().trim().toLowerCase();
                 if (ans.startsWith("y")) {
                     System.out.println("Yay! I guessed it right.");
+                    solver.recordOutcome(true);
                     solved = true;
                 } else if (ans.startsWith("n")) {
                     if (!solver.hasMoreConcreteGuesses()) {
                         System.out.println("I couldn't guess your animal from my knowledge base.");
+                        solver.recordOutcome(false);
+                        learn(store, solver, sc);
                         break;
                     }
                 } else {
@@ -70,5 +118,37 @@ public class App {
         }
 
         sc.close();
+        if (domains != null) {
+            domains.close();
+        } else {
+            store.close();
+        }
+        if (transcripts != null) transcripts.close();
+    }
+
+    // Asks "is it one of the <domain>?" until the router knows the domain
+    private static String route(DomainRegistry.Router router, Scanner sc) {
+        String domain;
+        while ((domain = router.question()) != null) {
+            System.out.println("Is it one of the " + domain + "? (y/n)");
+            String ans = sc.nextLine().trim().toLowerCase();
+            if (ans.startsWith("y")) {
+                router.answer(true);
+            } else if (ans.startsWith("n")) {
+                router.answer(false);
+            } else {
+                System.out.println("Please answer 'y' or 'n'.");
+            }
+        }
+        return router.domain();
+    }
+
+    private static void learn(KnowledgeBaseStore store, Solver solver, Scanner sc) {
+        System.out.println("What animal were you thinking of?");
+        String animal = sc.nextLine().trim();
+        if (animal.isEmpty()) return;
+        solver.recordTarget(animal);
+        store.learn(animal, solver.getUserAnswers());
+        System.out.println("Thanks! I'll remember " + animal + " next time.");
     }
 }
@@ -0,0 +1,189 @@
+import java.util.*;
+
+// Groups attributes whose columns carry the same information: identical columns (same
+// animals known true and known false), and complementary ones (true and false swapped,
+// e.g. canFly / isFlightless). Each class is represented by its lowest attribute id;
+// the others are aliases, marked negated when their column is the complement.
+//
+// Solvers score only representatives and retire the whole class when any member is
+// asked. On a sparse knowledge base, aliases also share their representative's
+// compressed sets, so a duplicate column costs no memory.
+//
+// Usage: AttributeClasses <knowledge base> [max attributes for the subsumption check]
+public final class AttributeClasses {
+    private final int[] representative;
+    private final long[] negated;
+    private final long[] aliases;
+    private final int[][] members;
+    private final int classCount;
+
+    private AttributeClasses(int[] representative, long[] negated, int[][] members, int classCount) {
+        this.representative = representative;
+        this.negated = negated;
+        this.members = members;
+        this.classCount = classCount;
+        this.aliases = new long[negated.length];
+        for (int a = 0; a < representative.length; a++) {
+            if (representative[a] != a) aliases[a >>> 6] |= 1L << a;
+        }
+    }
+
+    // Use CompiledKnowledgeBase.attributeClasses(), which computes this once per knowledge base
+    static AttributeClasses of(CompiledKnowledgeBase kb) {
+        int attributes = kb.attributeCount();
+        int[] representative = new int[attributes];
+        long[] negated = new long[CompiledKnowledgeBase.wordsFor(attributes)];
+        // Keyed by a hash that is the same for a column and its complement
+        Map<Long, List<Integer>> byHash = new HashMap<>();
+        int classCount = 0;
+
+        for (int a = 0; a < attributes; a++) {
+            long trueHash = columnHash(kb, a, true);
+            long falseHash = columnHash(kb, a, false);
+            long key = Math.min(trueHash, falseHash) * 31 + Math.max(trueHash, falseHash);
+            List<Integer> bucket = byHash.computeIfAbsent(key, k -> new ArrayList<>(1));
+
+            representative[a] = a;
+            for (int r : bucket) {
+                if (sameColumns(kb, a, r, false)) {
+                    representative[a] = r;
+                    break;
+                }
+                if (sameColumns(kb, a, r, true)) {
+                    representative[a] = r;
+                    negated[a >>> 6] |= 1L << a;
+                    break;
+                }
+            }
+            if (representative[a] == a) {
+                bucket.add(a);
+                classCount++;
+            } else {
+                kb.shareColumns(a, representative[a], (negated[a >>> 6] & (1L << a)) != 0);
+            }
+        }
+
+        int[] sizes = new int[attributes];
+        for (int a = 0; a < attributes; a++) sizes[representative[a]]++;
+        int[][] members = new int[attributes][];
+        for (int a = 0; a < attributes; a++) {
+            int r = representative[a];
+            if (members[r] == null) members[r] = new int[sizes[r]];
+            members[r][members[r].length - sizes[r]--] = a;
+        }
+        return new AttributeClasses(representative, negated, members, classCount);
+    }
+
+    private static long columnHash(CompiledKnowledgeBase kb, int attribute, boolean trueColumn) {
+        if (kb.isSparse()) {
+            return (trueColumn ? kb.trueSet(attribute) : kb.falseSet(attribute)).hashCode();
+        }
+        long h = 0xcbf29ce484222325L;
+        for (int w = 0; w < kb.wordCount(); w++) {
+            h ^= trueColumn ? kb.trueWord(attribute, w) : kb.falseWord(attribute, w);
+            h *= 0x100000001b3L;
+            h ^= h >>> 29;
+        }
+        return h;
+    }
+
+    private static boolean sameColumns(CompiledKnowledgeBase kb, int a, int b, boolean swapped) {
+        if (kb.isSparse()) {
+            return kb.trueSet(a).equals(swapped ? kb.falseSet(b) : kb.trueSet(b))
+                && kb.falseSet(a).equals(swapped ? kb.trueSet(b) : kb.falseSet(b));
+        }
+        for (int w = 0; w < kb.wordCount(); w++) {
+            if (kb.trueWord(a, w) != (swapped ? kb.falseWord(b, w) : kb.trueWord(b, w))) return false;
+            if (kb.falseWord(a, w) != (swapped ? kb.trueWord(b, w) : kb.falseWord(b, w))) return false;
+        }
+        return true;
+    }
+
+    public int representative(int attribute) {
+        return representative[attribute];
+    }
+
+    // Whether the attribute's column is the complement of its representative's
+    public boolean isNegated(int attribute) {
+        return (negated[attribute >>> 6] & (1L << attribute)) != 0;
+    }
+
+    // All attributes of the attribute's class, representative first
+    public int[] members(int attribute) {
+        return members[representative[attribute]];
+    }
+
+    public int classCount() {
+        return classCount;
+    }
+
+    public int aliasCount() {
+        return representative.length - classCount;
+    }
+
+    // Bitmask of the attributes that are not representatives; a solver starts with
+    // these retired
+    public long[] aliasMask() {
+        return aliases.clone();
+    }
+
+    // Pairs {a, b} of representatives where every animal known true for a is known true
+    // for b, and every animal known false for b is known false for a, i.e. a implies b.
+    // Quadratic in the number of classes, so this is a reporting tool, not a load step.
+    public List<int[]> implications(CompiledKnowledgeBase kb) {
+        List<int[]> out = new ArrayList<>();
+        for (int a = 0; a < representative.length; a++) {
+            if (representative[a] != a || isEmpty(kb, a)) continue;
+            for (int b = 0; b < representative.length; b++) {
+                if (b == a || representative[b] != b) continue;
+                if (implies(kb, a, b)) out.add(new int[] {a, b});
+            }
+        }
+        return out;
+    }
+
+    private static boolean isEmpty(CompiledKnowledgeBase kb, int a) {
+        for (int w = 0; w < kb.wordCount(); w++) {
+            if ((kb.trueWord(a, w) | kb.falseWord(a, w)) != 0) return false;
+        }
+        return true;
+    }
+
+    private static boolean implies(CompiledKnowledgeBase kb, int a, int b) {
+        boolean any = false;
+        for (int w = 0; w < kb.wordCount(); w++) {
+            long aTrue = kb.trueWord(a, w);
+            long bFalse = kb.falseWord(b, w);
+            if ((aTrue & ~kb.trueWord(b, w)) != 0 || (bFalse & ~kb.falseWord(a, w)) != 0) return false;
+            any |= aTrue != 0;
+        }
+        return any;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: AttributeClasses <knowledge base> [max attributes for the subsumption check]");
+            return;
+        }
+        CompiledKnowledgeBase kb = KnowledgeBase.load(args[0]);
+        AttributeClasses classes = kb.attributeClasses();
+        System.out.println(kb.attributeCount() + " attributes in " + classes.classCount() + " classes ("
+            + classes.aliasCount() + " aliases)");
+        for (int a = 0; a < kb.attributeCount(); a++) {
+            if (classes.representative(a) != a || classes.members(a).length == 1) continue;
+            StringBuilder line = new StringBuilder(kb.attributeName(a));
+            for (int m : classes.members(a)) {
+                if (m == a) continue;
+                line.append(classes.isNegated(m) ? " = not " : " = ").append(kb.attributeName(m));
+            }
+            System.out.println("  " + line);
+        }
+
+        int limit = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        if (classes.classCount() <= limit) {
+            for (int[] pair : classes.implications(kb)) {
+                System.out.println("  " + kb.attributeName(pair[0]) + " implies " + kb.attributeName(pair[1]));
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+// Per-game index of the attributes still worth scoring. For every unasked attribute it
+// keeps how many animals in the current candidate window are known true / known false
+// for it (the rest are unknown). When the window changes, only the bitset words that
+// changed are visited, and the counts move by the animals that entered or left; asked
+// attributes are retired and never looked at again. Only class representatives (see
+// AttributeClasses) are indexed, and asking any member retires its representative.
+//
+// An attribute is informative when it splits the window: some candidate has a known
+// value and not every candidate has the same one. The others score a gain of 0 (or
+// NaN), so leaving them out never changes which question is asked.
+public class AttributeIndex {
+    private final CompiledKnowledgeBase kb;
+    private final AttributeClasses classes;
+    private final int[] yes;
+    private final int[] no;
+    private final long[] window;
+    private int windowCount = 0;
+    // Words that changed in the last update, with the animals that entered / left
+    private final int[] changedWords;
+    private final long[] added;
+    private final long[] removed;
+
+    // Unasked attributes in id order
+    private final int[] live;
+    private int liveCount = 0;
+
+    private final int[] informative;
+    private int informativeCount = 0;
+
+    public AttributeIndex(CompiledKnowledgeBase kb) {
+        this.kb = kb;
+        this.yes = new int[kb.attributeCount()];
+        this.no = new int[kb.attributeCount()];
+        this.window = new long[kb.wordCount()];
+        this.changedWords = new int[kb.wordCount()];
+        this.added = new long[kb.wordCount()];
+        this.removed = new long[kb.wordCount()];
+        this.classes = kb.attributeClasses();
+        this.live = new int[classes.classCount()];
+        this.informative = new int[classes.classCount()];
+        for (int a = 0; a < kb.attributeCount(); a++) {
+            if (classes.representative(a) == a) live[liveCount++] = a;
+        }
+    }
+
+    // Moves the counts to the new candidate window and rebuilds the informative list
+    public void update(long[] candidates, int candidateCount) {
+        int changed = 0;
+        for (int w = 0; w < window.length; w++) {
+            if (window[w] == candidates[w]) continue;
+            changedWords[changed] = w;
+            added[changed] = candidates[w] & ~window[w];
+            removed[changed] = window[w] & ~candidates[w];
+            changed++;
+            window[w] = candidates[w];
+        }
+        windowCount = candidateCount;
+
+        informativeCount = 0;
+        for (int i = 0; i < liveCount; i++) {
+            int a = live[i];
+            int y = yes[a];
+            int n = no[a];
+            for (int c = 0; c < changed; c++) {
+                long t = kb.trueWord(a, changedWords[c]);
+                long f = kb.falseWord(a, changedWords[c]);
+                y += Long.bitCount(t & added[c]) - Long.bitCount(t & removed[c]);
+                n += Long.bitCount(f & added[c]) - Long.bitCount(f & removed[c]);
+            }
+            yes[a] = y;
+            no[a] = n;
+            if (y + n > 0 && y < candidateCount && n < candidateCount) informative[informativeCount++] = a;
+        }
+    }
+
+    // The attribute was asked: drop its class from the index for the rest of the game
+    public void retire(int attribute) {
+        attribute = classes.representative(attribute);
+        for (int i = 0; i < liveCount; i++) {
+            if (live[i] == attribute) {
+                System.arraycopy(live, i + 1, live, i, liveCount - i - 1);
+                liveCount--;
+                return;
+            }
+        }
+    }
+
+    // Informative attributes as of the last update, in id order
+    public int[] informative() {
+        return informative;
+    }
+
+    public int informativeCount() {
+        return informativeCount;
+    }
+
+    public int liveCount() {
+        return liveCount;
+    }
+
+    public int yesCount(int attribute) {
+        return yes[attribute];
+    }
+
+    public int noCount(int attribute) {
+        return no[attribute];
+    }
+
+    public int unknownCount(int attribute) {
+        return windowCount - yes[attribute] - no[attribute];
+    }
+}
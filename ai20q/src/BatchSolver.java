@@ -0,0 +1,361 @@
+import java.util.*;
+
+// Advances many independent games in lockstep. Games that have seen exactly the same
+// questions, answers and wrong guesses are in the same solver state, so they share one
+// node: its posterior is updated once and its next step is computed once for all of
+// them. Unnormalised log posteriors live as rows of one flat double[] pool (one row
+// per live state); an answer is a straight add over the row driven by the bitset words,
+// and a row is normalised once when its step is computed.
+//
+// The decision logic is Solver's greedy path (no opening book, planner or pruning), and
+// steps come back as int codes instead of "ATTR:"/"ANIMAL:" strings:
+//   code >= 0        ask attribute code
+//   code < 0         guess animal ~code
+//   GIVE_UP          nothing left to ask or guess
+//   FINISHED         the game was finished earlier
+//
+// One round: step(), then for every game either answer(), wrong() or finish(), then advance().
+public class BatchSolver {
+    public static final int GIVE_UP = Integer.MIN_VALUE;
+    public static final int FINISHED = Integer.MIN_VALUE + 1;
+
+    private static final int TOP_CANDIDATES = 5;
+    private static final int WRONG = 3;
+
+    private static final class Node {
+        Node parent;
+        final int attribute;
+        final Answer answer;
+        int row = -1;
+        long[] asked;
+        int questionIndex;
+        int guessIndex;
+
+        boolean computed;
+        int step;
+        int nextQuestionIndex;
+        int nextGuessIndex;
+        int candidateCount;
+
+        final Node[] children = new Node[4];
+        int round;
+
+        Node(Node parent, int attribute, Answer answer) {
+            this.parent = parent;
+            this.attribute = attribute;
+            this.answer = answer;
+        }
+    }
+
+    private final CompiledKnowledgeBase kb;
+    private final LikelihoodModel model;
+    private final InformationGainKernel kernel;
+    private final int n;
+
+    // Posterior rows; rowUsers counts the nodes sharing a row (a wrong guess keeps it)
+    private double[] pool;
+    private int[] rowUsers;
+    private int[] freeRows;
+    private int freeCount = 0;
+    private int rowCount = 0;
+
+    private final Node[] gameNodes;
+    private final int[] steps;
+    private final List<Node> liveNodes = new ArrayList<>();
+    private int round = 0;
+    private int activeGames;
+
+    private final long[] mask;
+    private final int[] window;
+    private final int[] top = new int[TOP_CANDIDATES];
+    private final double[] probabilities;
+
+    public BatchSolver(CompiledKnowledgeBase kb, int games) {
+        this(kb, games, LikelihoodModel.current(kb));
+    }
+
+    public BatchSolver(CompiledKnowledgeBase kb, int games, LikelihoodModel model) {
+        this.kb = kb;
+        this.model = model;
+        this.kernel = new InformationGainKernel(kb);
+        this.n = kb.entityCount();
+        this.pool = new double[n * 16];
+        this.rowUsers = new int[16];
+        this.freeRows = new int[16];
+        this.mask = new long[kb.wordCount()];
+        this.window = new int[n];
+        this.probabilities = new double[n];
+
+        Node root = new Node(null, -1, null);
+        root.asked = kb.attributeClasses().aliasMask();
+        root.row = allocateRow();
+        Arrays.fill(pool, 0, n, -Math.log(n));
+        liveNodes.add(root);
+
+        this.gameNodes = new Node[games];
+        this.steps = new int[games];
+        Arrays.fill(gameNodes, root);
+        this.activeGames = games;
+    }
+
+    public static boolean isQuestion(int step) {
+        return step >= 0;
+    }
+
+    public static boolean isGuess(int step) {
+        return step < 0 && step != GIVE_UP && step != FINISHED;
+    }
+
+    public static int guessedAnimal(int step) {
+        return ~step;
+    }
+
+    public int gameCount() {
+        return gameNodes.length;
+    }
+
+    public int activeGames() {
+        return activeGames;
+    }
+
+    // Distinct solver states across the live games
+    public int liveStates() {
+        return liveNodes.size();
+    }
+
+    // Next step of every game, indexed by game. The array is reused between rounds.
+    public int[] step() {
+        for (Node node : liveNodes) {
+            if (!node.computed) compute(node);
+        }
+        for (int g = 0; g < gameNodes.length; g++) {
+            steps[g] = gameNodes[g] == null ? FINISHED : gameNodes[g].step;
+        }
+        return steps;
+    }
+
+    public int questionIndex(int game) {
+        return gameNodes[game].nextQuestionIndex;
+    }
+
+    // After a guess: whether the solver has further candidates to guess from
+    public boolean hasMoreGuesses(int game) {
+        Node node = gameNodes[game];
+        return node.nextGuessIndex < node.candidateCount;
+    }
+
+    public void answer(int game, Answer answer) {
+        Node node = gameNodes[game];
+        if (!isQuestion(node.step)) {
+            throw new IllegalStateException("Game " + game + " wasn't asked a question");
+        }
+        Node child = node.children[answer.ordinal()];
+        if (child == null) {
+            child = new Node(node, node.step, answer);
+            child.asked = node.asked.clone();
+            for (int m : kb.attributeClasses().members(node.step)) child.asked[m >>> 6] |= 1L << m;
+            child.questionIndex = node.nextQuestionIndex;
+            child.guessIndex = 0;
+            node.children[answer.ordinal()] = child;
+        }
+        gameNodes[game] = child;
+    }
+
+    // The guess was wrong and the game goes on from the same posterior
+    public void wrong(int game) {
+        Node node = gameNodes[game];
+        if (!isGuess(node.step)) {
+            throw new IllegalStateException("Game " + game + " didn't guess");
+        }
+        Node child = node.children[WRONG];
+        if (child == null) {
+            child = new Node(node, -1, null);
+            child.asked = node.asked;
+            child.row = node.row;
+            rowUsers[node.row]++;
+            child.questionIndex = node.nextQuestionIndex;
+            child.guessIndex = node.nextGuessIndex;
+            node.children[WRONG] = child;
+        }
+        gameNodes[game] = child;
+    }
+
+    public void finish(int game) {
+        if (gameNodes[game] != null) {
+            gameNodes[game] = null;
+            activeGames--;
+        }
+    }
+
+    // Moves to the states the games were sent to this round and releases the old ones
+    public void advance() {
+        round++;
+        List<Node> previous = new ArrayList<>(liveNodes);
+        liveNodes.clear();
+        for (Node node : gameNodes) {
+            if (node == null || node.round == round) continue;
+            node.round = round;
+            liveNodes.add(node);
+            if (node.row < 0) {
+                node.row = allocateRow();
+                update(node.parent.row, node.row, node.attribute, node.answer);
+            }
+        }
+        for (Node node : liveNodes) node.parent = null;
+        for (Node node : previous) {
+            if (node.round != round) {
+                releaseRow(node.row);
+                // Children are reachable from the games that moved into them
+                Arrays.fill(node.children, null);
+            }
+        }
+    }
+
+    // Solver.makeGuess for one state, without the opening book and planner
+    private void compute(Node node) {
+        node.computed = true;
+        normalize(node.row);
+        node.nextQuestionIndex = node.questionIndex;
+        node.nextGuessIndex = node.guessIndex;
+        node.candidateCount = 0;
+
+        int topCount = 0;
+        for (int e = 0; e < n; e++) {
+            if (topCount == TOP_CANDIDATES && !ranksBefore(e, top[topCount - 1])) continue;
+            int i = topCount < TOP_CANDIDATES ? topCount++ : topCount - 1;
+            while (i > 0 && ranksBefore(e, top[i - 1])) {
+                top[i] = top[i - 1];
+                i--;
+            }
+            top[i] = e;
+        }
+        double bestProb = probabilities[top[0]];
+
+        if (bestProb >= 0.90 && node.questionIndex < 20) {
+            node.nextQuestionIndex++;
+            node.step = ~top[0];
+            return;
+        }
+
+        Arrays.fill(mask, 0L);
+        int count = 0;
+        for (int i = 0; i < topCount; i++) {
+            window[count++] = top[i];
+            mask[top[i] >>> 6] |= 1L << top[i];
+        }
+        double threshold = bestProb * 0.25;
+        for (int e = 0; e < n; e++) {
+            if (probabilities[e] >= threshold && (mask[e >>> 6] & (1L << e)) == 0) {
+                window[count++] = e;
+                mask[e >>> 6] |= 1L << e;
+            }
+        }
+        node.candidateCount = count;
+
+        kernel.score(mask, count, probabilities, node.asked);
+        int bestAttr = kernel.getBestAttribute();
+        double bestGain = kernel.getBestGain();
+
+        if (node.questionIndex >= 20) {
+            node.step = node.guessIndex < count ? ~ranked(count, node.nextGuessIndex++) : GIVE_UP;
+            return;
+        }
+        if (bestAttr >= 0 && bestGain > 0.001) {
+            node.nextQuestionIndex++;
+            node.step = bestAttr;
+            return;
+        }
+        if (node.guessIndex < count) {
+            node.nextQuestionIndex++;
+            node.step = ~ranked(count, node.nextGuessIndex++);
+            return;
+        }
+        node.step = GIVE_UP;
+    }
+
+    // The rank-th best animal of the window; ranks stay small, so selection beats sorting
+    private int ranked(int count, int rank) {
+        for (int r = 0; r <= rank; r++) {
+            int best = r;
+            for (int i = r + 1; i < count; i++) {
+                if (ranksBefore(window[i], window[best])) best = i;
+            }
+            int t = window[r];
+            window[r] = window[best];
+            window[best] = t;
+        }
+        return window[rank];
+    }
+
+    private boolean ranksBefore(int a, int b) {
+        double pa = probabilities[a];
+        double pb = probabilities[b];
+        return pa > pb || (pa == pb && a < b);
+    }
+
+    // to = from + log P(answer | value), in the same order PosteriorEngine adds them
+    private void update(int fromRow, int toRow, int attribute, Answer answer) {
+        int from = fromRow * n;
+        int to = toRow * n;
+        if (model.hasEntityOverrides(attribute)) {
+            for (int e = 0; e < n; e++) {
+                pool[to + e] = pool[from + e] + model.logLikelihood(e, attribute, answer, kb.value(e, attribute));
+            }
+            return;
+        }
+
+        double logUnknown = model.logLikelihood(attribute, answer, CompiledKnowledgeBase.UNKNOWN);
+        double logYes = model.logLikelihood(attribute, answer, CompiledKnowledgeBase.TRUE);
+        double logNo = model.logLikelihood(attribute, answer, CompiledKnowledgeBase.FALSE);
+        if (logYes == logNo && logNo == logUnknown) {
+            System.arraycopy(pool, from, pool, to, n);
+            return;
+        }
+        // The whole row as unknown in one branch-free (vectorisable) pass, then the known
+        // cells rewritten from the source row, so every sum is rounded the way
+        // PosteriorEngine rounds it
+        for (int e = 0; e < n; e++) pool[to + e] = pool[from + e] + logUnknown;
+        for (int w = 0; w < kb.wordCount(); w++) {
+            int base = w << 6;
+            for (long t = kb.trueWord(attribute, w); t != 0; t &= t - 1) {
+                int e = base + Long.numberOfTrailingZeros(t);
+                pool[to + e] = pool[from + e] + logYes;
+            }
+            for (long f = kb.falseWord(attribute, w); f != 0; f &= f - 1) {
+                int e = base + Long.numberOfTrailingZeros(f);
+                pool[to + e] = pool[from + e] + logNo;
+            }
+        }
+    }
+
+    // Normalised probabilities of a row, computed like PosteriorEngine without pruning
+    private void normalize(int row) {
+        int at = row * n;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int e = 0; e < n; e++) max = Math.max(max, pool[at + e]);
+        double sum = 0.0;
+        for (int e = 0; e < n; e++) sum += Math.exp(pool[at + e] - max);
+        double logZ = max + Math.log(sum);
+        for (int e = 0; e < n; e++) probabilities[e] = Math.exp(pool[at + e] - logZ);
+    }
+
+    private int allocateRow() {
+        int row;
+        if (freeCount > 0) {
+            row = freeRows[--freeCount];
+        } else {
+            row = rowCount++;
+            if (row == rowUsers.length) {
+                rowUsers = Arrays.copyOf(rowUsers, row * 2);
+                freeRows = Arrays.copyOf(freeRows, row * 2);
+                pool = Arrays.copyOf(pool, row * 2 * n);
+            }
+        }
+        rowUsers[row] = 1;
+        return row;
+    }
+
+    private void releaseRow(int row) {
+        if (--rowUsers[row] == 0) freeRows[freeCount++] = row;
+    }
+}
@@ -0,0 +1,466 @@
+import java.nio.LongBuffer;
+import java.util.*;
+import org.apache.commons.math3.util.FastMath;
+
+// Columnar form of the knowledge base. Animals and attributes are interned to int
+// ids and every attribute is stored as two bitsets over the animal ids: one for
+// "known true" and one for "known false". Neither bit set means unknown.
+//
+// Dense form: all bitsets live in one LongBuffer, attribute by attribute (true words,
+// then false words). It wraps a long[] when compiled in memory, or points straight
+// into a memory-mapped KnowledgeBaseFile. This costs 2 bits per animal x attribute
+// cell whether the cell is known or not.
+//
+// Sparse form: every attribute keeps its true and false animal ids as SparseBitmaps
+// instead, so unknown cells take no space and memory follows the number of known
+// facts. trueWord / falseWord / value answer the same in both forms.
+public class CompiledKnowledgeBase {
+    public static final byte UNKNOWN = 0;
+    public static final byte TRUE = 1;
+    public static final byte FALSE = 2;
+
+    private final String[] entities;
+    private final String[] attributes;
+    private final Map<String, Integer> entityIds = new HashMap<>();
+    private final Map<String, Integer> attributeIds = new HashMap<>();
+    private final int words;
+    private final LongBuffer columns;
+    private final SparseBitmap[] trueSets;
+    private final SparseBitmap[] falseSets;
+    private long fingerprint;
+    private volatile double[] log2Counts;
+    private volatile AttributeClasses attributeClasses;
+
+    CompiledKnowledgeBase(String[] entities, String[] attributes, LongBuffer columns, long fingerprint) {
+        this.entities = entities;
+        this.attributes = attributes;
+        this.words = wordsFor(entities.length);
+        this.columns = columns;
+        this.trueSets = null;
+        this.falseSets = null;
+        this.fingerprint = fingerprint;
+        for (int i = 0; i < entities.length; i++) entityIds.put(entities[i], i);
+        for (int i = 0; i < attributes.length; i++) attributeIds.put(attributes[i], i);
+    }
+
+    CompiledKnowledgeBase(String[] entities, String[] attributes, SparseBitmap[] trueSets, SparseBitmap[] falseSets) {
+        this.entities = entities;
+        this.attributes = attributes;
+        this.words = wordsFor(entities.length);
+        this.columns = null;
+        this.trueSets = trueSets;
+        this.falseSets = falseSets;
+        for (int i = 0; i < entities.length; i++) entityIds.put(entities[i], i);
+        for (int i = 0; i < attributes.length; i++) attributeIds.put(attributes[i], i);
+    }
+
+    public static CompiledKnowledgeBase compile(Map<String, Map<String, Boolean>> data) {
+        Builder builder = new Builder();
+        for (Map.Entry<String, Map<String, Boolean>> animal : data.entrySet()) {
+            int e = builder.addEntity(animal.getKey());
+            if (animal.getValue() == null) continue;
+            for (Map.Entry<String, Boolean> attr : animal.getValue().entrySet()) {
+                builder.set(e, attr.getKey(), attr.getValue());
+            }
+        }
+        return builder.build();
+    }
+
+    // Collects animals one at a time into growable columns. Attribute ids follow first
+    // appearance so the layout is stable for a given file, and a repeated animal name
+    // updates the existing animal.
+    //
+    // A sparse builder never allocates per-cell columns: it appends one int per set()
+    // call (animal id << 2 | value) to the attribute's log, and build() keeps the last
+    // value written for every animal.
+    public static class Builder {
+        private final List<String> entities = new ArrayList<>();
+        private final Map<String, Integer> entityIds = new HashMap<>();
+        private final List<String> attributes = new ArrayList<>();
+        private final Map<String, Integer> attributeIds = new HashMap<>();
+        private final boolean sparse;
+        private final List<long[]> trueColumns = new ArrayList<>();
+        private final List<long[]> falseColumns = new ArrayList<>();
+        private int capacityWords = 1;
+        private final List<int[]> cells = new ArrayList<>();
+        private int[] cellCounts = new int[16];
+
+        public Builder() {
+            this(false);
+        }
+
+        public Builder(boolean sparse) {
+            this.sparse = sparse;
+        }
+
+        // Starts from an existing knowledge base, keeping its ids and its form
+        public Builder(CompiledKnowledgeBase kb) {
+            this(kb, kb.isSparse());
+        }
+
+        public Builder(CompiledKnowledgeBase kb, boolean sparse) {
+            this.sparse = sparse;
+            capacityWords = Math.max(1, kb.wordCount());
+            for (int e = 0; e < kb.entityCount(); e++) {
+                entities.add(kb.entityName(e));
+                entityIds.put(kb.entityName(e), e);
+            }
+            for (int a = 0; a < kb.attributeCount(); a++) {
+                attributes.add(kb.attributeName(a));
+                attributeIds.put(kb.attributeName(a), a);
+                if (sparse && kb.isSparse()) {
+                    copyCells(a, kb.trueSet(a).toArray(), kb.falseSet(a).toArray());
+                    continue;
+                }
+                long[] trueColumn = new long[capacityWords];
+                long[] falseColumn = new long[capacityWords];
+                for (int w = 0; w < kb.wordCount(); w++) {
+                    trueColumn[w] = kb.trueWord(a, w);
+                    falseColumn[w] = kb.falseWord(a, w);
+                }
+                if (sparse) {
+                    copyCells(a, ids(trueColumn), ids(falseColumn));
+                    continue;
+                }
+                trueColumns.add(trueColumn);
+                falseColumns.add(falseColumn);
+            }
+        }
+
+        private static int[] ids(long[] column) {
+            int count = 0;
+            for (long word : column) count += Long.bitCount(word);
+            int[] ids = new int[count];
+            int n = 0;
+            for (int w = 0; w < column.length; w++) {
+                for (long b = column[w]; b != 0; b &= b - 1) ids[n++] = w << 6 | Long.numberOfTrailingZeros(b);
+            }
+            return ids;
+        }
+
+        // Merges an attribute's true and false ids into its cell log in animal order
+        private void copyCells(int a, int[] trueIds, int[] falseIds) {
+            int[] log = new int[Math.max(4, trueIds.length + falseIds.length)];
+            int n = 0;
+            int t = 0;
+            int f = 0;
+            while (t < trueIds.length || f < falseIds.length) {
+                if (f == falseIds.length || (t < trueIds.length && trueIds[t] < falseIds[f])) {
+                    log[n++] = trueIds[t++] << 2 | TRUE;
+                } else {
+                    log[n++] = falseIds[f++] << 2 | FALSE;
+                }
+            }
+            cells.add(log);
+            if (a == cellCounts.length) cellCounts = Arrays.copyOf(cellCounts, a * 2);
+            cellCounts[a] = n;
+        }
+
+        public int addEntity(String name) {
+            Integer existing = entityIds.get(name);
+            if (existing != null) return existing;
+
+            int id = entities.size();
+            entities.add(name);
+            entityIds.put(name, id);
+            if (!sparse && wordsFor(entities.size()) > capacityWords) {
+                capacityWords *= 2;
+                for (int a = 0; a < attributes.size(); a++) {
+                    trueColumns.set(a, Arrays.copyOf(trueColumns.get(a), capacityWords));
+                    falseColumns.set(a, Arrays.copyOf(falseColumns.get(a), capacityWords));
+                }
+            }
+            return id;
+        }
+
+        public int addAttribute(String name) {
+            Integer existing = attributeIds.get(name);
+            if (existing != null) return existing;
+
+            int id = attributes.size();
+            attributes.add(name);
+            attributeIds.put(name, id);
+            if (sparse) {
+                cells.add(new int[4]);
+                if (id == cellCounts.length) cellCounts = Arrays.copyOf(cellCounts, id * 2);
+            } else {
+                trueColumns.add(new long[capacityWords]);
+                falseColumns.add(new long[capacityWords]);
+            }
+            return id;
+        }
+
+        public byte value(int entity, String attribute) {
+            Integer a = attributeIds.get(attribute);
+            if (a == null) return UNKNOWN;
+            if (sparse) {
+                int[] log = cells.get(a);
+                for (int i = cellCounts[a] - 1; i >= 0; i--) {
+                    if (log[i] >>> 2 == entity) return (byte) (log[i] & 3);
+                }
+                return UNKNOWN;
+            }
+            long bit = 1L << entity;
+            if ((trueColumns.get(a)[entity >>> 6] & bit) != 0) return TRUE;
+            if ((falseColumns.get(a)[entity >>> 6] & bit) != 0) return FALSE;
+            return UNKNOWN;
+        }
+
+        // A null value registers the attribute but leaves the animal unknown for it
+        public void set(int entity, String attribute, Boolean value) {
+            int a = addAttribute(attribute);
+            if (sparse) {
+                int[] log = cells.get(a);
+                int n = cellCounts[a];
+                if (value == null && n == 0) return;
+                if (n == log.length) cells.set(a, log = Arrays.copyOf(log, n * 2));
+                log[n] = entity << 2 | (value == null ? UNKNOWN : value ? TRUE : FALSE);
+                cellCounts[a] = n + 1;
+                return;
+            }
+            long bit = 1L << entity;
+            trueColumns.get(a)[entity >>> 6] &= ~bit;
+            falseColumns.get(a)[entity >>> 6] &= ~bit;
+            if (value == null) return;
+            if (value) trueColumns.get(a)[entity >>> 6] |= bit;
+            else falseColumns.get(a)[entity >>> 6] |= bit;
+        }
+
+        public int entityCount() {
+            return entities.size();
+        }
+
+        public int attributeCount() {
+            return attributes.size();
+        }
+
+        public CompiledKnowledgeBase build() {
+            if (sparse) return buildSparse();
+            int words = wordsFor(entities.size());
+            long[] columns = new long[attributes.size() * 2 * words];
+            for (int a = 0; a < attributes.size(); a++) {
+                System.arraycopy(trueColumns.get(a), 0, columns, (2 * a) * words, words);
+                System.arraycopy(falseColumns.get(a), 0, columns, (2 * a + 1) * words, words);
+            }
+            return new CompiledKnowledgeBase(entities.toArray(new String[0]), attributes.toArray(new String[0]),
+                LongBuffer.wrap(columns), 0);
+        }
+
+        private CompiledKnowledgeBase buildSparse() {
+            SparseBitmap[] trueSets = new SparseBitmap[attributes.size()];
+            SparseBitmap[] falseSets = new SparseBitmap[attributes.size()];
+            int[] trueIds = new int[0];
+            int[] falseIds = new int[0];
+            for (int a = 0; a < attributes.size(); a++) {
+                int[] log = lastWrites(cells.get(a), cellCounts[a]);
+                int n = log == cells.get(a) ? cellCounts[a] : log.length;
+                if (trueIds.length < n) {
+                    trueIds = new int[n];
+                    falseIds = new int[n];
+                }
+                int t = 0;
+                int f = 0;
+                for (int i = 0; i < n; i++) {
+                    int value = log[i] & 3;
+                    if (value == TRUE) trueIds[t++] = log[i] >>> 2;
+                    else if (value == FALSE) falseIds[f++] = log[i] >>> 2;
+                }
+                trueSets[a] = SparseBitmap.of(trueIds, t);
+                falseSets[a] = SparseBitmap.of(falseIds, f);
+            }
+            return new CompiledKnowledgeBase(entities.toArray(new String[0]), attributes.toArray(new String[0]),
+                trueSets, falseSets);
+        }
+
+        // The log itself when animals already appear in increasing order (the usual case
+        // for a file read front to back), otherwise the last write per animal, sorted
+        private static int[] lastWrites(int[] log, int n) {
+            boolean ordered = true;
+            for (int i = 1; i < n && ordered; i++) ordered = log[i] >>> 2 > log[i - 1] >>> 2;
+            if (ordered) return log;
+
+            // animal id in the high half, write order in the low half
+            long[] order = new long[n];
+            for (int i = 0; i < n; i++) order[i] = (long) (log[i] >>> 2) << 32 | i;
+            Arrays.sort(order);
+            int[] last = new int[n];
+            int m = 0;
+            for (int i = 0; i < n; i++) {
+                if (i + 1 < n && order[i + 1] >>> 32 == order[i] >>> 32) continue;
+                last[m++] = log[(int) order[i]];
+            }
+            return Arrays.copyOf(last, m);
+        }
+    }
+
+    public static int wordsFor(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    public int entityCount() {
+        return entities.length;
+    }
+
+    public int attributeCount() {
+        return attributes.length;
+    }
+
+    // Number of longs in each attribute bitset
+    public int wordCount() {
+        return words;
+    }
+
+    public String entityName(int entity) {
+        return entities[entity];
+    }
+
+    public String attributeName(int attribute) {
+        return attributes[attribute];
+    }
+
+    // Returns -1 for names that are not in the knowledge base
+    public int entityId(String name) {
+        Integer id = entityIds.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public int attributeId(String name) {
+        Integer id = attributeIds.get(name);
+        return id == null ? -1 : id;
+    }
+
+    // Hash of the names and bitsets, used to check that derived files (opening books,
+    // snapshots) were built against this exact knowledge base
+    public long fingerprint() {
+        if (fingerprint == 0) {
+            long h = 0xcbf29ce484222325L;
+            for (String entity : entities) h = mix(h, entity.hashCode());
+            for (String attribute : attributes) h = mix(h, attribute.hashCode());
+            long[] trueColumn = columns == null ? new long[words] : null;
+            long[] falseColumn = columns == null ? new long[words] : null;
+            for (int a = 0; a < attributes.length; a++) {
+                if (columns == null) {
+                    // Same words as the dense form, so both forms hash alike
+                    Arrays.fill(trueColumn, 0L);
+                    Arrays.fill(falseColumn, 0L);
+                    trueSets[a].toWords(trueColumn);
+                    falseSets[a].toWords(falseColumn);
+                    for (int w = 0; w < words; w++) {
+                        h = mix(h, trueColumn[w]);
+                        h = mix(h, falseColumn[w]);
+                    }
+                    continue;
+                }
+                for (int w = 0; w < words; w++) {
+                    h = mix(h, trueWord(a, w));
+                    h = mix(h, falseWord(a, w));
+                }
+            }
+            fingerprint = h == 0 ? 1 : h;
+        }
+        return fingerprint;
+    }
+
+    private static long mix(long h, long value) {
+        h ^= value;
+        h *= 0x100000001b3L;
+        return h ^ (h >>> 29);
+    }
+
+    // log2 of every possible candidate count, shared by all solvers on this knowledge base
+    public double[] log2Counts() {
+        double[] table = log2Counts;
+        if (table == null) {
+            table = new double[entities.length + 1];
+            for (int i = 1; i < table.length; i++) {
+                table[i] = FastMath.log(i) / FastMath.log(2);
+            }
+            log2Counts = table;
+        }
+        return table;
+    }
+
+    // Identical / complementary attribute columns, detected once per knowledge base
+    public AttributeClasses attributeClasses() {
+        AttributeClasses classes = attributeClasses;
+        if (classes == null) {
+            synchronized (this) {
+                classes = attributeClasses;
+                if (classes == null) attributeClasses = classes = AttributeClasses.of(this);
+            }
+        }
+        return classes;
+    }
+
+    // Points an alias at its representative's sets. Same contents, so readers can't tell.
+    void shareColumns(int attribute, int representative, boolean negated) {
+        if (columns != null) return;
+        trueSets[attribute] = negated ? falseSets[representative] : trueSets[representative];
+        falseSets[attribute] = negated ? trueSets[representative] : falseSets[representative];
+    }
+
+    public byte value(int entity, int attribute) {
+        if (columns == null) {
+            if (trueSets[attribute].contains(entity)) return TRUE;
+            return falseSets[attribute].contains(entity) ? FALSE : UNKNOWN;
+        }
+        long bit = 1L << entity;
+        if ((trueWord(attribute, entity >>> 6) & bit) != 0) return TRUE;
+        if ((falseWord(attribute, entity >>> 6) & bit) != 0) return FALSE;
+        return UNKNOWN;
+    }
+
+    public long trueWord(int attribute, int word) {
+        if (columns == null) return trueSets[attribute].word(word);
+        return columns.get((2 * attribute) * words + word);
+    }
+
+    public long falseWord(int attribute, int word) {
+        if (columns == null) return falseSets[attribute].word(word);
+        return columns.get((2 * attribute + 1) * words + word);
+    }
+
+    public boolean isSparse() {
+        return columns == null;
+    }
+
+    // Compressed true / false sets of an attribute; sparse form only
+    public SparseBitmap trueSet(int attribute) {
+        return trueSets[attribute];
+    }
+
+    public SparseBitmap falseSet(int attribute) {
+        return falseSets[attribute];
+    }
+
+    // Known (animal, attribute) facts
+    public long knownCount() {
+        long known = 0;
+        for (int a = 0; a < attributes.length; a++) {
+            if (columns == null) {
+                known += trueSets[a].cardinality() + falseSets[a].cardinality();
+                continue;
+            }
+            for (int w = 0; w < words; w++) known += Long.bitCount(trueWord(a, w)) + Long.bitCount(falseWord(a, w));
+        }
+        return known;
+    }
+
+    // Approximate heap / mapped bytes taken by the column storage
+    public long columnBytes() {
+        if (columns != null) return (long) attributes.length * 2 * words * Long.BYTES;
+        // Sets shared between attribute classes count once
+        Set<SparseBitmap> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        long bytes = 0;
+        for (int a = 0; a < attributes.length; a++) {
+            if (seen.add(trueSets[a])) bytes += trueSets[a].sizeInBytes();
+            if (seen.add(falseSets[a])) bytes += falseSets[a].sizeInBytes();
+        }
+        return bytes;
+    }
+
+    // Raw column storage, in the layout described above; dense form only
+    LongBuffer columns() {
+        return columns.duplicate();
+    }
+}
@@ -0,0 +1,386 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+public class CompiledKnowledgeBaseTest {
+
+    private CompiledKnowledgeBase compiled() {
+        Map<String, Map<String, Boolean>> data = new LinkedHashMap<>();
+
+        Map<String, Boolean> dog = new LinkedHashMap<>();
+        dog.put("hasFur", true);
+        dog.put("canFly", false);
+        data.put("dog", dog);
+
+        Map<String, Boolean> bat = new LinkedHashMap<>();
+        bat.put("hasFur", true);
+        bat.put("canFly", true);
+        bat.put("isNocturnal", true);
+        data.put("bat", bat);
+
+        Map<String, Boolean> shark = new LinkedHashMap<>();
+        shark.put("hasFur", false);
+        shark.put("canFly", null);
+        data.put("shark", shark);
+
+        return CompiledKnowledgeBase.compile(data);
+    }
+
+    @Test
+    void testIdsAreInterned() {
+        CompiledKnowledgeBase kb = compiled();
+
+        assertEquals(3, kb.entityCount());
+        assertEquals(3, kb.attributeCount());
+        assertEquals("bat", kb.entityName(kb.entityId("bat")));
+        assertEquals("isNocturnal", kb.attributeName(kb.attributeId("isNocturnal")));
+        assertEquals(-1, kb.entityId("unicorn"));
+        assertEquals(-1, kb.attributeId("hasHorn"));
+    }
+
+    @Test
+    void testValuesAreTriState() {
+        CompiledKnowledgeBase kb = compiled();
+        int dog = kb.entityId("dog");
+        int shark = kb.entityId("shark");
+
+        assertEquals(CompiledKnowledgeBase.TRUE, kb.value(dog, kb.attributeId("hasFur")));
+        assertEquals(CompiledKnowledgeBase.FALSE, kb.value(dog, kb.attributeId("canFly")));
+        // Explicit null and missing keys are both unknown
+        assertEquals(CompiledKnowledgeBase.UNKNOWN, kb.value(shark, kb.attributeId("canFly")));
+        assertEquals(CompiledKnowledgeBase.UNKNOWN, kb.value(dog, kb.attributeId("isNocturnal")));
+    }
+
+    @Test
+    void testBitsetsHaveOneBitPerAnimal() {
+        CompiledKnowledgeBase kb = compiled();
+        int fur = kb.attributeId("hasFur");
+
+        assertEquals(1, kb.wordCount());
+        assertEquals(2, Long.bitCount(kb.trueWord(fur, 0)));
+        assertEquals(1, Long.bitCount(kb.falseWord(fur, 0)));
+        assertEquals(0, kb.trueWord(fur, 0) & kb.falseWord(fur, 0));
+    }
+
+    @Test
+    void testStreamingIngestMatchesCompile() throws Exception {
+        String json = "{\"dog\": {\"hasFur\": true, \"canFly\": false},"
+            + " \"bat\": {\"hasFur\": true, \"canFly\": true, \"isNocturnal\": true},"
+            + " \"shark\": {\"hasFur\": false, \"canFly\": null}}";
+        CompiledKnowledgeBase streamed = KnowledgeBaseIngest.ingest(new java.io.StringReader(json), null, 0);
+
+        assertEquals(compiled().fingerprint(), streamed.fingerprint());
+    }
+
+    @Test
+    void testStreamingIngestSkipsUnusableValues() throws Exception {
+        String json = "{\"dog\": {\"hasFur\": \"yes\", \"legs\": 4, \"tags\": [\"pet\"]}, \"note\": \"ignored\"}";
+        long[] skipped = new long[1];
+        CompiledKnowledgeBase kb = KnowledgeBaseIngest.ingest(new java.io.StringReader(json),
+            (animals, attributes, skippedValues) -> skipped[0] = skippedValues, 1);
+
+        assertEquals(1, kb.entityCount());
+        assertEquals(CompiledKnowledgeBase.TRUE, kb.value(0, kb.attributeId("hasFur")));
+        assertEquals(CompiledKnowledgeBase.UNKNOWN, kb.value(0, kb.attributeId("legs")));
+        assertEquals(3, skipped[0]);
+    }
+
+    @Test
+    void testBinaryFileRoundTrip() throws Exception {
+        CompiledKnowledgeBase kb = compiled();
+        java.io.File file = java.io.File.createTempFile("animals", ".kb");
+        file.deleteOnExit();
+
+        KnowledgeBaseFile.write(kb, file.getPath());
+        CompiledKnowledgeBase mapped = KnowledgeBase.load(file.getPath());
+
+        assertEquals(kb.fingerprint(), mapped.fingerprint());
+        assertEquals(kb.entityCount(), mapped.entityCount());
+        assertEquals(kb.attributeCount(), mapped.attributeCount());
+        for (int e = 0; e < kb.entityCount(); e++) {
+            assertEquals(kb.entityName(e), mapped.entityName(e));
+            for (int a = 0; a < kb.attributeCount(); a++) {
+                assertEquals(kb.value(e, a), mapped.value(e, a));
+            }
+        }
+    }
+
+    @Test
+    void testStoreLearnsAnimalAndPersistsIt() throws Exception {
+        CompiledKnowledgeBase kb = compiled();
+        java.io.File file = java.io.File.createTempFile("animals", ".json");
+        file.deleteOnExit();
+
+        Map<String, Answer> answers = new HashMap<>();
+        answers.put("hasFur", Answer.NO);
+        answers.put("canFly", Answer.YES);
+        answers.put("isNocturnal", Answer.MAYBE);
+
+        try (KnowledgeBaseStore store = new KnowledgeBaseStore(kb, file.getPath(), 1, java.util.concurrent.TimeUnit.HOURS)) {
+            assertEquals(2, store.learn("eagle", answers));
+            CompiledKnowledgeBase learned = store.snapshot();
+
+            // The old snapshot is untouched
+            assertEquals(3, kb.entityCount());
+            assertEquals(4, learned.entityCount());
+            int eagle = learned.entityId("eagle");
+            assertEquals(CompiledKnowledgeBase.FALSE, learned.value(eagle, learned.attributeId("hasFur")));
+            assertEquals(CompiledKnowledgeBase.TRUE, learned.value(eagle, learned.attributeId("canFly")));
+            assertEquals(CompiledKnowledgeBase.UNKNOWN, learned.value(eagle, learned.attributeId("isNocturnal")));
+
+            // Known values are kept; only the shark's unknown canFly is filled in
+            answers.put("hasFur", Answer.YES);
+            answers.put("canFly", Answer.NO);
+            assertEquals(1, store.learn("shark", answers));
+            int shark = store.snapshot().entityId("shark");
+            assertEquals(CompiledKnowledgeBase.FALSE, store.snapshot().value(shark, learned.attributeId("hasFur")));
+            assertEquals(CompiledKnowledgeBase.FALSE, store.snapshot().value(shark, learned.attributeId("canFly")));
+        }
+
+        CompiledKnowledgeBase reloaded = KnowledgeBase.load(file.getPath());
+        assertEquals(4, reloaded.entityCount());
+        assertEquals(CompiledKnowledgeBase.TRUE, reloaded.value(reloaded.entityId("eagle"), reloaded.attributeId("canFly")));
+    }
+
+    @Test
+    void testJsonRoundTripKeepsAttributeOrder() throws Exception {
+        // a is unknown for the first animal, c for every animal
+        CompiledKnowledgeBase.Builder builder = new CompiledKnowledgeBase.Builder();
+        builder.addAttribute("a");
+        builder.addAttribute("b");
+        builder.addAttribute("c");
+        int x = builder.addEntity("x");
+        builder.set(x, "b", true);
+        int y = builder.addEntity("y");
+        builder.set(y, "a", true);
+        builder.set(y, "b", false);
+        CompiledKnowledgeBase kb = builder.build();
+        java.io.File file = java.io.File.createTempFile("animals", ".json");
+        file.deleteOnExit();
+
+        KnowledgeBase.writeJson(kb, file.getPath());
+        CompiledKnowledgeBase reloaded = KnowledgeBase.load(file.getPath());
+
+        assertEquals(kb.fingerprint(), reloaded.fingerprint());
+        assertEquals(LikelihoodModel.attributeHash(kb, 3), LikelihoodModel.attributeHash(reloaded, 3));
+        for (int a = 0; a < 3; a++) assertEquals(kb.attributeName(a), reloaded.attributeName(a));
+        for (int e = 0; e < 2; e++) {
+            for (int a = 0; a < 3; a++) assertEquals(kb.value(e, a), reloaded.value(e, a));
+        }
+    }
+
+    @Test
+    void testSparseFormMatchesDense() throws Exception {
+        // 70k animals spans two containers; attribute 0 is dense enough for a bitmap container
+        Random random = new Random(18);
+        CompiledKnowledgeBase.Builder dense = new CompiledKnowledgeBase.Builder();
+        CompiledKnowledgeBase.Builder sparse = new CompiledKnowledgeBase.Builder(true);
+        int animals = 70_000;
+        for (int e = 0; e < animals; e++) {
+            dense.addEntity("animal" + e);
+            sparse.addEntity("animal" + e);
+            for (int a = 0; a < 40; a++) {
+                if (random.nextInt(a == 0 ? 2 : 200) != 0) continue;
+                Boolean value = random.nextBoolean();
+                dense.set(e, "attr" + a, value);
+                sparse.set(e, "attr" + a, value);
+            }
+        }
+        // Overwrites out of animal order, including back to unknown
+        for (int i = 0; i < 500; i++) {
+            int e = random.nextInt(animals);
+            String attr = "attr" + random.nextInt(40);
+            Boolean value = random.nextInt(3) == 0 ? null : random.nextBoolean();
+            dense.set(e, attr, value);
+            sparse.set(e, attr, value);
+            assertEquals(dense.value(e, attr), sparse.value(e, attr));
+        }
+        CompiledKnowledgeBase d = dense.build();
+        CompiledKnowledgeBase s = sparse.build();
+
+        assertTrue(s.isSparse());
+        assertEquals(d.knownCount(), s.knownCount());
+        assertTrue(s.columnBytes() < d.columnBytes() / 4);
+        assertEquals(d.fingerprint(), s.fingerprint());
+        for (int a = 0; a < d.attributeCount(); a++) {
+            for (int w = 0; w < d.wordCount(); w++) {
+                assertEquals(d.trueWord(a, w), s.trueWord(a, w));
+                assertEquals(d.falseWord(a, w), s.falseWord(a, w));
+            }
+        }
+
+        // Same gains to the bit, for small and large candidate sets
+        double[] posterior = new double[animals];
+        for (int e = 0; e < animals; e++) posterior[e] = random.nextDouble();
+        long[] asked = new long[1];
+        for (int size : new int[] {50, animals / 2}) {
+            long[] candidates = new long[d.wordCount()];
+            int count = 0;
+            while (count < size) {
+                int e = random.nextInt(animals);
+                if ((candidates[e >>> 6] & (1L << e)) != 0) continue;
+                candidates[e >>> 6] |= 1L << e;
+                count++;
+            }
+            InformationGainKernel denseKernel = new InformationGainKernel(d);
+            InformationGainKernel sparseKernel = new InformationGainKernel(s);
+            double mass = denseKernel.mass(candidates, posterior);
+            for (int a = 0; a < d.attributeCount(); a++) {
+                assertEquals(denseKernel.gain(a, candidates, count, mass, posterior),
+                    sparseKernel.gain(a, candidates, count, mass, posterior));
+            }
+            denseKernel.score(candidates, count, posterior, asked);
+            sparseKernel.score(candidates, count, posterior, asked);
+            assertEquals(denseKernel.getBestAttribute(), sparseKernel.getBestAttribute());
+        }
+
+        // Written out dense, read back with the same facts
+        java.io.File file = java.io.File.createTempFile("sparse", ".kb");
+        file.deleteOnExit();
+        KnowledgeBaseFile.write(s, file.getPath());
+        CompiledKnowledgeBase mapped = KnowledgeBase.load(file.getPath());
+        assertEquals(s.fingerprint(), mapped.fingerprint());
+        assertEquals(s.knownCount(), mapped.knownCount());
+        assertTrue(new CompiledKnowledgeBase.Builder(mapped, true).build().isSparse());
+    }
+
+    @Test
+    void testDuplicateAndComplementaryAttributesShareAClass() {
+        Map<String, Map<String, Boolean>> data = new LinkedHashMap<>();
+        data.put("sparrow", Map.of("canFly", true, "isFlightless", false, "hasFeathers", true, "isBird", true, "hasWings", true));
+        data.put("penguin", Map.of("canFly", false, "isFlightless", true, "hasFeathers", true, "isBird", true, "hasWings", true));
+        data.put("dog", Map.of("canFly", false, "isFlightless", true, "hasFeathers", false, "isBird", false, "hasWings", false));
+        data.put("bat", Map.of("canFly", true, "isFlightless", false, "hasWings", true));
+        CompiledKnowledgeBase dense = CompiledKnowledgeBase.compile(data);
+
+        for (CompiledKnowledgeBase kb : List.of(dense, new CompiledKnowledgeBase.Builder(dense, true).build())) {
+            AttributeClasses classes = kb.attributeClasses();
+            int canFly = kb.attributeId("canFly");
+            int flightless = kb.attributeId("isFlightless");
+            int feathers = kb.attributeId("hasFeathers");
+            int bird = kb.attributeId("isBird");
+            int wings = kb.attributeId("hasWings");
+
+            assertEquals(3, classes.classCount());
+            // The lower id represents the class; Map.of doesn't fix which one that is
+            assertEquals(Math.min(canFly, flightless), classes.representative(flightless));
+            assertEquals(Math.min(canFly, flightless), classes.representative(canFly));
+            assertTrue(classes.isNegated(Math.max(canFly, flightless)));
+            assertEquals(Math.min(feathers, bird), classes.representative(bird));
+            assertFalse(classes.isNegated(bird) || classes.isNegated(feathers));
+            assertEquals(wings, classes.representative(wings));
+            assertEquals(2, classes.members(bird).length);
+            int flying = classes.representative(canFly);
+            assertEquals(classes.isNegated(canFly) ? 0 : 1,
+                classes.implications(kb).stream().filter(p -> p[0] == flying && p[1] == wings).count());
+            // Sharing the alias columns leaves every value as it was
+            for (int e = 0; e < kb.entityCount(); e++) {
+                for (int a = 0; a < kb.attributeCount(); a++) assertEquals(dense.value(e, a), kb.value(e, a));
+            }
+
+            // Asking an alias retires its whole class
+            Solver solver = new Solver(kb);
+            solver.applyAnswer("isFlightless", Answer.NO);
+            for (int turn = 0; turn < 3; turn++) {
+                String step = solver.makeGuess();
+                if (step == null || !step.startsWith("ATTR:")) break;
+                assertFalse(step.equals("ATTR:canFly") || step.equals("ATTR:isFlightless"), step);
+                solver.applyAnswer(step.substring(5), Answer.YES);
+            }
+        }
+    }
+
+    @Test
+    void testDomainsLoadLazilyAndEvictUnderBudget() throws Exception {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("domains");
+        java.nio.file.Files.writeString(dir.resolve("animals.json"),
+            "{\"dog\": {\"hasFur\": true}, \"shark\": {\"hasFur\": false}}");
+        java.nio.file.Files.writeString(dir.resolve("foods.json"),
+            "{\"apple\": {\"isSweet\": true}, \"lemon\": {\"isSweet\": false}}");
+        java.nio.file.Files.writeString(dir.resolve("people.json"),
+            "{\"Ada Lovelace\": {\"isAlive\": false}, \"Serena Williams\": {\"isAlive\": true}}");
+        for (java.io.File file : dir.toFile().listFiles()) file.deleteOnExit();
+        dir.toFile().deleteOnExit();
+
+        // Room for one domain at a time
+        try (DomainRegistry domains = DomainRegistry.open(dir.toString(), 1)) {
+            assertEquals(List.of("animals", "foods", "people"), domains.domains());
+            assertEquals(0, domains.getLoads());
+
+            assertNotNull(domains.newSolver("foods").makeGuess());
+            assertTrue(domains.isLoaded("foods"));
+            assertFalse(domains.isLoaded("animals"));
+            domains.get("foods");
+            assertEquals(1, domains.getLoads());
+            assertEquals(1, domains.getHits());
+
+            domains.newSolver("animals");
+            domains.newSolver("people");
+            domains.newSolver("people");
+            assertEquals(3, domains.getLoads());
+            assertEquals(2, domains.getEvictions());
+            assertFalse(domains.isLoaded("foods"));
+            assertEquals(DomainRegistry.footprint(domains.get("people").snapshot()), domains.getMemoryUsed());
+
+            // Learning into an evicted domain reloads it; evicting it again saves what it learned
+            assertEquals(1, domains.learn("foods", "cake", Map.of("isSweet", Answer.YES)));
+            domains.get("animals");
+            assertFalse(domains.isLoaded("foods"));
+            assertEquals(3, KnowledgeBase.load(dir.resolve("foods.json").toString()).entityCount());
+
+            // Most played domain first; the last one left needs no question
+            DomainRegistry.Router router = domains.router();
+            assertEquals("people", router.question());
+            router.answer(false);
+            assertEquals("animals", router.question());
+            router.answer(false);
+            assertNull(router.question());
+            assertEquals("foods", router.domain());
+        }
+    }
+
+    @Test
+    void testLearningIntoAnEvictedDomainIsNotLost() throws Exception {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("domains");
+        java.nio.file.Files.writeString(dir.resolve("animals.json"),
+            "{\"dog\": {\"hasFur\": true}, \"shark\": {\"hasFur\": false}}");
+        java.nio.file.Files.writeString(dir.resolve("foods.json"),
+            "{\"apple\": {\"isSweet\": true}, \"lemon\": {\"isSweet\": false}}");
+        for (java.io.File file : dir.toFile().listFiles()) file.deleteOnExit();
+        dir.toFile().deleteOnExit();
+
+        try (DomainRegistry domains = DomainRegistry.open(dir.toString(), 1)) {
+            // A store handed out before its domain was evicted refuses to learn
+            DomainRegistry.Domain stale = domains.get("foods");
+            domains.get("animals");
+            assertFalse(domains.isLoaded("foods"));
+            assertThrows(IllegalStateException.class, () -> stale.store.learn("cake", Map.of("isSweet", Answer.YES)));
+
+            // One thread learns foods while another keeps evicting and reloading them
+            int learned = 200;
+            java.util.concurrent.atomic.AtomicBoolean done = new java.util.concurrent.atomic.AtomicBoolean();
+            Thread churn = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        domains.get("animals");
+                        domains.get("foods");
+                    }
+                } catch (java.io.IOException e) {
+                    throw new java.io.UncheckedIOException(e);
+                }
+            });
+            churn.start();
+            try {
+                for (int i = 0; i < learned; i++) {
+                    assertEquals(1, domains.learn("foods", "food" + i, Map.of("isSweet", Answer.YES)));
+                }
+            } finally {
+                done.set(true);
+                churn.join();
+            }
+            assertTrue(domains.getEvictions() > 1);
+        }
+        assertEquals(2 + 200, KnowledgeBase.load(dir.resolve("foods.json").toString()).entityCount());
+    }
+}
@@ -0,0 +1,299 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Knowledge bases for several domains (animals, foods, people, ...), loaded on first use.
+// A domain is a knowledge base file <name>.kb or <name>.json, with optional
+// <name>.book and <name>.likelihood next to it.
+//
+// Loaded domains sit in an LRU cache with a memory budget: loading one that doesn't fit
+// evicts the least recently used, whose store is closed (so learned animals are saved)
+// and reloaded from disk if it is needed again. A domain is closed under its load lock,
+// so a reload waits for that last save. The domain just loaded is never evicted, so one
+// domain larger than the whole budget still works. Games keep the snapshot they
+// started on, whatever happens to the cache.
+//
+// A Router picks the domain for a game before the domain's Solver takes over, by asking
+// "is it one of the <domain>?" in order of how often each domain has been played.
+public final class DomainRegistry implements AutoCloseable {
+    public static final String DEFAULT_DIRECTORY = "domains";
+
+    private final long memoryBudget;
+    private final long flushSeconds;
+    private final Map<String, String> paths = new TreeMap<>();
+    private final Map<String, AtomicLong> games = new HashMap<>();
+    private final Map<String, ReentrantLock> loadLocks = new HashMap<>();
+    // Guarded by this
+    private final LinkedHashMap<String, Domain> loaded = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryUsed = 0;
+    private long loads = 0;
+    private long hits = 0;
+    private long evictions = 0;
+
+    public DomainRegistry(long memoryBudget) {
+        this(memoryBudget, 5);
+    }
+
+    // Learned animals are written back at most once per flushSeconds
+    public DomainRegistry(long memoryBudget, long flushSeconds) {
+        this.memoryBudget = memoryBudget;
+        this.flushSeconds = flushSeconds;
+    }
+
+    // Every knowledge base file in the directory, without loading any of them. A .kb
+    // file wins over a .json file of the same name.
+    public static DomainRegistry open(String directory, long memoryBudget) throws IOException {
+        File[] files = new File(directory).listFiles();
+        if (files == null) throw new FileNotFoundException("No domain directory " + directory);
+        DomainRegistry registry = new DomainRegistry(memoryBudget);
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".kb")) {
+                registry.register(name.substring(0, name.length() - 3), file.getPath());
+            } else if (name.endsWith(".json")) {
+                String domain = name.substring(0, name.length() - 5);
+                if (!new File(directory, domain + ".kb").exists()) registry.register(domain, file.getPath());
+            }
+        }
+        return registry;
+    }
+
+    // A knowledge base file, or a domain name looked up in the directory
+    public static String resolve(String nameOrPath, String directory) throws FileNotFoundException {
+        if (new File(nameOrPath).isFile()) return nameOrPath;
+        for (String extension : new String[] {".kb", ".json"}) {
+            File file = new File(directory, nameOrPath + extension);
+            if (file.isFile()) return file.getPath();
+        }
+        throw new FileNotFoundException("No knowledge base or domain named " + nameOrPath);
+    }
+
+    public synchronized void register(String name, String path) {
+        paths.put(name, path);
+        games.putIfAbsent(name, new AtomicLong());
+        loadLocks.putIfAbsent(name, new ReentrantLock());
+    }
+
+    public synchronized List<String> domains() {
+        return new ArrayList<>(paths.keySet());
+    }
+
+    // A loaded domain: the store learning into its knowledge base, and its optional
+    // opening book and likelihood model
+    public static final class Domain {
+        public final String name;
+        public final KnowledgeBaseStore store;
+        public final OpeningBook book;
+        public final LikelihoodModel model;
+        final long bytes;
+
+        Domain(String name, KnowledgeBaseStore store, OpeningBook book, LikelihoodModel model) {
+            this.name = name;
+            this.store = store;
+            this.book = book;
+            this.model = model;
+            this.bytes = footprint(store.snapshot());
+        }
+
+        public CompiledKnowledgeBase snapshot() {
+            return store.snapshot();
+        }
+    }
+
+    // Heap (or mapped) bytes of a knowledge base: columns plus names
+    static long footprint(CompiledKnowledgeBase kb) {
+        long bytes = kb.columnBytes();
+        for (int e = 0; e < kb.entityCount(); e++) bytes += 48 + kb.entityName(e).length();
+        for (int a = 0; a < kb.attributeCount(); a++) bytes += 48 + kb.attributeName(a).length();
+        return bytes;
+    }
+
+    // Loads the domain if it isn't in memory. Concurrent first uses of one domain load it
+    // once; other domains load in parallel.
+    public Domain get(String name) throws IOException {
+        ReentrantLock lock;
+        String path;
+        synchronized (this) {
+            Domain domain = loaded.get(name);
+            if (domain != null) {
+                hits++;
+                return domain;
+            }
+            path = paths.get(name);
+            lock = loadLocks.get(name);
+        }
+        if (path == null) throw new IllegalArgumentException("Unknown domain " + name);
+
+        lock.lock();
+        try {
+            synchronized (this) {
+                Domain domain = loaded.get(name);
+                if (domain != null) {
+                    hits++;
+                    return domain;
+                }
+            }
+            Domain domain = load(name, path);
+            List<Domain> evicted = new ArrayList<>();
+            List<ReentrantLock> evictedLocks = new ArrayList<>();
+            synchronized (this) {
+                loads++;
+                loaded.put(name, domain);
+                memoryUsed += domain.bytes;
+                Iterator<Domain> it = loaded.values().iterator();
+                while (memoryUsed > memoryBudget && it.hasNext()) {
+                    Domain eldest = it.next();
+                    if (eldest == domain) break;
+                    // Skipped if another thread holds its lock (it is looking the domain up)
+                    ReentrantLock eldestLock = loadLocks.get(eldest.name);
+                    if (!eldestLock.tryLock()) continue;
+                    it.remove();
+                    memoryUsed -= eldest.bytes;
+                    evictions++;
+                    evicted.add(eldest);
+                    evictedLocks.add(eldestLock);
+                }
+            }
+            closeEvicted(evicted, evictedLocks);
+            return domain;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Saves and closes evicted domains, then lets reloads of them go ahead
+    private static void closeEvicted(List<Domain> evicted, List<ReentrantLock> locks) throws IOException {
+        IOException failure = null;
+        for (int i = 0; i < evicted.size(); i++) {
+            try {
+                evicted.get(i).store.close();
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                locks.get(i).unlock();
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private Domain load(String name, String path) throws IOException {
+        String base = path.substring(0, path.lastIndexOf('.'));
+        KnowledgeBaseStore store = KnowledgeBaseStore.open(path, flushSeconds, TimeUnit.SECONDS);
+        OpeningBook book = new File(base + ".book").exists() ? OpeningBook.open(base + ".book") : null;
+        LikelihoodModel model = new File(base + ".likelihood").exists() ? LikelihoodModel.load(base + ".likelihood") : null;
+        return new Domain(name, store, book, model);
+    }
+
+    // A solver on the domain's current snapshot, with its opening book and likelihoods
+    public Solver newSolver(String name) throws IOException {
+        Domain domain = get(name);
+        games.get(name).incrementAndGet();
+        Solver solver = new Solver(domain.snapshot());
+        if (domain.book != null) solver.setOpeningBook(domain.book);
+        if (domain.model != null && domain.model.appliesTo(domain.snapshot())) solver.setLikelihoodModel(domain.model);
+        return solver;
+    }
+
+    // Learns into the domain's store, reloading it first if it was evicted meanwhile.
+    // A store closed between get() and learn() refuses the animal, and we try again on
+    // the reloaded one.
+    public int learn(String name, String animal, Map<String, Answer> answers) throws IOException {
+        Domain domain;
+        int changed;
+        while (true) {
+            domain = get(name);
+            try {
+                changed = domain.store.learn(animal, answers);
+                break;
+            } catch (IllegalStateException closed) {
+                // Evicted; get() reloads it once the final flush is done
+            }
+        }
+        if (changed > 0) {
+            long bytes = footprint(domain.store.snapshot());
+            synchronized (this) {
+                if (loaded.get(name) == domain) memoryUsed += bytes - domain.bytes;
+            }
+        }
+        return changed;
+    }
+
+    public synchronized boolean isLoaded(String name) {
+        return loaded.containsKey(name);
+    }
+
+    public synchronized long getMemoryUsed() {
+        return memoryUsed;
+    }
+
+    public synchronized long getLoads() {
+        return loads;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public Router router() {
+        List<String> order = domains();
+        order.sort(Comparator.comparingLong((String d) -> -games.get(d).get()));
+        return new Router(order);
+    }
+
+    // One game's way to its domain: "is it one of the <domain>?" for the most played
+    // domains first, until a yes or until one domain is left, which needs no question
+    public static final class Router {
+        private final List<String> order;
+        private int next = 0;
+        private String domain;
+
+        Router(List<String> order) {
+            this.order = order;
+            if (order.size() == 1) domain = order.get(0);
+        }
+
+        // The domain to ask about, or null once the domain is known
+        public String question() {
+            return domain != null || order.isEmpty() ? null : order.get(next);
+        }
+
+        public void answer(boolean yes) {
+            if (domain != null) return;
+            if (yes) {
+                domain = order.get(next);
+            } else if (++next == order.size() - 1) {
+                domain = order.get(next);
+            }
+        }
+
+        public String domain() {
+            return domain;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<Domain> open;
+        synchronized (this) {
+            open = new ArrayList<>(loaded.values());
+            loaded.clear();
+            memoryUsed = 0;
+        }
+        IOException failure = null;
+        for (Domain domain : open) {
+            try {
+                domain.store.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+}
@@ -2,126 +2,48 @@ import java.util.*;
 
 public class ExperimentRunner {
     private static final int TRIALS = 10000;
+    private static final double MAYBE_RATE = 0.05;
 
+    // Usage: ExperimentRunner [trials] [maybe rate] [seed] [threads] [batch size] [knowledge base]
+    // A batch size above 0 plays the games through BatchSolver. The knowledge base is a
+    // file or a domain name in the domains directory, animals.json by default.
     public static void main(String[] args) throws Exception {
-        // Load JSON once using KnowledgeBase
-        KnowledgeBase kb = new KnowledgeBase("animals.json");
-        Map<String, Map<String, Boolean>> animals = kb.getData();
-        List<String> animalList = new ArrayList<>(kb.getAnimals());
-        Random random = new Random();
-
-        int successes = 0;
-        int failures = 0;
-        Map<String, Integer> successCount = new HashMap<>();
-        Map<String, Integer> failureCount = new HashMap<>();
-        int totalQuestions = 0;
-
-        System.out.println("Running " + TRIALS + " simulated games...\n");
-
-        for (int trial = 0; trial < TRIALS; trial++) {
-
-            String target = animalList.get(random.nextInt(animalList.size()));
-            // System.out.println("Target animal is '" + target + "'.");
-            Solver solver = new Solver(animals);
-
-            int qCount = 0;
-
-            while (true) {
-
-                String result = solver.makeGuess();
-
-                if (result == null) {
-                    failures++;
-                    failureCount.put(target, failureCount.getOrDefault(target, 0) + 1);
-                    break;
-                }
-
-                if (result.startsWith("ATTR:")) {
-                    String attr = result.substring(5);
-
-                    Boolean truth = kb.getAttributes(target).get(attr);
-                    Answer answer;
-
-                    if (truth == null) answer = Answer.MAYBE;
-                    else {
-                        if (random.nextDouble() < .05) {
-                            answer = Answer.MAYBE;
-                        } else {
-                            answer = truth ? Answer.YES : Answer.NO;
-                        }
-                    }
-
-                    solver.applyAnswer(attr, answer);
-                    // System.out.println("AI answered attribute '" + attr + "' with " + answer);
-                    // System.out.println("===================================================");
-                    qCount++;
-                }
-
-                else if (result.startsWith("ANIMAL:")) {
-                    String guessAnimal = result.substring(7);
-
-                    if (guessAnimal.equals(target)) {
-                        successes++;
-                        // System.out.println("AI correctly guessed the animal '" + guessAnimal + "'.");
-                        successCount.put(target, successCount.getOrDefault(target, 0) + 1);
-                    } else {
-                        if (solver.hasMoreConcreteGuesses()) {
-                            // System.out.println("AI guessed wrong with '" + guessAnimal + "'. Trying next guess...");
-                            // System.out.println("===================================================");
-                            qCount++;
-                            continue;
-                        } else {
-                            failures++;
-                            // System.out.println("AI guessed animal '" + guessAnimal + "' but target was '" + target + "'.");
-                            failureCount.put(target, failureCount.getOrDefault(target, 0) + 1);
-                        }
-                    }
-
-                    qCount++;
-                    break;
-                }
-
-                // Safety: prevent infinite loops
-                if (qCount >= 20) {
-                    String fallback = solver.makeGuess();  // LET SOLVER TRY A CONCRETE GUESS
-
-                    if (fallback == null) {
-                        // System.out.println("AI ran out of fallback guesses.");
-                        failures++;
-                        failureCount.put(target, failureCount.getOrDefault(target, 0) + 1);
-                        break;
-                    }
-
-                    if (fallback.startsWith("ANIMAL:")) {
-                        String guessAnimal = fallback.substring(7);
-
-                        if (guessAnimal.equals(target)) {
-                            successes++;
-                            // System.out.println("AI correctly guessed the fallback animal '" + guessAnimal + "'.");
-                            successCount.put(target, successCount.getOrDefault(target, 0) + 1);
-                        } else {
-                            failures++;
-                            // System.out.println("AI fallback-guessed '" + guessAnimal + "' but target was '" + target + "'.");
-                            failureCount.put(target, failureCount.getOrDefault(target, 0) + 1);
-                        }
-
-                        break;
-                    }
-                }
-            }
-
-            totalQuestions += qCount;
+        int trials = args.length > 0 ? Integer.parseInt(args[0]) : TRIALS;
+        double maybeRate = args.length > 1 ? Double.parseDouble(args[1]) : MAYBE_RATE;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : System.nanoTime();
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        int batchSize = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        String kbPath = args.length > 5 ? DomainRegistry.resolve(args[5], DomainRegistry.DEFAULT_DIRECTORY) : "animals.json";
+
+        // Load the knowledge base once; every simulated game shares it
+        CompiledKnowledgeBase kb = KnowledgeBase.load(kbPath);
+
+        System.out.println("Running " + trials + " simulated games (seed " + seed + ", " + threads + " threads)...\n");
+
+        SimulationEngine engine = new SimulationEngine(kb, SimulationEngine.noisy(maybeRate), seed);
+        SimulationEngine.Results results = batchSize > 0
+            ? engine.runBatched(trials, threads, batchSize)
+            : engine.run(trials, threads);
+
+        long successes = results.successes;
+        long failures = results.failures;
+        long totalQuestions = results.totalQuestions;
+        Map<String, Integer> successCount = new LinkedHashMap<>();
+        Map<String, Integer> failureCount = new LinkedHashMap<>();
+        for (int e = 0; e < kb.entityCount(); e++) {
+            if (results.successCount[e] > 0) successCount.put(kb.entityName(e), (int) results.successCount[e]);
+            if (results.failureCount[e] > 0) failureCount.put(kb.entityName(e), (int) results.failureCount[e]);
         }
 
         // Summary
         System.out.println("======================================");
         System.out.println("          EXPERIMENT RESULTS");
         System.out.println("======================================");
-        System.out.println("Trials: " + TRIALS);
+        System.out.println("Trials: " + trials);
         System.out.println("Successes: " + successes);
         System.out.println("Failures: " + failures);
-        System.out.println("Success Rate: " + String.format("%.2f", (successes * 100.0 / TRIALS)) + "%");
-        System.out.println("Average Questions: " + String.format("%.2f", (totalQuestions / (double) TRIALS)));
+        System.out.println("Success Rate: " + String.format("%.2f", (successes * 100.0 / trials)) + "%");
+        System.out.println("Average Questions: " + String.format("%.2f", (totalQuestions / (double) trials)));
         if (successes > 0) {
             System.out.println("\nSuccessfully guessed the following animals:");
             for (String animal : successCount.keySet()) {
@@ -0,0 +1,144 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+// Line-based front end for the session registry. Every connection is served by its
+// own virtual thread, so blocked reads cost no platform threads.
+//
+//   NEW                        -> OK <id>
+//   STEP <id>                  -> ATTR <attribute> | ANIMAL <animal> | DONE
+//   ANSWER <id> <attr> <y|n|m> -> OK
+//   WRONG <id>                 -> OK MORE | OK NONE
+//   RIGHT <id>                 -> OK
+//   LEARN <id> <animal>        -> OK <cells learned>
+//   SAVE <id>                  -> OK <snapshot>   (base64url, restorable on any server)
+//   LOAD <snapshot>            -> OK <id>
+//   END <id>                   -> OK
+//   CACHE                      -> OK <step cache entries, weight, hits, misses, evictions>
+//   QUIT                       -> closes the connection
+public class GameServer {
+    private final SessionRegistry registry;
+
+    public GameServer(SessionRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void serve(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port)) {
+            System.out.println("Listening on port " + server.getLocalPort());
+            while (true) {
+                Socket socket = server.accept();
+                Thread.ofVirtual().name("game-", socket.getPort()).start(() -> handle(socket));
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                if (line.equalsIgnoreCase("QUIT")) break;
+                out.println(execute(line));
+            }
+        } catch (IOException e) {
+            // Client went away; its sessions expire on their own
+        }
+    }
+
+    public String execute(String line) {
+        String[] parts = line.split("\\s+");
+        try {
+            switch (parts[0].toUpperCase()) {
+                case "NEW":
+                    return "OK " + registry.create();
+                case "STEP": {
+                    String step = registry.step(Long.parseLong(parts[1]));
+                    if (step == null) return "DONE";
+                    if (step.startsWith("ATTR:")) return "ATTR " + step.substring("ATTR:".length());
+                    return "ANIMAL " + step.substring("ANIMAL:".length());
+                }
+                case "ANSWER": {
+                    Answer answer = parseAnswer(parts[3]);
+                    if (answer == null) return "ERR answer must be y, n or m";
+                    registry.answer(Long.parseLong(parts[1]), parts[2], answer);
+                    return "OK";
+                }
+                case "WRONG": {
+                    long id = Long.parseLong(parts[1]);
+                    if (registry.hasMoreGuesses(id)) return "OK MORE";
+                    registry.recordOutcome(id, false);
+                    return "OK NONE";
+                }
+                case "RIGHT":
+                    registry.recordOutcome(Long.parseLong(parts[1]), true);
+                    return "OK";
+                case "LEARN": {
+                    String animal = line.trim().split("\\s+", 3)[2];
+                    return "OK " + registry.learn(Long.parseLong(parts[1]), animal);
+                }
+                case "SAVE":
+                    return "OK " + Base64.getUrlEncoder().withoutPadding()
+                        .encodeToString(registry.snapshot(Long.parseLong(parts[1])));
+                case "LOAD":
+                    return "OK " + registry.restore(Base64.getUrlDecoder().decode(parts[1]));
+                case "END":
+                    registry.expire(Long.parseLong(parts[1]));
+                    return "OK";
+                case "CACHE": {
+                    StepCache cache = registry.getStepCache();
+                    return cache == null ? "OK NONE" : "OK " + cache.size() + " " + cache.weight() + " "
+                        + cache.getHits() + " " + cache.getMisses() + " " + cache.getEvictions();
+                }
+                default:
+                    return "ERR unknown command " + parts[0];
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return "ERR missing arguments";
+        } catch (RuntimeException e) {
+            return "ERR " + e.getMessage();
+        }
+    }
+
+    private static Answer parseAnswer(String s) {
+        switch (s.toLowerCase()) {
+            case "y":
+                return Answer.YES;
+            case "n":
+                return Answer.NO;
+            case "m":
+            case "s":
+                return Answer.MAYBE;
+            default:
+                return null;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 2020;
+        String kbPath = args.length > 1 ? args[1] : "animals.json";
+        String bookPath = args.length > 2 ? args[2] : "animals.book";
+
+        OpeningBook book = new File(bookPath).exists() ? OpeningBook.open(bookPath) : null;
+        // Likelihoods fitted for this knowledge base sit next to it
+        String likelihoodPath = kbPath.substring(0, Math.max(0, kbPath.lastIndexOf('.'))) + ".likelihood";
+        if (new File(likelihoodPath).exists()) {
+            LikelihoodModel.install(LikelihoodModel.load(likelihoodPath));
+        }
+
+        SolverMetrics.global().registerMBean();
+
+        try (KnowledgeBaseStore store = KnowledgeBaseStore.open(kbPath, 30, TimeUnit.SECONDS);
+             TranscriptLog transcripts = TranscriptLog.open("transcripts");
+             SessionRegistry registry = new SessionRegistry(store, book, 30, TimeUnit.MINUTES)) {
+            registry.setTranscriptLog(transcripts);
+            registry.setStepCache(new StepCache(64L << 20));
+            new GameServer(registry).serve(port);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.*;
+
+// Per-player game state. The knowledge base behind the solver is shared and
+// immutable; everything here belongs to one game.
+public class GameSession {
+    private final long id;
+    private final Solver solver;
+    private volatile long lastAccess;
+
+    public GameSession(long id, CompiledKnowledgeBase kb, OpeningBook book) {
+        this(id, kb, book, null);
+    }
+
+    public GameSession(long id, CompiledKnowledgeBase kb, OpeningBook book, TranscriptLog transcript) {
+        this(id, kb, book, transcript, null);
+    }
+
+    // Any of book, transcript and step cache may be null
+    public GameSession(long id, CompiledKnowledgeBase kb, OpeningBook book, TranscriptLog transcript, StepCache cache) {
+        this(id, new Solver(kb), book, transcript, cache);
+    }
+
+    private GameSession(long id, Solver solver, OpeningBook book, TranscriptLog transcript, StepCache cache) {
+        this.id = id;
+        this.solver = solver;
+        if (book != null) solver.setOpeningBook(book);
+        if (transcript != null) solver.setTranscript(transcript);
+        if (cache != null) solver.setStepCache(cache);
+        touch();
+    }
+
+    // Picks up a game saved with snapshot(), possibly on another node
+    public static GameSession restore(long id, CompiledKnowledgeBase kb, OpeningBook book, TranscriptLog transcript,
+                                      byte[] snapshot) {
+        return restore(id, kb, book, transcript, null, snapshot);
+    }
+
+    public static GameSession restore(long id, CompiledKnowledgeBase kb, OpeningBook book, TranscriptLog transcript,
+                                      StepCache cache, byte[] snapshot) {
+        return new GameSession(id, Solver.restore(kb, snapshot), book, transcript, cache);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    // One player may send requests from several connections, so each call holds the session lock
+    public synchronized String step() {
+        touch();
+        return solver.makeGuess();
+    }
+
+    public synchronized void answer(String attribute, Answer answer) {
+        touch();
+        solver.applyAnswer(attribute, answer);
+    }
+
+    public synchronized boolean hasMoreGuesses() {
+        touch();
+        return solver.hasMoreConcreteGuesses();
+    }
+
+    public synchronized Map<String, Answer> getUserAnswers() {
+        return new HashMap<>(solver.getUserAnswers());
+    }
+
+    public synchronized void recordOutcome(boolean won) {
+        touch();
+        solver.recordOutcome(won);
+    }
+
+    public synchronized void recordTarget(String animal) {
+        touch();
+        solver.recordTarget(animal);
+    }
+
+    public synchronized byte[] snapshot() {
+        touch();
+        return solver.snapshot();
+    }
+
+    public synchronized int getQuestionIndex() {
+        return solver.getQuestionIndex();
+    }
+
+    private void touch() {
+        lastAccess = System.nanoTime();
+    }
+}
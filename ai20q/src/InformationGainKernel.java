@@ -0,0 +1,402 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Scores attributes against a candidate bitmask. Split sizes come from AND + popcount
+// over the attribute bitsets and probability mass from the primitive posterior, so
+// scoring a turn does not allocate.
+//
+// On a sparse knowledge base the candidates are decoded to ids once per turn, and each
+// attribute costs the smaller of probing its compressed sets for every candidate or
+// walking its known facts against the mask, never a pass over all animals.
+//
+// For windows of hundreds of thousands of animals, scoreSampled() estimates the masses
+// from a sample of the window and only scores the most promising attributes exactly.
+public class InformationGainKernel {
+    // Attributes x bitset words below which parallel scoring isn't worth the fork overhead
+    public static final long DEFAULT_PARALLEL_THRESHOLD = 1L << 16;
+    private static final int MIN_ATTRIBUTES_PER_TASK = 16;
+
+    private final CompiledKnowledgeBase kb;
+    private final double[] log2Table;
+    private ForkJoinPool pool;
+    private long parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    private int bestAttribute = -1;
+    private double bestGain = Double.NEGATIVE_INFINITY;
+    private int[] candidateIds = new int[0];
+    private double gainErrorBound = 0.0;
+    private double[] cumulativeMass = new double[0];
+    private double[] draws = new double[0];
+    private int[] sample = new int[0];
+    private double[] upperBounds = new double[0];
+    private int[] chosen = new int[0];
+
+    public InformationGainKernel(CompiledKnowledgeBase kb) {
+        this.kb = kb;
+        this.log2Table = kb.log2Counts();
+    }
+
+    // Opt-in parallel scoring. Pass a null pool to go back to serial scoring.
+    public void setParallelism(ForkJoinPool pool, long threshold) {
+        this.pool = pool;
+        this.parallelThreshold = threshold;
+    }
+
+    // Finds the unasked attribute with the highest gain. Results are read back
+    // through getBestAttribute() / getBestGain().
+    public void score(long[] candidates, int candidateCount, double[] posterior, long[] asked) {
+        score(candidates, candidateCount, posterior, null, kb.attributeCount(), asked);
+    }
+
+    // Same, over just the listed attributes (in ascending id order), e.g. the
+    // informative ones from an AttributeIndex
+    public void score(long[] candidates, int candidateCount, double[] posterior, int[] attributes, int attributeCount) {
+        score(candidates, candidateCount, posterior, attributes, attributeCount, null);
+    }
+
+    private void score(long[] candidates, int candidateCount, double[] posterior, int[] list, int attributes,
+                       long[] asked) {
+        bestAttribute = -1;
+        bestGain = Double.NEGATIVE_INFINITY;
+        gainErrorBound = 0.0;
+        if (candidateCount == 0) return;
+
+        double candidateMass = mass(candidates, posterior);
+        int[] ids = kb.isSparse() ? decode(candidates, candidateCount) : null;
+        if (pool != null && (long) attributes * candidates.length >= parallelThreshold
+                && attributes >= 2 * MIN_ATTRIBUTES_PER_TASK) {
+            int grain = Math.max(MIN_ATTRIBUTES_PER_TASK, attributes / (pool.getParallelism() * 4));
+            ScoreTask task = new ScoreTask(0, attributes, grain, list, asked, candidates, ids, candidateCount, candidateMass, posterior);
+            pool.invoke(task);
+            bestAttribute = task.bestAttribute;
+            bestGain = task.bestGain;
+            return;
+        }
+
+        for (int i = 0; i < attributes; i++) {
+            int a = list == null ? i : list[i];
+            if (asked != null && (asked[a >>> 6] & (1L << a)) != 0) continue;
+
+            double infoGain = ids == null ? gain(a, candidates, candidateCount, candidateMass, posterior)
+                : sparseGain(a, candidates, ids, candidateCount, candidateMass, posterior);
+            if (infoGain > bestGain) {
+                bestGain = infoGain;
+                bestAttribute = a;
+            }
+        }
+    }
+
+    // Approximate scoring over the index's informative attributes. Their yes/no counts
+    // are exact; the yes/no masses are estimated from sampleSize candidates drawn (with
+    // replacement) in proportion to their posterior. By Hoeffding's inequality each mass
+    // fraction is then within eps = sqrt(ln(4 / delta) / (2 * sampleSize)) of the true one
+    // with probability 1 - delta/2, which bounds each estimated gain by
+    //
+    //   eps * (|log2 yes - log2 maybe| + |log2 no - log2 maybe|)
+    //
+    // since the maybe fraction is one minus the other two. The exactCount attributes with
+    // the highest upper bounds are scored exactly, and the best of them is the result.
+    // getGainErrorBound() says how much more, at most, an attribute left unscored could
+    // gain (with confidence 1 - delta each); 0 means none of them can beat it. The draws
+    // come from a SplitMix64 stream started at seed.
+    public void scoreSampled(long[] candidates, int candidateCount, double[] posterior, AttributeIndex index,
+                             int sampleSize, int exactCount, double delta, long seed) {
+        int[] list = index.informative();
+        int attributes = index.informativeCount();
+        if (attributes <= exactCount || candidateCount == 0 || sampleSize <= 0) {
+            score(candidates, candidateCount, posterior, list, attributes);
+            gainErrorBound = 0.0;
+            return;
+        }
+        bestAttribute = -1;
+        bestGain = Double.NEGATIVE_INFINITY;
+
+        // Cumulative posterior over the window, and sampleSize sorted draws against it
+        int[] ids = decode(candidates, candidateCount);
+        if (cumulativeMass.length < candidateCount) cumulativeMass = new double[candidateCount];
+        double candidateMass = 0.0;
+        for (int i = 0; i < candidateCount; i++) {
+            candidateMass += posterior[ids[i]];
+            cumulativeMass[i] = candidateMass;
+        }
+        if (draws.length < sampleSize) {
+            draws = new double[sampleSize];
+            sample = new int[sampleSize];
+        }
+        long state = seed;
+        for (int i = 0; i < sampleSize; i++) {
+            state += 0x9e3779b97f4a7c15L;
+            long z = (state ^ (state >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            draws[i] = ((z ^ (z >>> 31)) >>> 11) * 0x1.0p-53 * candidateMass;
+        }
+        Arrays.sort(draws, 0, sampleSize);
+        for (int i = 0, c = 0; i < sampleSize; i++) {
+            while (c < candidateCount - 1 && cumulativeMass[c] <= draws[i]) c++;
+            sample[i] = ids[c];
+        }
+
+        double eps = Math.sqrt(Math.log(4 / delta) / (2.0 * sampleSize));
+        if (upperBounds.length < attributes) upperBounds = new double[attributes];
+        for (int i = 0; i < attributes; i++) {
+            int a = list[i];
+            int yes = index.yesCount(a);
+            int no = index.noCount(a);
+            int maybe = candidateCount - yes - no;
+            int sampledYes = 0;
+            int sampledNo = 0;
+            if (kb.isSparse()) {
+                SparseBitmap trueSet = kb.trueSet(a);
+                SparseBitmap falseSet = kb.falseSet(a);
+                for (int j = 0; j < sampleSize; j++) {
+                    if (trueSet.contains(sample[j])) sampledYes++;
+                    else if (falseSet.contains(sample[j])) sampledNo++;
+                }
+            } else {
+                for (int j = 0; j < sampleSize; j++) {
+                    int e = sample[j];
+                    sampledYes += (int) (kb.trueWord(a, e >>> 6) >>> e) & 1;
+                    sampledNo += (int) (kb.falseWord(a, e >>> 6) >>> e) & 1;
+                }
+            }
+            double fYes = (double) sampledYes / sampleSize;
+            double fNo = (double) sampledNo / sampleSize;
+            double fMaybe = Math.max(0.0, 1.0 - fYes - fNo);
+            double estimate = log2Table[candidateCount]
+                - (fYes * log2Table[yes] + fNo * log2Table[no] + fMaybe * log2Table[maybe]);
+            upperBounds[i] = estimate + eps * (Math.abs(log2Table[yes] - log2Table[maybe])
+                + Math.abs(log2Table[no] - log2Table[maybe]));
+        }
+
+        // Positions of the exactCount highest upper bounds, then exact scores in id order
+        if (chosen.length < exactCount) chosen = new int[exactCount];
+        int chosenCount = 0;
+        for (int i = 0; i < attributes; i++) {
+            if (chosenCount == exactCount && upperBounds[i] <= upperBounds[chosen[chosenCount - 1]]) continue;
+            int k = chosenCount < exactCount ? chosenCount++ : chosenCount - 1;
+            while (k > 0 && upperBounds[i] > upperBounds[chosen[k - 1]]) {
+                chosen[k] = chosen[k - 1];
+                k--;
+            }
+            chosen[k] = i;
+        }
+        Arrays.sort(chosen, 0, chosenCount);
+        double exactMass = mass(candidates, posterior);
+        for (int k = 0; k < chosenCount; k++) {
+            int a = list[chosen[k]];
+            double infoGain = kb.isSparse() ? sparseGain(a, candidates, ids, candidateCount, exactMass, posterior)
+                : gain(a, candidates, candidateCount, exactMass, posterior);
+            if (infoGain > bestGain) {
+                bestGain = infoGain;
+                bestAttribute = a;
+            }
+        }
+
+        double unscored = Double.NEGATIVE_INFINITY;
+        for (int i = 0, k = 0; i < attributes; i++) {
+            if (k < chosenCount && chosen[k] == i) {
+                k++;
+            } else {
+                unscored = Math.max(unscored, upperBounds[i]);
+            }
+        }
+        gainErrorBound = bestAttribute < 0 ? Double.POSITIVE_INFINITY : Math.max(0.0, unscored - bestGain);
+    }
+
+    // Gain of asking one attribute, or NaN if it does not split the candidates at all.
+    // Only touches locals, so it is safe to call from several threads at once.
+    public double gain(int attr, long[] candidates, int candidateCount, double candidateMass, double[] posterior) {
+        if (kb.isSparse()) {
+            int[] ids = new int[candidateCount];
+            decodeInto(candidates, ids);
+            return sparseGain(attr, candidates, ids, candidateCount, candidateMass, posterior);
+        }
+        int yes = 0;
+        int no = 0;
+        double pYes = 0.0;
+        double pNo = 0.0;
+
+        for (int w = 0; w < candidates.length; w++) {
+            long c = candidates[w];
+            if (c == 0) continue;
+            long yesBits = c & kb.trueWord(attr, w);
+            long noBits = c & kb.falseWord(attr, w);
+            yes += Long.bitCount(yesBits);
+            no += Long.bitCount(noBits);
+            pYes += maskMass(yesBits, w, posterior);
+            pNo += maskMass(noBits, w, posterior);
+        }
+
+        return split(yes, no, pYes, pNo, candidateCount, candidateMass);
+    }
+
+    // Same sums as gain(), added in the same order (by id within a word, then word by word)
+    private double sparseGain(int attr, long[] candidates, int[] ids, int candidateCount, double candidateMass,
+                              double[] posterior) {
+        SparseBitmap trueSet = kb.trueSet(attr);
+        SparseBitmap falseSet = kb.falseSet(attr);
+        int known = trueSet.cardinality() + falseSet.cardinality();
+        if (known == 0) return Double.NaN;
+
+        int yes = 0;
+        int no = 0;
+        double pYes = 0.0;
+        double pNo = 0.0;
+        if (known <= candidateCount) {
+            yes = trueSet.andCardinality(candidates);
+            no = falseSet.andCardinality(candidates);
+            if (yes > 0) pYes = trueSet.andMass(candidates, posterior);
+            if (no > 0) pNo = falseSet.andMass(candidates, posterior);
+        } else {
+            for (int i = 0; i < candidateCount; ) {
+                int w = ids[i] >>> 6;
+                double wordYes = 0.0;
+                double wordNo = 0.0;
+                for (; i < candidateCount && ids[i] >>> 6 == w; i++) {
+                    int e = ids[i];
+                    if (trueSet.contains(e)) {
+                        yes++;
+                        wordYes += posterior[e];
+                    } else if (falseSet.contains(e)) {
+                        no++;
+                        wordNo += posterior[e];
+                    }
+                }
+                pYes += wordYes;
+                pNo += wordNo;
+            }
+        }
+        return split(yes, no, pYes, pNo, candidateCount, candidateMass);
+    }
+
+    private double split(int yes, int no, double pYes, double pNo, int candidateCount, double candidateMass) {
+        // If a question doesn't split the group at all, skip it
+        if (yes == 0 && no == 0) return Double.NaN;
+
+        int maybe = candidateCount - yes - no;
+        double pMaybe = Math.max(0.0, candidateMass - pYes - pNo);
+        double pTotal = pYes + pNo + pMaybe;
+
+        double hBefore = log2Table[candidateCount];
+        return hBefore - (pYes * log2Table[yes] + pNo * log2Table[no] + pMaybe * log2Table[maybe]) / pTotal;
+    }
+
+    public double mass(long[] candidates, double[] posterior) {
+        double total = 0.0;
+        for (int w = 0; w < candidates.length; w++) {
+            total += maskMass(candidates[w], w, posterior);
+        }
+        return total;
+    }
+
+    // Candidate ids in ascending order, in a buffer reused across turns
+    private int[] decode(long[] candidates, int candidateCount) {
+        if (candidateIds.length < candidateCount) candidateIds = new int[candidateCount];
+        decodeInto(candidates, candidateIds);
+        return candidateIds;
+    }
+
+    private static void decodeInto(long[] candidates, int[] ids) {
+        int n = 0;
+        for (int w = 0; w < candidates.length; w++) {
+            for (long b = candidates[w]; b != 0; b &= b - 1) ids[n++] = w << 6 | Long.numberOfTrailingZeros(b);
+        }
+    }
+
+    public double log2(int count) {
+        return log2Table[count];
+    }
+
+    public int getBestAttribute() {
+        return bestAttribute;
+    }
+
+    public double getBestGain() {
+        return bestGain;
+    }
+
+    // After scoreSampled(): how much more an attribute it didn't score exactly could gain
+    public double getGainErrorBound() {
+        return gainErrorBound;
+    }
+
+    // Scores a range of attributes (positions in the list, or ids when there is none),
+    // splitting it in half until it is small enough. Ties go to the lower attribute id,
+    // which is what the serial loop picks too.
+    private class ScoreTask extends RecursiveTask<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        // Leaf size, from the length of the list being scored
+        private final int grain;
+        private final int[] list;
+        private final long[] asked;
+        private final long[] candidates;
+        private final int[] ids;
+        private final int candidateCount;
+        private final double candidateMass;
+        private final double[] posterior;
+
+        int bestAttribute = -1;
+        double bestGain = Double.NEGATIVE_INFINITY;
+
+        ScoreTask(int from, int to, int grain, int[] list, long[] asked, long[] candidates, int[] ids, int candidateCount,
+                double candidateMass, double[] posterior) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.list = list;
+            this.asked = asked;
+            this.candidates = candidates;
+            this.ids = ids;
+            this.candidateCount = candidateCount;
+            this.candidateMass = candidateMass;
+            this.posterior = posterior;
+        }
+
+        @Override
+        protected Void compute() {
+            if (to - from <= grain) {
+                for (int i = from; i < to; i++) {
+                    int a = list == null ? i : list[i];
+                    if (asked != null && (asked[a >>> 6] & (1L << a)) != 0) continue;
+
+                    double infoGain = ids == null ? gain(a, candidates, candidateCount, candidateMass, posterior)
+                        : sparseGain(a, candidates, ids, candidateCount, candidateMass, posterior);
+                    if (infoGain > bestGain) {
+                        bestGain = infoGain;
+                        bestAttribute = a;
+                    }
+                }
+                return null;
+            }
+
+            int mid = (from + to) >>> 1;
+            ScoreTask left = new ScoreTask(from, mid, grain, list, asked, candidates, ids, candidateCount, candidateMass, posterior);
+            ScoreTask right = new ScoreTask(mid, to, grain, list, asked, candidates, ids, candidateCount, candidateMass, posterior);
+            invokeAll(left, right);
+
+            // The left half holds the lower ids, so it wins on equal gain
+            if (right.bestGain > left.bestGain) {
+                bestAttribute = right.bestAttribute;
+                bestGain = right.bestGain;
+            } else {
+                bestAttribute = left.bestAttribute;
+                bestGain = left.bestGain;
+            }
+            return null;
+        }
+    }
+
+    private static double maskMass(long bits, int word, double[] posterior) {
+        double sum = 0.0;
+        int base = word << 6;
+        while (bits != 0) {
+            sum += posterior[base + Long.numberOfTrailingZeros(bits)];
+            bits &= bits - 1;
+        }
+        return sum;
+    }
+}
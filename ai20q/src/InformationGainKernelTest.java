@@ -0,0 +1,193 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+public class InformationGainKernelTest {
+
+    private CompiledKnowledgeBase randomKnowledgeBase(int animals, int attributes, long seed) {
+        Random random = new Random(seed);
+        Map<String, Map<String, Boolean>> data = new LinkedHashMap<>();
+        for (int e = 0; e < animals; e++) {
+            Map<String, Boolean> attrs = new LinkedHashMap<>();
+            for (int a = 0; a < attributes; a++) {
+                double r = random.nextDouble();
+                attrs.put("attr" + a, r < 0.2 ? null : r < 0.6);
+            }
+            data.put("animal" + e, attrs);
+        }
+        return CompiledKnowledgeBase.compile(data);
+    }
+
+    // ---------------------------------------------
+    // Parallel scoring
+    // ---------------------------------------------
+
+    @Test
+    void testParallelScoringMatchesSerial() {
+        CompiledKnowledgeBase kb = randomKnowledgeBase(500, 300, 7);
+        InformationGainKernel serial = new InformationGainKernel(kb);
+        InformationGainKernel parallel = new InformationGainKernel(kb);
+        parallel.setParallelism(new ForkJoinPool(4), 0);
+
+        Random random = new Random(11);
+        for (int round = 0; round < 20; round++) {
+            long[] candidates = new long[kb.wordCount()];
+            int count = 0;
+            double[] posterior = new double[kb.entityCount()];
+            for (int e = 0; e < kb.entityCount(); e++) {
+                posterior[e] = random.nextDouble();
+                if (random.nextInt(3) > 0) {
+                    candidates[e >>> 6] |= 1L << e;
+                    count++;
+                }
+            }
+            long[] asked = new long[CompiledKnowledgeBase.wordsFor(kb.attributeCount())];
+            for (int a = 0; a < kb.attributeCount(); a += 1 + random.nextInt(5)) {
+                asked[a >>> 6] |= 1L << a;
+            }
+
+            serial.score(candidates, count, posterior, asked);
+            parallel.score(candidates, count, posterior, asked);
+
+            assertEquals(serial.getBestAttribute(), parallel.getBestAttribute());
+            assertEquals(serial.getBestGain(), parallel.getBestGain());
+        }
+    }
+
+    @Test
+    void testAttributeThatDoesNotSplitIsSkipped() {
+        Map<String, Map<String, Boolean>> data = new LinkedHashMap<>();
+        data.put("dog", new HashMap<>(Map.of("hasFur", true)));
+        data.put("shark", new HashMap<>(Map.of("hasFur", false)));
+        data.put("eel", new HashMap<>());
+        CompiledKnowledgeBase kb = CompiledKnowledgeBase.compile(data);
+        InformationGainKernel kernel = new InformationGainKernel(kb);
+
+        long[] onlyEel = { 1L << kb.entityId("eel") };
+        assertTrue(Double.isNaN(kernel.gain(kb.attributeId("hasFur"), onlyEel, 1, 1.0, new double[] { 1, 1, 1 })));
+    }
+
+    // ---------------------------------------------
+    // Attribute index
+    // ---------------------------------------------
+
+    @Test
+    void testIndexCountsFollowTheWindow() {
+        CompiledKnowledgeBase kb = randomKnowledgeBase(400, 120, 19);
+        AttributeIndex index = new AttributeIndex(kb);
+        InformationGainKernel kernel = new InformationGainKernel(kb);
+        long[] asked = new long[CompiledKnowledgeBase.wordsFor(kb.attributeCount())];
+        Random random = new Random(23);
+
+        long[] window = new long[kb.wordCount()];
+        for (int e = 0; e < kb.entityCount(); e++) window[e >>> 6] |= 1L << e;
+        for (int round = 0; round < 12; round++) {
+            // The window mostly shrinks, with an odd animal coming back
+            for (int e = 0; e < kb.entityCount(); e++) {
+                if (random.nextInt(3) == 0) window[e >>> 6] &= ~(1L << e);
+                else if (random.nextInt(50) == 0) window[e >>> 6] |= 1L << e;
+            }
+            int count = 0;
+            for (long word : window) count += Long.bitCount(word);
+            double[] posterior = new double[kb.entityCount()];
+            for (int e = 0; e < posterior.length; e++) posterior[e] = random.nextDouble();
+
+            index.update(window, count);
+            for (int a = 0; a < kb.attributeCount(); a++) {
+                if ((asked[a >>> 6] & (1L << a)) != 0) continue;
+                int yes = 0;
+                int no = 0;
+                for (int w = 0; w < window.length; w++) {
+                    yes += Long.bitCount(window[w] & kb.trueWord(a, w));
+                    no += Long.bitCount(window[w] & kb.falseWord(a, w));
+                }
+                assertEquals(yes, index.yesCount(a));
+                assertEquals(no, index.noCount(a));
+                assertEquals(count - yes - no, index.unknownCount(a));
+            }
+
+            kernel.score(window, count, posterior, asked);
+            int full = kernel.getBestAttribute();
+            double fullGain = kernel.getBestGain();
+            kernel.score(window, count, posterior, index.informative(), index.informativeCount());
+            if (fullGain > 0.001) {
+                assertEquals(full, kernel.getBestAttribute());
+                assertEquals(fullGain, kernel.getBestGain());
+            } else {
+                assertFalse(kernel.getBestGain() > 0.001);
+            }
+
+            if (full >= 0) {
+                asked[full >>> 6] |= 1L << full;
+                index.retire(full);
+            }
+        }
+        assertEquals(kb.attributeCount() - 12, index.liveCount());
+    }
+
+    // ---------------------------------------------
+    // Sampled scoring
+    // ---------------------------------------------
+
+    @Test
+    void testSampledScoringStaysWithinItsBound() {
+        CompiledKnowledgeBase kb = randomKnowledgeBase(4000, 150, 29);
+        InformationGainKernel kernel = new InformationGainKernel(kb);
+        AttributeIndex index = new AttributeIndex(kb);
+        Random random = new Random(31);
+        long[] window = new long[kb.wordCount()];
+        double[] posterior = new double[kb.entityCount()];
+        for (int e = 0; e < kb.entityCount(); e++) {
+            window[e >>> 6] |= 1L << e;
+            double r = random.nextDouble();
+            posterior[e] = r * r * r;
+        }
+        index.update(window, kb.entityCount());
+        kernel.score(window, kb.entityCount(), posterior, index.informative(), index.informativeCount());
+        int exact = kernel.getBestAttribute();
+        double exactGain = kernel.getBestGain();
+        double mass = kernel.mass(window, posterior);
+
+        for (int seed = 0; seed < 10; seed++) {
+            kernel.scoreSampled(window, kb.entityCount(), posterior, index, 500, 8, 0.05, seed);
+            int attr = kernel.getBestAttribute();
+            // The reported gain is the exact one, and no better than the true best
+            assertEquals(kernel.gain(attr, window, kb.entityCount(), mass, posterior), kernel.getBestGain(), 1e-12);
+            assertTrue(kernel.getBestGain() <= exactGain + 1e-12);
+            assertTrue(kernel.getBestGain() + kernel.getGainErrorBound() >= exactGain - 1e-12);
+        }
+
+        // Scoring every attribute exactly is plain scoring
+        kernel.scoreSampled(window, kb.entityCount(), posterior, index, 500, kb.attributeCount(), 0.05, 1);
+        assertEquals(exact, kernel.getBestAttribute());
+        assertEquals(exactGain, kernel.getBestGain());
+        assertEquals(0.0, kernel.getGainErrorBound());
+    }
+
+    @Test
+    void testSampledSolverStillFindsTheAnimal() {
+        CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(3000, 80, 0.5, 0.1, 37);
+        Random random = new Random(41);
+        for (int game = 0; game < 5; game++) {
+            int target = random.nextInt(kb.entityCount());
+            Solver solver = new Solver(kb);
+            solver.setSampledScoring(256, 400, 6, 0.05);
+            boolean won = false;
+            for (int turn = 0; turn < 40 && !won; turn++) {
+                String step = solver.makeGuess();
+                if (step == null) break;
+                if (step.startsWith("ANIMAL:")) {
+                    won = step.substring(7).equals(kb.entityName(target));
+                    continue;
+                }
+                String attribute = step.substring(5);
+                byte value = kb.value(target, kb.attributeId(attribute));
+                solver.applyAnswer(attribute, value == CompiledKnowledgeBase.TRUE ? Answer.YES
+                    : value == CompiledKnowledgeBase.FALSE ? Answer.NO : Answer.MAYBE);
+            }
+            assertTrue(won, kb.entityName(target));
+        }
+    }
+}
@@ -1,16 +1,34 @@
 import com.google.gson.*;
+import com.google.gson.stream.JsonWriter;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
 
 public class KnowledgeBase {
     private Map<String, Map<String, Boolean>> data;
+    private CompiledKnowledgeBase compiled;
 
     public KnowledgeBase(String filePath) throws IOException {
         Gson gson = new Gson();
-        Reader reader = new FileReader(filePath);
-        this.data = gson.fromJson(reader,
-            new com.google.gson.reflect.TypeToken<Map<String, Map<String, Boolean>>>(){}.getType());
-        reader.close();
+        try (Reader reader = new BufferedReader(new FileReader(filePath))) {
+            this.data = gson.fromJson(reader,
+                new com.google.gson.reflect.TypeToken<Map<String, Map<String, Boolean>>>(){}.getType());
+        }
+    }
+
+    // Maps a binary .kb file directly, or streams a JSON file into the compiled form
+    public static CompiledKnowledgeBase load(String filePath) throws IOException {
+        return load(filePath, false);
+    }
+
+    // Sparse loads JSON into the compressed form; binary files are mapped dense either way
+    public static CompiledKnowledgeBase load(String filePath, boolean sparse) throws IOException {
+        CompiledKnowledgeBase kb = filePath.endsWith(".kb") ? KnowledgeBaseFile.open(filePath)
+            : KnowledgeBaseIngest.ingest(filePath, null, 0, sparse);
+        // Group duplicate and complementary attributes now rather than in the first game
+        kb.attributeClasses();
+        return kb;
     }
 
     public Set<String> getAnimals() {
@@ -24,4 +42,38 @@ public class KnowledgeBase {
     public Map<String, Map<String, Boolean>> getData() {
         return data;
     }
+
+    // Writes the compiled form back out in the animals.json layout. The first animal lists
+    // every attribute, unknown ones as null, so a reload assigns the same attribute ids
+    // (in order of first appearance) and keeps attributes nobody knows yet; likelihood
+    // models and opening books stay valid across a flush.
+    public static void writeJson(CompiledKnowledgeBase kb, String filePath) throws IOException {
+        Path target = Paths.get(filePath).toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (JsonWriter out = new JsonWriter(Files.newBufferedWriter(temp, StandardCharsets.UTF_8))) {
+            out.setIndent("  ");
+            out.beginObject();
+            for (int e = 0; e < kb.entityCount(); e++) {
+                out.name(kb.entityName(e)).beginObject();
+                for (int a = 0; a < kb.attributeCount(); a++) {
+                    byte value = kb.value(e, a);
+                    if (value == CompiledKnowledgeBase.UNKNOWN) {
+                        if (e == 0) out.name(kb.attributeName(a)).nullValue();
+                        continue;
+                    }
+                    out.name(kb.attributeName(a)).value(value == CompiledKnowledgeBase.TRUE);
+                }
+                out.endObject();
+            }
+            out.endObject();
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public CompiledKnowledgeBase compile() {
+        if (compiled == null) {
+            compiled = CompiledKnowledgeBase.compile(data);
+        }
+        return compiled;
+    }
 }
@@ -0,0 +1,141 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+
+// Binary, memory-mappable knowledge base. Layout (little endian):
+//
+//   header   magic, version, entity count, attribute count, words per column,
+//            string table offset/length, columns offset, fingerprint
+//   strings  entity names then attribute names, each as int length + UTF-8 bytes
+//   columns  attribute count x (true words, false words), 8-byte aligned
+//
+// open() maps the file read-only and hands the column region to the compiled
+// knowledge base as-is, so nothing is parsed or copied and every JVM on the host
+// shares the same page cache.
+public class KnowledgeBaseFile {
+    private static final int MAGIC = 0x31424b41; // "AKB1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 56;
+
+    public static CompiledKnowledgeBase open(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a knowledge base file: " + path);
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException("Unsupported knowledge base version " + buffer.getInt(4) + ": " + path);
+            }
+            int entityCount = buffer.getInt(8);
+            int attributeCount = buffer.getInt(12);
+            int words = buffer.getInt(16);
+            long stringsOffset = buffer.getLong(24);
+            long columnsOffset = buffer.getLong(40);
+            long fingerprint = buffer.getLong(48);
+
+            buffer.position((int) stringsOffset);
+            String[] entities = readStrings(buffer, entityCount);
+            String[] attributes = readStrings(buffer, attributeCount);
+
+            buffer.position((int) columnsOffset);
+            buffer.limit((int) columnsOffset + attributeCount * 2 * words * Long.BYTES);
+            LongBuffer columns = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+
+            return new CompiledKnowledgeBase(entities, attributes, columns, fingerprint);
+        }
+    }
+
+    public static void write(CompiledKnowledgeBase kb, String path) throws IOException {
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        DataOutputStream stringOut = new DataOutputStream(strings);
+        for (int e = 0; e < kb.entityCount(); e++) writeString(stringOut, kb.entityName(e));
+        for (int a = 0; a < kb.attributeCount(); a++) writeString(stringOut, kb.attributeName(a));
+
+        long stringsOffset = HEADER_SIZE;
+        long columnsOffset = (stringsOffset + strings.size() + 7) & ~7L;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION)
+            .putInt(kb.entityCount()).putInt(kb.attributeCount())
+            .putInt(kb.wordCount()).putInt(0)
+            .putLong(stringsOffset).putLong(strings.size())
+            .putLong(columnsOffset).putLong(kb.fingerprint());
+        header.flip();
+
+        // Write to a temp file and move it over, so a mapped reader never sees half a file
+        Path target = Paths.get(path).toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(header);
+            channel.write(ByteBuffer.wrap(strings.toByteArray()));
+            channel.write(ByteBuffer.allocate((int) (columnsOffset - stringsOffset - strings.size())));
+
+            ByteBuffer chunk = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            if (kb.isSparse()) {
+                // The file is always dense; expand one column at a time
+                long[] column = new long[kb.wordCount()];
+                for (int a = 0; a < kb.attributeCount(); a++) {
+                    for (SparseBitmap set : new SparseBitmap[] {kb.trueSet(a), kb.falseSet(a)}) {
+                        Arrays.fill(column, 0L);
+                        set.toWords(column);
+                        for (long word : column) putLong(channel, chunk, word);
+                    }
+                }
+            } else {
+                LongBuffer columns = kb.columns();
+                columns.rewind();
+                while (columns.hasRemaining()) putLong(channel, chunk, columns.get());
+            }
+            chunk.flip();
+            while (chunk.hasRemaining()) channel.write(chunk);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void putLong(FileChannel channel, ByteBuffer chunk, long value) throws IOException {
+        chunk.putLong(value);
+        if (!chunk.hasRemaining()) {
+            chunk.flip();
+            while (chunk.hasRemaining()) channel.write(chunk);
+            chunk.clear();
+        }
+    }
+
+    private static String[] readStrings(ByteBuffer buffer, int count) {
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            names[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return names;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(Integer.reverseBytes(bytes.length));
+        out.write(bytes);
+    }
+
+    // Converts a JSON knowledge base into the binary format
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: KnowledgeBaseFile <knowledge base json> <output .kb>");
+            return;
+        }
+        long start = System.nanoTime();
+        CompiledKnowledgeBase kb = KnowledgeBaseIngest.ingest(args[0], (animals, attributes, skipped) ->
+            System.out.println("Read " + animals + " animals, " + attributes + " attributes"
+                + (skipped > 0 ? ", skipped " + skipped + " values" : "")), 100_000);
+        write(kb, args[1]);
+        System.out.println("Wrote " + kb.entityCount() + " animals x " + kb.attributeCount()
+            + " attributes in " + (System.nanoTime() - start) / 1_000_000 + " ms -> " + args[1]);
+    }
+}
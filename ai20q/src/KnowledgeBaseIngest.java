@@ -0,0 +1,129 @@
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+// Streams a JSON knowledge base ({"animal": {"attribute": true|false|null, ...}, ...})
+// one animal at a time straight into the columnar builder, so memory is bounded by
+// the compiled output rather than by a tree of maps.
+//
+// With sparse set, the builder and the result use the compressed sparse form, so
+// catalogs where most cells are unknown load in memory proportional to their facts.
+//
+// A shard ingest keeps only every shards-th animal (counting animals in file order)
+// but registers every attribute it sees, so all shards of one file agree on attribute
+// ids and shard-local animal l is animal l * shards + shard of the whole file.
+//
+// Missing attributes and nulls are unknown. Values that aren't booleans (or the
+// strings "true"/"false"/"yes"/"no") are skipped, treated as unknown and counted.
+public class KnowledgeBaseIngest {
+    public interface Listener {
+        void progress(int animals, int attributes, long skippedValues);
+    }
+
+    private final CompiledKnowledgeBase.Builder builder;
+    private final Listener listener;
+    private final int reportEvery;
+    private final int shard;
+    private final int shards;
+    private long skippedValues = 0;
+
+    private KnowledgeBaseIngest(Listener listener, int reportEvery, boolean sparse, int shard, int shards) {
+        this.builder = new CompiledKnowledgeBase.Builder(sparse);
+        this.listener = listener;
+        this.reportEvery = reportEvery;
+        this.shard = shard;
+        this.shards = shards;
+    }
+
+    public static CompiledKnowledgeBase ingest(String path) throws IOException {
+        return ingest(path, null, 0);
+    }
+
+    // The listener is called every reportEvery animals and once at the end
+    public static CompiledKnowledgeBase ingest(String path, Listener listener, int reportEvery) throws IOException {
+        return ingest(path, listener, reportEvery, false);
+    }
+
+    public static CompiledKnowledgeBase ingest(String path, Listener listener, int reportEvery, boolean sparse) throws IOException {
+        try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8), 1 << 16)) {
+            return ingest(reader, listener, reportEvery, sparse);
+        }
+    }
+
+    public static CompiledKnowledgeBase ingest(Reader reader, Listener listener, int reportEvery) throws IOException {
+        return ingest(reader, listener, reportEvery, false);
+    }
+
+    public static CompiledKnowledgeBase ingest(Reader reader, Listener listener, int reportEvery, boolean sparse) throws IOException {
+        return new KnowledgeBaseIngest(listener, reportEvery, sparse, 0, 1).read(new JsonReader(reader));
+    }
+
+    // Animal names must be unique in the file for shard ids to line up
+    public static CompiledKnowledgeBase ingestShard(String path, int shard, int shards, boolean sparse) throws IOException {
+        if (shard < 0 || shard >= shards) throw new IllegalArgumentException("Bad shard " + shard + " of " + shards);
+        try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8), 1 << 16)) {
+            return new KnowledgeBaseIngest(null, 0, sparse, shard, shards).read(new JsonReader(reader));
+        }
+    }
+
+    private CompiledKnowledgeBase read(JsonReader in) throws IOException {
+        long animals = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            String animal = in.nextName();
+            if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                in.skipValue();
+                skippedValues++;
+                continue;
+            }
+            if (animals++ % shards != shard) {
+                in.beginObject();
+                while (in.hasNext()) {
+                    builder.addAttribute(in.nextName());
+                    in.skipValue();
+                }
+                in.endObject();
+                continue;
+            }
+
+            int e = builder.addEntity(animal);
+            in.beginObject();
+            while (in.hasNext()) {
+                builder.set(e, in.nextName(), readValue(in));
+            }
+            in.endObject();
+
+            if (listener != null && reportEvery > 0 && builder.entityCount() % reportEvery == 0) {
+                listener.progress(builder.entityCount(), builder.attributeCount(), skippedValues);
+            }
+        }
+        in.endObject();
+
+        if (listener != null) {
+            listener.progress(builder.entityCount(), builder.attributeCount(), skippedValues);
+        }
+        return builder.build();
+    }
+
+    private Boolean readValue(JsonReader in) throws IOException {
+        switch (in.peek()) {
+            case BOOLEAN:
+                return in.nextBoolean();
+            case NULL:
+                in.nextNull();
+                return null;
+            case STRING: {
+                String s = in.nextString().trim().toLowerCase();
+                if (s.equals("true") || s.equals("yes")) return true;
+                if (s.equals("false") || s.equals("no")) return false;
+                skippedValues++;
+                return null;
+            }
+            default:
+                in.skipValue();
+                skippedValues++;
+                return null;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Holds the current knowledge base snapshot and learns new animals from finished games.
+//
+// Snapshots are immutable. Learning builds a new snapshot from a copy and publishes it
+// with an atomic swap, so games already running keep the snapshot they started with
+// and readers never lock. Changes are written back to disk in the background, at most
+// once per flush interval no matter how many animals were learned in between.
+public final class KnowledgeBaseStore implements AutoCloseable {
+    private final String path;
+    private final AtomicReference<CompiledKnowledgeBase> current;
+    private final Object writeLock = new Object();
+    private final ScheduledExecutorService flusher;
+    private volatile boolean dirty = false;
+    // Guarded by writeLock
+    private boolean closed = false;
+
+    public KnowledgeBaseStore(CompiledKnowledgeBase initial, String path, long flushInterval, TimeUnit unit) {
+        this.path = path;
+        this.current = new AtomicReference<>(initial);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "knowledge-base-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, unit);
+    }
+
+    public static KnowledgeBaseStore open(String path, long flushInterval, TimeUnit unit) throws IOException {
+        return new KnowledgeBaseStore(KnowledgeBase.load(path), path, flushInterval, unit);
+    }
+
+    public CompiledKnowledgeBase snapshot() {
+        return current.get();
+    }
+
+    // Adds the animal, or fills in what we didn't know about it, from the answers the
+    // player gave while thinking of it. YES/NO set the value; MAYBE and unknown
+    // attributes are ignored. Values the knowledge base already has are kept.
+    // Returns the number of cells that changed. A closed store has made its last flush,
+    // so learning into it throws instead of losing the animal.
+    public int learn(String animal, Map<String, Answer> answers) {
+        synchronized (writeLock) {
+            if (closed) throw new IllegalStateException("Knowledge base store " + path + " is closed");
+            CompiledKnowledgeBase kb = current.get();
+            CompiledKnowledgeBase.Builder builder = new CompiledKnowledgeBase.Builder(kb);
+            boolean isNew = kb.entityId(animal) < 0;
+            int e = builder.addEntity(animal);
+
+            int changed = 0;
+            for (Map.Entry<String, Answer> entry : answers.entrySet()) {
+                if (entry.getValue() == Answer.MAYBE || kb.attributeId(entry.getKey()) < 0) continue;
+                if (builder.value(e, entry.getKey()) != CompiledKnowledgeBase.UNKNOWN) continue;
+                builder.set(e, entry.getKey(), entry.getValue() == Answer.YES);
+                changed++;
+            }
+            if (changed == 0 && !isNew) return 0;
+
+            current.set(builder.build());
+            dirty = true;
+            return changed;
+        }
+    }
+
+    public void flush() throws IOException {
+        if (!dirty || path == null) return;
+        dirty = false;
+        CompiledKnowledgeBase kb = current.get();
+        try {
+            if (path.endsWith(".kb")) {
+                KnowledgeBaseFile.write(kb, path);
+            } else {
+                KnowledgeBase.writeJson(kb, path);
+            }
+        } catch (IOException e) {
+            dirty = true;
+            throw e;
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("Could not save knowledge base to " + path + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (writeLock) {
+            closed = true;
+        }
+        flush();
+    }
+}
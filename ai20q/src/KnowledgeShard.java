@@ -0,0 +1,452 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// One slice of a knowledge base too big for a single process: every shards-th animal of
+// the catalog (animal id % shards == shard) with all of its attributes. For every game it
+// takes part in, a shard keeps the unnormalised log posterior of its own animals.
+//
+// A ShardCluster coordinator drives the shards turn by turn. It asks each one for its best
+// few animals and its posterior mass, merges those into the global normaliser and window
+// threshold, then asks for per-attribute yes/no counts and masses over the shard's part of
+// the window. Only those fixed-size vectors cross the wire, never animal data.
+//
+// Likelihoods are the attribute-level rows of the installed model; per-animal overrides
+// are keyed by whole-catalog ids and are not used here.
+//
+// Run as a worker: KnowledgeShard <knowledge base> <shard> <shards> [port] [--parent]
+// It listens on the port (0 for any free one) and prints "READY <port>" once loaded.
+// With --parent it exits when its standard input closes, i.e. when the process that
+// launched it goes away.
+public class KnowledgeShard implements ShardCluster.Shard {
+    static final int HELLO = 1;
+    static final int START = 2;
+    static final int ANSWER = 3;
+    static final int TOP = 4;
+    static final int SPLIT = 5;
+    static final int END = 6;
+
+    private final CompiledKnowledgeBase kb;
+    private final int shard;
+    private final int shards;
+    private final LikelihoodModel model;
+    private final Map<Long, Game> games = new ConcurrentHashMap<>();
+
+    private static final class Game {
+        final double[] logPosterior;
+        final long[] window;
+
+        Game(int entities, int words, double logPrior) {
+            this.logPosterior = new double[entities];
+            this.window = new long[words];
+            Arrays.fill(logPosterior, logPrior);
+        }
+    }
+
+    public KnowledgeShard(CompiledKnowledgeBase kb, int shard, int shards) {
+        this.kb = kb;
+        this.shard = shard;
+        this.shards = shards;
+        this.model = LikelihoodModel.current(kb);
+    }
+
+    // Streams only this shard's animals out of a JSON file; a binary .kb file is mapped
+    // whole and partitioned
+    public static KnowledgeShard load(String path, int shard, int shards, boolean sparse) throws IOException {
+        CompiledKnowledgeBase kb = path.endsWith(".kb") ? partition(KnowledgeBaseFile.open(path), shard, shards, sparse)
+            : KnowledgeBaseIngest.ingestShard(path, shard, shards, sparse);
+        kb.attributeClasses();
+        return new KnowledgeShard(kb, shard, shards);
+    }
+
+    // This shard's animals of a whole knowledge base, with every attribute in the same order
+    public static CompiledKnowledgeBase partition(CompiledKnowledgeBase kb, int shard, int shards, boolean sparse) {
+        CompiledKnowledgeBase.Builder builder = new CompiledKnowledgeBase.Builder(sparse);
+        for (int a = 0; a < kb.attributeCount(); a++) builder.addAttribute(kb.attributeName(a));
+        for (int e = shard; e < kb.entityCount(); e += shards) {
+            int local = builder.addEntity(kb.entityName(e));
+            for (int a = 0; a < kb.attributeCount(); a++) {
+                byte value = kb.value(e, a);
+                if (value != CompiledKnowledgeBase.UNKNOWN) {
+                    builder.set(local, kb.attributeName(a), value == CompiledKnowledgeBase.TRUE);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    public CompiledKnowledgeBase knowledgeBase() {
+        return kb;
+    }
+
+    private int globalId(int local) {
+        return local * shards + shard;
+    }
+
+    @Override
+    public Info info() {
+        String[] names = new String[kb.attributeCount()];
+        int[] classes = new int[kb.attributeCount()];
+        AttributeClasses attributeClasses = kb.attributeClasses();
+        for (int a = 0; a < names.length; a++) {
+            names[a] = kb.attributeName(a);
+            classes[a] = attributeClasses.representative(a) << 1 | (attributeClasses.isNegated(a) ? 1 : 0);
+        }
+        return new Info(kb.entityCount(), names, classes);
+    }
+
+    // Every animal starts at logPrior, the same uniform prior a single solver would use,
+    // so sums of log-likelihoods round alike
+    @Override
+    public void start(long game, double logPrior) {
+        games.put(game, new Game(kb.entityCount(), kb.wordCount(), logPrior));
+    }
+
+    @Override
+    public void end(long game) {
+        games.remove(game);
+    }
+
+    private Game game(long game) {
+        Game g = games.get(game);
+        if (g == null) throw new IllegalArgumentException("Unknown game " + game + " on shard " + shard);
+        return g;
+    }
+
+    @Override
+    public void apply(long game, int attribute, Answer answer) {
+        double[] logPosterior = game(game).logPosterior;
+        double logYes = model.logLikelihood(attribute, answer, CompiledKnowledgeBase.TRUE);
+        double logNo = model.logLikelihood(attribute, answer, CompiledKnowledgeBase.FALSE);
+        double logUnknown = model.logLikelihood(attribute, answer, CompiledKnowledgeBase.UNKNOWN);
+        if (logYes == logNo && logNo == logUnknown) return;
+
+        for (int e = 0; e < logPosterior.length; e++) {
+            byte value = kb.value(e, attribute);
+            logPosterior[e] += value == CompiledKnowledgeBase.TRUE ? logYes
+                : value == CompiledKnowledgeBase.FALSE ? logNo : logUnknown;
+        }
+    }
+
+    // The shard's k best animals, best first (ties to the lower id), and its log mass
+    // as max + log(sum of exp(logPosterior - max))
+    @Override
+    public Top top(long game, int k) {
+        double[] logPosterior = game(game).logPosterior;
+        double max = Double.NEGATIVE_INFINITY;
+        for (double lp : logPosterior) max = Math.max(max, lp);
+        double sum = 0.0;
+        for (double lp : logPosterior) sum += Math.exp(lp - max);
+
+        int[] best = new int[Math.min(k, logPosterior.length)];
+        int count = 0;
+        for (int e = 0; e < logPosterior.length; e++) {
+            if (count == best.length && !(logPosterior[e] > logPosterior[best[count - 1]])) continue;
+            int i = count < best.length ? count++ : count - 1;
+            while (i > 0 && logPosterior[e] > logPosterior[best[i - 1]]) {
+                best[i] = best[i - 1];
+                i--;
+            }
+            best[i] = e;
+        }
+
+        int[] ids = new int[count];
+        double[] logs = new double[count];
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = globalId(best[i]);
+            logs[i] = logPosterior[best[i]];
+            names[i] = kb.entityName(best[i]);
+        }
+        return new Top(max, sum, ids, logs, names);
+    }
+
+    // Window: animals with probability exp(logPosterior - logZ) at or above threshold,
+    // plus the forced ones (whole-catalog ids) that live here. Returns the window's count
+    // and mass, and per attribute not in asked its yes/no counts and masses.
+    @Override
+    public Split split(long game, double logZ, double threshold, int[] forced, long[] asked) {
+        Game g = game(game);
+        double[] logPosterior = g.logPosterior;
+        long[] window = g.window;
+        Arrays.fill(window, 0L);
+        for (int e = 0; e < logPosterior.length; e++) {
+            if (Math.exp(logPosterior[e] - logZ) >= threshold) window[e >>> 6] |= 1L << e;
+        }
+        for (int id : forced) {
+            if (id % shards != shard) continue;
+            int local = id / shards;
+            if (local < logPosterior.length) window[local >>> 6] |= 1L << local;
+        }
+
+        int count = 0;
+        double mass = 0.0;
+        for (int w = 0; w < window.length; w++) {
+            count += Long.bitCount(window[w]);
+            mass += mass(window[w], w, logPosterior, logZ);
+        }
+
+        int attributes = kb.attributeCount();
+        Split split = new Split(count, mass, attributes);
+        for (int a = 0; a < attributes; a++) {
+            if ((asked[a >>> 6] & (1L << a)) != 0) continue;
+            int yes = 0;
+            int no = 0;
+            double pYes = 0.0;
+            double pNo = 0.0;
+            for (int w = 0; w < window.length; w++) {
+                long c = window[w];
+                if (c == 0) continue;
+                long t = c & kb.trueWord(a, w);
+                long f = c & kb.falseWord(a, w);
+                yes += Long.bitCount(t);
+                no += Long.bitCount(f);
+                pYes += mass(t, w, logPosterior, logZ);
+                pNo += mass(f, w, logPosterior, logZ);
+            }
+            split.yes[a] = yes;
+            split.no[a] = no;
+            split.pYes[a] = pYes;
+            split.pNo[a] = pNo;
+        }
+        return split;
+    }
+
+    private static double mass(long bits, int w, double[] logPosterior, double logZ) {
+        double total = 0.0;
+        for (; bits != 0; bits &= bits - 1) {
+            total += Math.exp(logPosterior[w << 6 | Long.numberOfTrailingZeros(bits)] - logZ);
+        }
+        return total;
+    }
+
+    @Override
+    public void close() {
+        games.clear();
+    }
+
+    // ---------------------------------------------
+    // Messages
+    // ---------------------------------------------
+
+    // Sent once per connection: animal count, attribute names and the shard's attribute
+    // classes as representative << 1 | negated
+    public static final class Info {
+        public final int entityCount;
+        public final String[] attributeNames;
+        public final int[] classes;
+
+        Info(int entityCount, String[] attributeNames, int[] classes) {
+            this.entityCount = entityCount;
+            this.attributeNames = attributeNames;
+            this.classes = classes;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(entityCount);
+            out.writeInt(attributeNames.length);
+            for (int a = 0; a < attributeNames.length; a++) {
+                out.writeUTF(attributeNames[a]);
+                out.writeInt(classes[a]);
+            }
+        }
+
+        static Info read(DataInputStream in) throws IOException {
+            int entities = in.readInt();
+            String[] names = new String[in.readInt()];
+            int[] classes = new int[names.length];
+            for (int a = 0; a < names.length; a++) {
+                names[a] = in.readUTF();
+                classes[a] = in.readInt();
+            }
+            return new Info(entities, names, classes);
+        }
+    }
+
+    public static final class Top {
+        public final double logMax;
+        public final double sum;
+        public final int[] ids;
+        public final double[] logPosterior;
+        public final String[] names;
+
+        Top(double logMax, double sum, int[] ids, double[] logPosterior, String[] names) {
+            this.logMax = logMax;
+            this.sum = sum;
+            this.ids = ids;
+            this.logPosterior = logPosterior;
+            this.names = names;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeDouble(logMax);
+            out.writeDouble(sum);
+            out.writeInt(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                out.writeInt(ids[i]);
+                out.writeDouble(logPosterior[i]);
+                out.writeUTF(names[i]);
+            }
+        }
+
+        static Top read(DataInputStream in) throws IOException {
+            double max = in.readDouble();
+            double sum = in.readDouble();
+            int n = in.readInt();
+            int[] ids = new int[n];
+            double[] logs = new double[n];
+            String[] names = new String[n];
+            for (int i = 0; i < n; i++) {
+                ids[i] = in.readInt();
+                logs[i] = in.readDouble();
+                names[i] = in.readUTF();
+            }
+            return new Top(max, sum, ids, logs, names);
+        }
+    }
+
+    // 24 bytes per attribute, whatever the size of the shard
+    public static final class Split {
+        public final int count;
+        public final double mass;
+        public final int[] yes;
+        public final int[] no;
+        public final double[] pYes;
+        public final double[] pNo;
+
+        Split(int count, double mass, int attributes) {
+            this.count = count;
+            this.mass = mass;
+            this.yes = new int[attributes];
+            this.no = new int[attributes];
+            this.pYes = new double[attributes];
+            this.pNo = new double[attributes];
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(count);
+            out.writeDouble(mass);
+            out.writeInt(yes.length);
+            for (int a = 0; a < yes.length; a++) {
+                out.writeInt(yes[a]);
+                out.writeInt(no[a]);
+                out.writeDouble(pYes[a]);
+                out.writeDouble(pNo[a]);
+            }
+        }
+
+        static Split read(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            double mass = in.readDouble();
+            Split split = new Split(count, mass, in.readInt());
+            for (int a = 0; a < split.yes.length; a++) {
+                split.yes[a] = in.readInt();
+                split.no[a] = in.readInt();
+                split.pYes[a] = in.readDouble();
+                split.pNo[a] = in.readDouble();
+            }
+            return split;
+        }
+    }
+
+    // ---------------------------------------------
+    // Worker
+    // ---------------------------------------------
+
+    public void serve(ServerSocket server) throws IOException {
+        while (true) {
+            Socket socket = server.accept();
+            Thread.ofVirtual().name("shard-", socket.getPort()).start(() -> handle(socket));
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            socket.setTcpNoDelay(true);
+            Answer[] answers = Answer.values();
+            while (true) {
+                int op = in.read();
+                if (op < 0) break;
+                switch (op) {
+                    case HELLO:
+                        info().write(out);
+                        break;
+                    case START: {
+                        long game = in.readLong();
+                        start(game, in.readDouble());
+                        out.writeByte(0);
+                        break;
+                    }
+                    case ANSWER: {
+                        long game = in.readLong();
+                        int attribute = in.readInt();
+                        apply(game, attribute, answers[in.readByte()]);
+                        out.writeByte(0);
+                        break;
+                    }
+                    case TOP: {
+                        long game = in.readLong();
+                        top(game, in.readInt()).write(out);
+                        break;
+                    }
+                    case SPLIT: {
+                        long game = in.readLong();
+                        double logZ = in.readDouble();
+                        double threshold = in.readDouble();
+                        int[] forced = new int[in.readInt()];
+                        for (int i = 0; i < forced.length; i++) forced[i] = in.readInt();
+                        long[] asked = new long[in.readInt()];
+                        for (int i = 0; i < asked.length; i++) asked[i] = in.readLong();
+                        split(game, logZ, threshold, forced, asked).write(out);
+                        break;
+                    }
+                    case END:
+                        end(in.readLong());
+                        out.writeByte(0);
+                        break;
+                    default:
+                        throw new IOException("Unknown shard request " + op);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Coordinator went away; its games end with it
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: KnowledgeShard <knowledge base> <shard> <shards> [port] [--parent]");
+            return;
+        }
+        int shard = Integer.parseInt(args[1]);
+        int shards = Integer.parseInt(args[2]);
+        int port = args.length > 3 && !args[3].startsWith("--") ? Integer.parseInt(args[3]) : 0;
+        boolean parent = Arrays.asList(args).contains("--parent");
+
+        if (new File("animals.likelihood").exists()) {
+            LikelihoodModel.install(LikelihoodModel.load("animals.likelihood"));
+        }
+        KnowledgeShard worker = load(args[0], shard, shards, false);
+        if (parent) {
+            Thread.ofPlatform().daemon().start(() -> {
+                try {
+                    while (System.in.read() >= 0) {
+                        // Nothing is sent; we only wait for the end of the stream
+                    }
+                } catch (IOException e) {
+                    // Treated like end of stream
+                }
+                System.exit(0);
+            });
+        }
+        try (ServerSocket server = new ServerSocket(port)) {
+            System.out.println("READY " + server.getLocalPort());
+            System.out.flush();
+            worker.serve(server);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.*;
+
+// Counts how players actually answer, given what the knowledge base says about the
+// animal they were thinking of, and turns the counts into a LikelihoodModel.
+//
+// Rows are add-alpha (Laplace) smoothed towards a prior: attribute rows towards the
+// default table (normalised per value), and (animal, attribute) rows towards their
+// attribute's row. An attribute with few observations stays close to the default,
+// and only pairs seen often enough get an override at all.
+public class LikelihoodEstimator {
+    private final CompiledKnowledgeBase kb;
+    // counts[attribute * 9 + value * 3 + answer]
+    private final int[] counts;
+    private final HashMap<Long, int[]> entityCounts = new HashMap<>();
+    private long observations = 0;
+
+    public LikelihoodEstimator(CompiledKnowledgeBase kb) {
+        this.kb = kb;
+        this.counts = new int[kb.attributeCount() * 9];
+    }
+
+    public void observe(int entity, int attribute, Answer answer) {
+        int cell = kb.value(entity, attribute) * 3 + answer.ordinal();
+        counts[attribute * 9 + cell]++;
+        entityCounts.computeIfAbsent(LikelihoodModel.key(entity, attribute), k -> new int[9])[cell]++;
+        observations++;
+    }
+
+    // Every answer from one finished game where we know what the animal was
+    public void observeGame(String animal, Map<String, Answer> answers) {
+        int entity = kb.entityId(animal);
+        if (entity < 0) return;
+        for (Map.Entry<String, Answer> entry : answers.entrySet()) {
+            int attribute = kb.attributeId(entry.getKey());
+            if (attribute >= 0) observe(entity, attribute, entry.getValue());
+        }
+    }
+
+    public long getObservations() {
+        return observations;
+    }
+
+    public LikelihoodModel estimate(double alpha, int minEntityObservations) {
+        if (alpha <= 0) {
+            throw new IllegalArgumentException("alpha must be positive: " + alpha);
+        }
+        int attributes = kb.attributeCount();
+        double[] prior = new double[9];
+        for (byte value = 0; value < 3; value++) {
+            for (Answer answer : Answer.values()) {
+                prior[value * 3 + answer.ordinal()] = LikelihoodModel.defaultLikelihood(answer, value);
+            }
+        }
+        normalizeRows(prior);
+
+        double[] attributeRows = new double[attributes * 9];
+        for (int a = 0; a < attributes; a++) {
+            smooth(counts, a * 9, prior, 0, alpha, attributeRows, a * 9);
+        }
+
+        long[] keys = new long[entityCounts.size()];
+        int overrides = 0;
+        for (Map.Entry<Long, int[]> entry : entityCounts.entrySet()) {
+            int total = 0;
+            for (int c : entry.getValue()) total += c;
+            if (total >= minEntityObservations) keys[overrides++] = entry.getKey();
+        }
+        keys = Arrays.copyOf(keys, overrides);
+        Arrays.sort(keys);
+
+        double[] overrideRows = new double[overrides * 9];
+        for (int i = 0; i < overrides; i++) {
+            int attribute = (int) (keys[i] >>> 32);
+            smooth(entityCounts.get(keys[i]), 0, attributeRows, attribute * 9, alpha, overrideRows, i * 9);
+        }
+
+        toLog(attributeRows);
+        toLog(overrideRows);
+        return new LikelihoodModel(LikelihoodModel.attributeHash(kb, attributes), attributes, attributeRows, keys, overrideRows);
+    }
+
+    // P(answer | value) = (count + alpha * prior) / (total + alpha), one value row at a time
+    private static void smooth(int[] count, int countAt, double[] prior, int priorAt, double alpha, double[] out, int outAt) {
+        for (int value = 0; value < 3; value++) {
+            int total = 0;
+            for (int answer = 0; answer < 3; answer++) total += count[countAt + value * 3 + answer];
+            for (int answer = 0; answer < 3; answer++) {
+                int cell = value * 3 + answer;
+                out[outAt + cell] = (count[countAt + cell] + alpha * prior[priorAt + cell]) / (total + alpha);
+            }
+        }
+    }
+
+    private static void normalizeRows(double[] row) {
+        for (int value = 0; value < 3; value++) {
+            double total = row[value * 3] + row[value * 3 + 1] + row[value * 3 + 2];
+            for (int answer = 0; answer < 3; answer++) row[value * 3 + answer] /= total;
+        }
+    }
+
+    private static void toLog(double[] rows) {
+        for (int i = 0; i < rows.length; i++) rows[i] = Math.log(rows[i]);
+    }
+}
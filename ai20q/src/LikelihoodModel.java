@@ -0,0 +1,181 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+// P(answer | stored value) for the Bayesian update, as log-likelihoods in flat tables.
+//
+// Every attribute has a 3x3 row (stored value x answer). A few (animal, attribute)
+// pairs can override their attribute's row; they are kept sorted by attribute then
+// animal, so an attribute without overrides costs one binary search to rule out.
+// Attributes the model doesn't cover fall back to the default row, which is the
+// original 0.85 / 0.1 / 0.5 table.
+//
+// Models are immutable. The installed model can be swapped at any time; each game
+// picks up whichever model is installed when its solver is created.
+public final class LikelihoodModel {
+    private static final int MAGIC = 0x4c4b4d31; // "LKM1"
+
+    // Indexed by value * 3 + answer ordinal, with values UNKNOWN, TRUE, FALSE
+    private static final double[] DEFAULT_ROW = {
+        0.5, 0.5, 0.5,
+        0.85, 0.1, 0.5,
+        0.1, 0.85, 0.5,
+    };
+
+    public static final LikelihoodModel DEFAULT = new LikelihoodModel(0, 0, new double[0], new long[0], new double[0]);
+
+    private static final AtomicReference<LikelihoodModel> installed = new AtomicReference<>(DEFAULT);
+
+    private static final double[] DEFAULT_LOG_ROW = new double[9];
+    static {
+        for (int i = 0; i < 9; i++) DEFAULT_LOG_ROW[i] = Math.log(DEFAULT_ROW[i]);
+    }
+
+    // Hash of the names of the attributes this model covers, so a model estimated on one
+    // knowledge base still applies after animals are learned (attribute ids don't move)
+    private final long attributeHash;
+    private final int attributeCount;
+    private final double[] attributeLog;
+    private final long[] overrideKeys;
+    private final double[] overrideLog;
+    private volatile CompiledKnowledgeBase lastChecked;
+    private long contentHash;
+
+    LikelihoodModel(long attributeHash, int attributeCount, double[] attributeLog, long[] overrideKeys, double[] overrideLog) {
+        this.attributeHash = attributeHash;
+        this.attributeCount = attributeCount;
+        this.attributeLog = attributeLog;
+        this.overrideKeys = overrideKeys;
+        this.overrideLog = overrideLog;
+    }
+
+    public static LikelihoodModel installed() {
+        return installed.get();
+    }
+
+    public static void install(LikelihoodModel model) {
+        installed.set(model == null ? DEFAULT : model);
+    }
+
+    // The installed model if it was built for this knowledge base's attributes, else the default
+    public static LikelihoodModel current(CompiledKnowledgeBase kb) {
+        LikelihoodModel model = installed.get();
+        return model.appliesTo(kb) ? model : DEFAULT;
+    }
+
+    public boolean appliesTo(CompiledKnowledgeBase kb) {
+        if (attributeCount == 0 || lastChecked == kb) return true;
+        if (attributeCount > kb.attributeCount() || attributeHash != attributeHash(kb, attributeCount)) return false;
+        lastChecked = kb;
+        return true;
+    }
+
+    // Hash of everything the model says, e.g. to tell whether an opening book was built with it
+    public long contentHash() {
+        long h = contentHash;
+        if (h == 0) {
+            h = attributeHash * 31 + attributeCount;
+            for (double v : attributeLog) h = (h ^ Double.doubleToLongBits(v)) * 0x100000001b3L;
+            for (long key : overrideKeys) h = (h ^ key) * 0x100000001b3L;
+            for (double v : overrideLog) h = (h ^ Double.doubleToLongBits(v)) * 0x100000001b3L;
+            h = h == 0 ? 1 : h;
+            contentHash = h;
+        }
+        return h;
+    }
+
+    public static double defaultLikelihood(Answer answer, byte value) {
+        return DEFAULT_ROW[value * 3 + answer.ordinal()];
+    }
+
+    public double likelihood(int attribute, Answer answer, byte value) {
+        return Math.exp(logLikelihood(attribute, answer, value));
+    }
+
+    public double logLikelihood(int attribute, Answer answer, byte value) {
+        int cell = value * 3 + answer.ordinal();
+        return attribute < attributeCount ? attributeLog[attribute * 9 + cell] : DEFAULT_LOG_ROW[cell];
+    }
+
+    public double logLikelihood(int entity, int attribute, Answer answer, byte value) {
+        if (overrideKeys.length > 0) {
+            int i = Arrays.binarySearch(overrideKeys, key(entity, attribute));
+            if (i >= 0) return overrideLog[i * 9 + value * 3 + answer.ordinal()];
+        }
+        return logLikelihood(attribute, answer, value);
+    }
+
+    public boolean hasEntityOverrides(int attribute) {
+        int i = firstOverride(attribute);
+        return i < overrideKeys.length && (overrideKeys[i] >>> 32) == attribute;
+    }
+
+    // Largest log-likelihood any animal can get for this answer, overrides included
+    public double maxLogLikelihood(int attribute, Answer answer) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (byte value = 0; value < 3; value++) {
+            max = Math.max(max, logLikelihood(attribute, answer, value));
+        }
+        for (int i = firstOverride(attribute); i < overrideKeys.length && (overrideKeys[i] >>> 32) == attribute; i++) {
+            for (int value = 0; value < 3; value++) {
+                max = Math.max(max, overrideLog[i * 9 + value * 3 + answer.ordinal()]);
+            }
+        }
+        return max;
+    }
+
+    private int firstOverride(int attribute) {
+        if (overrideKeys.length == 0) return 0;
+        int i = Arrays.binarySearch(overrideKeys, key(0, attribute));
+        return i >= 0 ? i : -i - 1;
+    }
+
+    public int getAttributeCount() {
+        return attributeCount;
+    }
+
+    public int getOverrideCount() {
+        return overrideKeys.length;
+    }
+
+    static long key(int entity, int attribute) {
+        return ((long) attribute << 32) | (entity & 0xffffffffL);
+    }
+
+    static long attributeHash(CompiledKnowledgeBase kb, int count) {
+        long h = 0xcbf29ce484222325L;
+        for (int a = 0; a < count; a++) {
+            h = (h ^ kb.attributeName(a).hashCode()) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    public void save(String file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(attributeHash);
+            out.writeInt(attributeCount);
+            for (double v : attributeLog) out.writeDouble(v);
+            out.writeInt(overrideKeys.length);
+            for (long k : overrideKeys) out.writeLong(k);
+            for (double v : overrideLog) out.writeDouble(v);
+        }
+    }
+
+    public static LikelihoodModel load(String file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a likelihood model: " + file);
+            }
+            long hash = in.readLong();
+            int attributes = in.readInt();
+            double[] attributeLog = new double[attributes * 9];
+            for (int i = 0; i < attributeLog.length; i++) attributeLog[i] = in.readDouble();
+            long[] keys = new long[in.readInt()];
+            for (int i = 0; i < keys.length; i++) keys[i] = in.readLong();
+            double[] overrideLog = new double[keys.length * 9];
+            for (int i = 0; i < overrideLog.length; i++) overrideLog[i] = in.readDouble();
+            return new LikelihoodModel(hash, attributes, attributeLog, keys, overrideLog);
+        }
+    }
+}
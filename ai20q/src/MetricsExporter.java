@@ -0,0 +1,19 @@
+import java.io.PrintStream;
+import java.util.Map;
+
+// Receives a flat snapshot of the solver metrics on every export tick. Implementations
+// push it wherever the deployment collects metrics.
+public interface MetricsExporter {
+    void export(Map<String, Double> snapshot);
+
+    // One "name value" line per metric
+    static MetricsExporter printTo(PrintStream out) {
+        return snapshot -> {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Double> entry : snapshot.entrySet()) {
+                sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+            }
+            out.print(sb);
+        };
+    }
+}
@@ -0,0 +1,189 @@
+import java.io.*;
+import java.util.*;
+
+// Precomputed first questions. Every game starts from the same uniform prior, so the
+// question the solver picks only depends on the answers given so far. The book stores
+// that question for every YES/NO/MAYBE answer prefix down to a fixed depth as a
+// complete ternary tree: the children of node i are 3i+1 (YES), 3i+2 (NO), 3i+3 (MAYBE).
+// A node holds an attribute id, or -1 where the solver would not ask a question.
+//
+// After the first answer the questions also depend on the likelihood model and the prune
+// epsilon, so the book records both and is only followed by solvers using the same ones.
+public class OpeningBook {
+    private static final int MAGIC = 0x4f424b32; // "OBK2"
+    // Books without a model hash, built under the default model and epsilon
+    private static final int MAGIC_V1 = 0x4f424b31; // "OBK1"
+
+    private final String path;
+    private volatile int[] nodes;
+    private long fingerprint;
+    private long modelHash;
+    private double pruneEpsilon;
+    private int depth;
+
+    private OpeningBook(String path) {
+        this.path = path;
+    }
+
+    private OpeningBook(int[] nodes, long fingerprint, long modelHash, double pruneEpsilon, int depth) {
+        this.path = null;
+        this.nodes = nodes;
+        this.fingerprint = fingerprint;
+        this.modelHash = modelHash;
+        this.pruneEpsilon = pruneEpsilon;
+        this.depth = depth;
+    }
+
+    // The file is only read the first time a solver asks the book for a question
+    public static OpeningBook open(String path) {
+        return new OpeningBook(path);
+    }
+
+    // Built with the installed likelihood model (if it applies) and the default epsilon
+    public static OpeningBook build(CompiledKnowledgeBase kb, int depth) {
+        return build(kb, depth, LikelihoodModel.current(kb), PosteriorEngine.DEFAULT_PRUNE_EPSILON);
+    }
+
+    public static OpeningBook build(CompiledKnowledgeBase kb, int depth, LikelihoodModel model, double pruneEpsilon) {
+        int[] nodes = new int[nodeCount(depth)];
+        Arrays.fill(nodes, -1);
+        buildNode(kb, model, pruneEpsilon, nodes, 0, new int[depth], new Answer[depth], 0);
+        return new OpeningBook(nodes, kb.fingerprint(), model.contentHash(), pruneEpsilon, depth);
+    }
+
+    private static void buildNode(CompiledKnowledgeBase kb, LikelihoodModel model, double pruneEpsilon, int[] nodes,
+            int node, int[] attrs, Answer[] answers, int length) {
+        if (node >= nodes.length) return;
+
+        // Replay the prefix exactly the way a game would reach this node
+        Solver solver = Solver.offline(kb);
+        solver.setLikelihoodModel(model);
+        solver.setPruneEpsilon(pruneEpsilon);
+        for (int i = 0; i < length; i++) {
+            solver.makeGuess();
+            solver.applyAnswer(kb.attributeName(attrs[i]), answers[i]);
+        }
+        String step = solver.makeGuess();
+        if (step == null || !step.startsWith("ATTR:")) return;
+
+        int attr = kb.attributeId(step.substring("ATTR:".length()));
+        nodes[node] = attr;
+        for (Answer answer : Answer.values()) {
+            attrs[length] = attr;
+            answers[length] = answer;
+            buildNode(kb, model, pruneEpsilon, nodes, child(node, answer), attrs, answers, length + 1);
+        }
+    }
+
+    public void save(String file) throws IOException {
+        int[] data = nodes();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(fingerprint);
+            out.writeLong(modelHash);
+            out.writeDouble(pruneEpsilon);
+            out.writeInt(depth);
+            out.writeInt(data.length);
+
+            // Two bytes per node unless the attribute ids don't fit
+            int max = 0;
+            for (int node : data) max = Math.max(max, node);
+            boolean wide = max > Short.MAX_VALUE;
+            out.writeBoolean(wide);
+            for (int node : data) {
+                if (wide) out.writeInt(node);
+                else out.writeShort(node);
+            }
+        }
+    }
+
+    public static int nodeCount(int depth) {
+        int count = 0;
+        for (int level = 0, width = 1; level < depth; level++, width *= 3) {
+            count += width;
+        }
+        return count;
+    }
+
+    public static int child(int node, Answer answer) {
+        return 3 * node + 1 + answer.ordinal();
+    }
+
+    // The attribute the solver would ask at this node, or -1 if the book has nothing
+    // for it (outside the tree, not a question, or built for a different knowledge base)
+    public int question(CompiledKnowledgeBase kb, int node) {
+        int[] data = nodes();
+        if (node < 0 || node >= data.length || fingerprint != kb.fingerprint()) return -1;
+        return data[node];
+    }
+
+    // Whether a solver with this model and epsilon would ask what the book says
+    public boolean appliesTo(LikelihoodModel model, double epsilon) {
+        nodes();
+        return modelHash == model.contentHash() && pruneEpsilon == epsilon;
+    }
+
+    public int getDepth() {
+        nodes();
+        return depth;
+    }
+
+    private int[] nodes() {
+        int[] data = nodes;
+        if (data == null) {
+            synchronized (this) {
+                data = nodes;
+                if (data == null) {
+                    data = load();
+                    nodes = data;
+                }
+            }
+        }
+        return data;
+    }
+
+    private int[] load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            int magic = in.readInt();
+            if (magic != MAGIC && magic != MAGIC_V1) {
+                throw new IOException("Not an opening book: " + path);
+            }
+            fingerprint = in.readLong();
+            if (magic == MAGIC) {
+                modelHash = in.readLong();
+                pruneEpsilon = in.readDouble();
+            } else {
+                modelHash = LikelihoodModel.DEFAULT.contentHash();
+                pruneEpsilon = PosteriorEngine.DEFAULT_PRUNE_EPSILON;
+            }
+            depth = in.readInt();
+            int[] data = new int[in.readInt()];
+            boolean wide = in.readBoolean();
+            for (int i = 0; i < data.length; i++) {
+                data[i] = wide ? in.readInt() : in.readShort();
+            }
+            return data;
+        } catch (IOException e) {
+            // A missing or broken book just means every question gets computed
+            System.err.println("Could not load opening book " + path + ": " + e.getMessage());
+            depth = 0;
+            return new int[0];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: OpeningBook <knowledge base .json or .kb> <depth> <output file> [likelihood model]");
+            return;
+        }
+        CompiledKnowledgeBase kb = KnowledgeBase.load(args[0]);
+        if (args.length > 3) LikelihoodModel.install(LikelihoodModel.load(args[3]));
+        int depth = Integer.parseInt(args[1]);
+
+        long start = System.nanoTime();
+        OpeningBook book = build(kb, depth);
+        book.save(args[2]);
+        System.out.println("Built " + nodeCount(depth) + " nodes in "
+            + (System.nanoTime() - start) / 1_000_000 + " ms -> " + args[2]);
+    }
+}
@@ -0,0 +1,300 @@
+import java.util.*;
+
+// Incremental Bayesian update over the compiled knowledge base. Posteriors are kept
+// unnormalised in log space, answers only touch the live (active) animals, and
+// normalisation is deferred until someone reads the probabilities.
+//
+// Animals whose posterior falls below the pruning epsilon leave the active set. They
+// sit in a max-heap keyed by the best posterior they could still reach, and are
+// replayed and restored if later answers could bring them back above the epsilon.
+//
+// Likelihoods come from a LikelihoodModel fixed for the whole game, so replaying a
+// pruned animal gives the same result as if it had never left.
+public class PosteriorEngine {
+    public static final double DEFAULT_PRUNE_EPSILON = 1e-9;
+
+    private final CompiledKnowledgeBase kb;
+    private LikelihoodModel model;
+    private boolean started = false;
+    private final double[] logPosterior;
+    private final double[] probabilities;
+    private final long[] active;
+    private final int[] activeIds;
+    private final int[] activePosition;
+    private int activeCount;
+
+    private double logPruneEpsilon;
+    private boolean dirty = true;
+
+    // Answers that changed the posterior, plus the best-case log-likelihood gain
+    // accumulated up to each of them
+    private int[] answerAttributes = new int[16];
+    private Answer[] answers = new Answer[16];
+    private double[] maxGainPrefix = new double[17];
+    private int answerCount = 0;
+
+    // Pruned animals: heap ordered by logPosterior - maxGainPrefix[syncedAt].
+    // Allocated on the first prune so sessions that never prune stay small.
+    private int[] syncedAt;
+    private double[] pruneKey;
+    private int[] heap;
+    private int heapSize = 0;
+
+    public PosteriorEngine(CompiledKnowledgeBase kb) {
+        this(kb, DEFAULT_PRUNE_EPSILON);
+    }
+
+    public PosteriorEngine(CompiledKnowledgeBase kb, double pruneEpsilon) {
+        this(kb, pruneEpsilon, LikelihoodModel.current(kb));
+    }
+
+    public PosteriorEngine(CompiledKnowledgeBase kb, double pruneEpsilon, LikelihoodModel model) {
+        int n = kb.entityCount();
+        this.kb = kb;
+        this.model = model;
+        this.logPosterior = new double[n];
+        this.probabilities = new double[n];
+        this.active = new long[kb.wordCount()];
+        this.activeIds = new int[n];
+        this.activePosition = new int[n];
+        this.logPruneEpsilon = pruneEpsilon > 0 ? Math.log(pruneEpsilon) : Double.NEGATIVE_INFINITY;
+
+        double uniform = -Math.log(n);
+        for (int e = 0; e < n; e++) {
+            logPosterior[e] = uniform;
+            activate(e);
+        }
+    }
+
+    // An epsilon of 0 disables pruning
+    public void setPruneEpsilon(double pruneEpsilon) {
+        this.logPruneEpsilon = pruneEpsilon > 0 ? Math.log(pruneEpsilon) : Double.NEGATIVE_INFINITY;
+        this.dirty = true;
+    }
+
+    // Only allowed before the first answer
+    public void setLikelihoodModel(LikelihoodModel model) {
+        if (started) {
+            throw new IllegalStateException("The likelihood model can't change during a game");
+        }
+        this.model = model;
+    }
+
+    public LikelihoodModel getLikelihoodModel() {
+        return model;
+    }
+
+    public void apply(int attribute, Answer answer) {
+        if (attribute < 0) return;
+        started = true;
+
+        double maxGain;
+        if (model.hasEntityOverrides(attribute)) {
+            for (int i = 0; i < activeCount; i++) {
+                int e = activeIds[i];
+                logPosterior[e] += model.logLikelihood(e, attribute, answer, kb.value(e, attribute));
+            }
+            maxGain = model.maxLogLikelihood(attribute, answer);
+        } else {
+            double logYes = model.logLikelihood(attribute, answer, CompiledKnowledgeBase.TRUE);
+            double logNo = model.logLikelihood(attribute, answer, CompiledKnowledgeBase.FALSE);
+            double logUnknown = model.logLikelihood(attribute, answer, CompiledKnowledgeBase.UNKNOWN);
+
+            // Same likelihood for every animal: cancels out on normalisation
+            if (logYes == logNo && logNo == logUnknown) return;
+
+            for (int i = 0; i < activeCount; i++) {
+                int e = activeIds[i];
+                byte value = kb.value(e, attribute);
+                logPosterior[e] += value == CompiledKnowledgeBase.TRUE ? logYes
+                    : value == CompiledKnowledgeBase.FALSE ? logNo : logUnknown;
+            }
+            maxGain = Math.max(logYes, Math.max(logNo, logUnknown));
+        }
+        record(attribute, answer, maxGain);
+    }
+
+    private void record(int attribute, Answer answer, double maxGain) {
+        if (answerCount == answers.length) {
+            answerAttributes = Arrays.copyOf(answerAttributes, answerCount * 2);
+            answers = Arrays.copyOf(answers, answerCount * 2);
+            maxGainPrefix = Arrays.copyOf(maxGainPrefix, answerCount * 2 + 1);
+        }
+        answerAttributes[answerCount] = attribute;
+        answers[answerCount] = answer;
+        maxGainPrefix[answerCount + 1] = maxGainPrefix[answerCount] + maxGain;
+        answerCount++;
+        dirty = true;
+    }
+
+    // Takes the posterior after the given answers from a saved copy instead of applying
+    // them: listed animals get their log probabilities, and every other animal is parked
+    // as pruned at logFloor (an upper bound on where it was). Later answers can bring
+    // them back through the usual pruning heap. Only valid on a fresh engine.
+    public void restore(int[] attributes, Answer[] answerLog, int[] ids, double[] logProbabilities, double logFloor) {
+        if (started) {
+            throw new IllegalStateException("Can only restore into a fresh posterior");
+        }
+        started = true;
+        for (int i = 0; i < attributes.length; i++) {
+            int attribute = attributes[i];
+            Answer answer = answerLog[i];
+            if (model.hasEntityOverrides(attribute)) {
+                record(attribute, answer, model.maxLogLikelihood(attribute, answer));
+                continue;
+            }
+            double logYes = model.logLikelihood(attribute, answer, CompiledKnowledgeBase.TRUE);
+            double logNo = model.logLikelihood(attribute, answer, CompiledKnowledgeBase.FALSE);
+            double logUnknown = model.logLikelihood(attribute, answer, CompiledKnowledgeBase.UNKNOWN);
+            if (logYes == logNo && logNo == logUnknown) continue;
+            record(attribute, answer, Math.max(logYes, Math.max(logNo, logUnknown)));
+        }
+
+        while (activeCount > 0) deactivate(activeIds[activeCount - 1]);
+        for (int i = 0; i < ids.length; i++) {
+            logPosterior[ids[i]] = logProbabilities[i];
+            activate(ids[i]);
+        }
+        if (activeCount < logPosterior.length) {
+            allocateHeap();
+            for (int e = 0; e < logPosterior.length; e++) {
+                if ((active[e >>> 6] & (1L << e)) != 0) continue;
+                logPosterior[e] = logFloor;
+                syncedAt[e] = answerCount;
+                probabilities[e] = 0.0;
+                if (logFloor > Double.NEGATIVE_INFINITY) pushHeap(e);
+            }
+        }
+        dirty = true;
+    }
+
+    // Normalised probabilities indexed by animal id. Pruned animals read as 0.
+    public double[] probabilities() {
+        normalize();
+        return probabilities;
+    }
+
+    public double probability(int entity) {
+        return probabilities()[entity];
+    }
+
+    public int activeCount() {
+        normalize();
+        return activeCount;
+    }
+
+    public boolean isActive(int entity) {
+        normalize();
+        return (active[entity >>> 6] & (1L << entity)) != 0;
+    }
+
+    private void normalize() {
+        if (!dirty) return;
+        dirty = false;
+
+        double logZ = logSumActive();
+
+        // Bring back pruned animals that could have climbed over the epsilon
+        double threshold = logZ + logPruneEpsilon;
+        boolean restored = false;
+        while (heapSize > 0 && pruneKey[heap[0]] + maxGainPrefix[answerCount] >= threshold) {
+            int e = popHeap();
+            replay(e);
+            if (logPosterior[e] >= threshold) {
+                activate(e);
+                restored = true;
+            } else {
+                pushHeap(e);
+            }
+        }
+        if (restored) logZ = logSumActive();
+
+        // Prune animals below the epsilon
+        threshold = logZ + logPruneEpsilon;
+        for (int i = activeCount - 1; i >= 0; i--) {
+            int e = activeIds[i];
+            if (logPosterior[e] < threshold) {
+                allocateHeap();
+                deactivate(e);
+                syncedAt[e] = answerCount;
+                pushHeap(e);
+                probabilities[e] = 0.0;
+            }
+        }
+
+        for (int i = 0; i < activeCount; i++) {
+            int e = activeIds[i];
+            probabilities[e] = Math.exp(logPosterior[e] - logZ);
+        }
+    }
+
+    private double logSumActive() {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < activeCount; i++) {
+            max = Math.max(max, logPosterior[activeIds[i]]);
+        }
+        if (max == Double.NEGATIVE_INFINITY) return max;
+
+        double sum = 0.0;
+        for (int i = 0; i < activeCount; i++) {
+            sum += Math.exp(logPosterior[activeIds[i]] - max);
+        }
+        return max + Math.log(sum);
+    }
+
+    // Applies the answers a pruned animal missed since it was last brought up to date
+    private void replay(int e) {
+        for (int i = syncedAt[e]; i < answerCount; i++) {
+            logPosterior[e] += model.logLikelihood(e, answerAttributes[i], answers[i], kb.value(e, answerAttributes[i]));
+        }
+        syncedAt[e] = answerCount;
+    }
+
+    private void activate(int e) {
+        active[e >>> 6] |= 1L << e;
+        activePosition[e] = activeCount;
+        activeIds[activeCount++] = e;
+    }
+
+    private void deactivate(int e) {
+        active[e >>> 6] &= ~(1L << e);
+        int last = activeIds[--activeCount];
+        activeIds[activePosition[e]] = last;
+        activePosition[last] = activePosition[e];
+    }
+
+    private void allocateHeap() {
+        if (heap != null) return;
+        syncedAt = new int[logPosterior.length];
+        pruneKey = new double[logPosterior.length];
+        heap = new int[logPosterior.length];
+    }
+
+    private void pushHeap(int e) {
+        pruneKey[e] = logPosterior[e] - maxGainPrefix[syncedAt[e]];
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (pruneKey[heap[parent]] >= pruneKey[e]) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = e;
+    }
+
+    private int popHeap() {
+        int top = heap[0];
+        int last = heap[--heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && pruneKey[heap[child + 1]] > pruneKey[heap[child]]) child++;
+            if (pruneKey[heap[child]] <= pruneKey[last]) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        if (heapSize > 0) heap[i] = last;
+        return top;
+    }
+}
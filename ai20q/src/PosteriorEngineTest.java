@@ -0,0 +1,79 @@
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+public class PosteriorEngineTest {
+
+    private CompiledKnowledgeBase kb() {
+        Map<String, Map<String, Boolean>> data = new LinkedHashMap<>();
+        data.put("dog", Map.of("hasFur", true, "livesInWater", false));
+        data.put("cow", Map.of("hasFur", true));
+        data.put("shark", Map.of("hasFur", false, "livesInWater", true));
+        return CompiledKnowledgeBase.compile(data);
+    }
+
+    @Test
+    void testMatchesUnprunedPosterior() {
+        CompiledKnowledgeBase kb = kb();
+        PosteriorEngine engine = new PosteriorEngine(kb, 0.0);
+        engine.apply(kb.attributeId("hasFur"), Answer.YES);
+        engine.apply(kb.attributeId("livesInWater"), Answer.NO);
+
+        double dog = 0.85 * 0.85, cow = 0.85 * 0.5, shark = 0.1 * 0.1;
+        double total = dog + cow + shark;
+        assertEquals(dog / total, engine.probability(kb.entityId("dog")), 1e-12);
+        assertEquals(cow / total, engine.probability(kb.entityId("cow")), 1e-12);
+        assertEquals(shark / total, engine.probability(kb.entityId("shark")), 1e-12);
+    }
+
+    @Test
+    void testPrunedAnimalIsRestoredByLaterAnswers() {
+        CompiledKnowledgeBase kb = kb();
+        int shark = kb.entityId("shark");
+        PosteriorEngine engine = new PosteriorEngine(kb, 0.05);
+
+        engine.apply(kb.attributeId("hasFur"), Answer.YES);
+        engine.apply(kb.attributeId("hasFur"), Answer.YES);
+        assertFalse(engine.isActive(shark));
+        assertEquals(0.0, engine.probability(shark));
+        assertEquals(2, engine.activeCount());
+
+        for (int i = 0; i < 4; i++) {
+            engine.apply(kb.attributeId("livesInWater"), Answer.YES);
+        }
+        assertTrue(engine.isActive(shark));
+        assertTrue(engine.probability(shark) > engine.probability(kb.entityId("dog")));
+    }
+
+    @Test
+    void testEstimatedModelTracksObservedNoise() {
+        CompiledKnowledgeBase kb = kb();
+        int dog = kb.entityId("dog"), cow = kb.entityId("cow");
+        int hasFur = kb.attributeId("hasFur"), livesInWater = kb.attributeId("livesInWater");
+
+        // Players always answer hasFur truthfully, but say "yes" to livesInWater for the dog half the time
+        LikelihoodEstimator estimator = new LikelihoodEstimator(kb);
+        for (int i = 0; i < 100; i++) {
+            estimator.observe(dog, hasFur, Answer.YES);
+            estimator.observe(dog, livesInWater, i % 2 == 0 ? Answer.YES : Answer.NO);
+        }
+        LikelihoodModel model = estimator.estimate(1.0, 50);
+
+        assertTrue(model.likelihood(hasFur, Answer.YES, CompiledKnowledgeBase.TRUE) > 0.95);
+        assertTrue(model.hasEntityOverrides(livesInWater));
+        assertEquals(Math.log(0.5), model.logLikelihood(dog, livesInWater, Answer.YES, CompiledKnowledgeBase.FALSE), 0.02);
+
+        // Answering "lives in water" barely counts against the dog any more
+        PosteriorEngine engine = new PosteriorEngine(kb, 0.0, model);
+        engine.apply(hasFur, Answer.YES);
+        engine.apply(livesInWater, Answer.YES);
+        assertTrue(engine.probability(dog) > engine.probability(cow) * 0.5);
+
+        PosteriorEngine defaults = new PosteriorEngine(kb, 0.0, LikelihoodModel.DEFAULT);
+        defaults.apply(hasFur, Answer.YES);
+        defaults.apply(livesInWater, Answer.YES);
+        assertTrue(defaults.probability(dog) < defaults.probability(cow) * 0.5);
+        assertThrows(IllegalStateException.class, () -> defaults.setLikelihoodModel(model));
+    }
+}
@@ -0,0 +1,316 @@
+import java.util.*;
+
+// Optional replacement for the greedy question choice in Solver.makeGuess.
+//
+// Questions are scored by the true expected posterior entropy (in bits) instead of
+// the size-based estimate. With more depth the planner runs expectimax over candidate
+// subsets: after answer YES only animals that are true or unknown for the attribute
+// stay in the subset, after NO those that are false or unknown, after MAYBE all of
+// them. A plan costs the sum of the expected entropies after each of its questions,
+// so a question that tells us nothing now is never worth asking just to set up the
+// next one. A question asked on a path (and the rest of its attribute class) is not
+// asked again further down it. Subset values are memoised by subset, questions already
+// asked on the path and depth. Only the best beamWidth questions at each node are
+// expanded. Answer probabilities come from the likelihood model's per-attribute rows;
+// per-animal overrides are left out of planning.
+//
+// Depths are searched one after another (iterative deepening) until the per-turn time
+// budget runs out; the answer from the deepest completed search is used. Depth 1 always
+// completes.
+public class QuestionPlanner {
+    private static final double LOG2 = Math.log(2);
+
+    private static final RuntimeException OUT_OF_TIME = new RuntimeException("planner out of time", null, false, false) {};
+
+    private final CompiledKnowledgeBase kb;
+    private final int maxDepth;
+    private final long budgetNanos;
+    private final int beamWidth;
+
+    // [attribute * 9 + group * 3 + answer]: likelihoods normalised into answer
+    // probabilities, with groups true / false / unknown as in groupStats
+    private final double[] answerGivenValue;
+    private final double[] logAnswerGivenValue;
+
+    private final HashMap<Node, Double> memo = new HashMap<>();
+    private final double[] stats = new double[6];
+    private double[] posterior;
+    private double[] plogp;
+    private long deadline;
+
+    private int bestAttribute = -1;
+    private double bestGain = Double.NEGATIVE_INFINITY;
+    private int completedDepth = 0;
+
+    public QuestionPlanner(CompiledKnowledgeBase kb, int maxDepth, long budgetNanos, int beamWidth) {
+        this(kb, maxDepth, budgetNanos, beamWidth, LikelihoodModel.current(kb));
+    }
+
+    public QuestionPlanner(CompiledKnowledgeBase kb, int maxDepth, long budgetNanos, int beamWidth, LikelihoodModel model) {
+        this.kb = kb;
+        this.maxDepth = Math.max(1, maxDepth);
+        this.budgetNanos = budgetNanos;
+        this.beamWidth = Math.max(1, beamWidth);
+        this.answerGivenValue = new double[kb.attributeCount() * 9];
+        this.logAnswerGivenValue = new double[kb.attributeCount() * 9];
+
+        byte[] values = { CompiledKnowledgeBase.TRUE, CompiledKnowledgeBase.FALSE, CompiledKnowledgeBase.UNKNOWN };
+        for (int a = 0; a < kb.attributeCount(); a++) {
+            for (int v = 0; v < 3; v++) {
+                double total = 0.0;
+                for (Answer answer : Answer.values()) total += model.likelihood(a, answer, values[v]);
+                for (Answer answer : Answer.values()) {
+                    double q = model.likelihood(a, answer, values[v]) / total;
+                    answerGivenValue[a * 9 + v * 3 + answer.ordinal()] = q;
+                    logAnswerGivenValue[a * 9 + v * 3 + answer.ordinal()] = log2(q);
+                }
+            }
+        }
+    }
+
+    // Picks the question for the candidate window. Results are read back through
+    // getBestAttribute() / getBestGain() / getCompletedDepth().
+    public void plan(long[] candidates, double[] posterior, long[] asked) {
+        this.posterior = posterior;
+        this.deadline = System.nanoTime() + budgetNanos;
+        if (plogp == null || plogp.length != posterior.length) plogp = new double[posterior.length];
+        forEach(candidates, e -> plogp[e] = posterior[e] > 0 ? posterior[e] * log2(posterior[e]) : 0.0);
+        memo.clear();
+
+        double before = entropy(candidates);
+        bestAttribute = -1;
+        bestGain = Double.NEGATIVE_INFINITY;
+        completedDepth = 0;
+
+        for (int depth = 1; depth <= maxDepth; depth++) {
+            try {
+                int attr = -1;
+                double bestValue = Double.POSITIVE_INFINITY;
+                for (int a : rankQuestions(candidates, asked, depth == 1 ? Integer.MAX_VALUE : beamWidth)) {
+                    double value = planCost(a, candidates, asked, depth);
+                    if (value < bestValue) {
+                        bestValue = value;
+                        attr = a;
+                    }
+                }
+                // The gain reported is that of the chosen question alone
+                bestAttribute = attr;
+                bestGain = attr < 0 ? Double.NEGATIVE_INFINITY : before - expectedEntropy(attr, candidates);
+                completedDepth = depth;
+                if (attr < 0) break;
+            } catch (RuntimeException e) {
+                if (e != OUT_OF_TIME) throw e;
+                break;
+            }
+        }
+    }
+
+    public int getBestAttribute() {
+        return bestAttribute;
+    }
+
+    public double getBestGain() {
+        return bestGain;
+    }
+
+    public int getCompletedDepth() {
+        return completedDepth;
+    }
+
+    // Sum of expected entropies after asking attr and then the best depth - 1 more questions
+    private double planCost(int attr, long[] subset, long[] asked, int depth) {
+        double cost = expectedEntropy(attr, subset);
+        if (depth == 1) return cost;
+
+        groupStats(attr, subset);
+        double[] answerProbability = answerProbabilities(attr);
+        long[] childAsked = asked.clone();
+        for (int m : kb.attributeClasses().members(attr)) childAsked[m >>> 6] |= 1L << m;
+        for (Answer answer : Answer.values()) {
+            double p = answerProbability[answer.ordinal()];
+            if (p <= 0) continue;
+            cost += p * subsetCost(child(attr, subset, answer), childAsked, depth - 1);
+        }
+        return cost;
+    }
+
+    private double subsetCost(long[] subset, long[] asked, int depth) {
+        if (System.nanoTime() > deadline) throw OUT_OF_TIME;
+
+        Node key = new Node(subset, asked, depth);
+        Double cached = memo.get(key);
+        if (cached != null) return cached;
+
+        // Nothing left to ask: the entropy stays where it is for the remaining questions
+        double best = depth * entropy(subset);
+        for (int a : rankQuestions(subset, asked, depth == 1 ? 1 : beamWidth)) {
+            best = Math.min(best, planCost(a, subset, asked, depth));
+        }
+        memo.put(key, best);
+        return best;
+    }
+
+    // Unasked attributes that split the subset, best one-step expected entropy first
+    private int[] rankQuestions(long[] subset, long[] asked, int limit) {
+        int count = 0;
+        int[] attrs = new int[kb.attributeCount()];
+        double[] scores = new double[kb.attributeCount()];
+        for (int a = 0; a < kb.attributeCount(); a++) {
+            if ((asked[a >>> 6] & (1L << a)) != 0) continue;
+            double value = expectedEntropy(a, subset);
+            if (Double.isNaN(value)) continue;
+            attrs[count] = a;
+            scores[count++] = value;
+        }
+
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) order[i] = i;
+        Arrays.sort(order, (x, y) -> scores[x] != scores[y] ? Double.compare(scores[x], scores[y]) : Integer.compare(attrs[x], attrs[y]));
+
+        int[] ranked = new int[Math.min(limit, count)];
+        for (int i = 0; i < ranked.length; i++) ranked[i] = attrs[order[i]];
+        return ranked;
+    }
+
+    // True expected posterior entropy of asking attr, or NaN if attr doesn't split the subset
+    private double expectedEntropy(int attr, long[] subset) {
+        groupStats(attr, subset);
+        if (stats[0] == 0 && stats[1] == 0) return Double.NaN;
+
+        double total = stats[0] + stats[1] + stats[2];
+        if (total <= 0) return Double.NaN;
+
+        // With p normalised over the subset: H(answer) * P(answer) =
+        //   P log P - sum over values v of q(answer|v) * (s_v + m_v log q(answer|v))
+        // where m_v is the mass and s_v the sum of p log p of the animals with value v
+        double logTotal = log2(total);
+        double expected = 0.0;
+        for (int ans = 0; ans < 3; ans++) {
+            double p = 0.0;
+            double inner = 0.0;
+            for (int v = 0; v < 3; v++) {
+                double m = stats[v] / total;
+                double s = (stats[3 + v] - stats[v] * logTotal) / total;
+                double q = answerGivenValue[attr * 9 + v * 3 + ans];
+                p += q * m;
+                inner += q * (s + m * logAnswerGivenValue[attr * 9 + v * 3 + ans]);
+            }
+            if (p > 0) expected += p * log2(p) - inner;
+        }
+        return expected;
+    }
+
+    private double[] answerProbabilities(int attr) {
+        double total = stats[0] + stats[1] + stats[2];
+        double[] probability = new double[3];
+        for (int ans = 0; ans < 3; ans++) {
+            for (int v = 0; v < 3; v++) {
+                probability[ans] += answerGivenValue[attr * 9 + v * 3 + ans] * stats[v] / total;
+            }
+        }
+        return probability;
+    }
+
+    // Mass and sum of p log p of the subset animals that are true / false / unknown for attr
+    private void groupStats(int attr, long[] subset) {
+        Arrays.fill(stats, 0.0);
+        for (int w = 0; w < subset.length; w++) {
+            long s = subset[w];
+            if (s == 0) continue;
+            long t = kb.trueWord(attr, w);
+            long f = kb.falseWord(attr, w);
+            accumulate(s & t, w, 0);
+            accumulate(s & f, w, 1);
+            accumulate(s & ~(t | f), w, 2);
+        }
+    }
+
+    private void accumulate(long bits, int word, int group) {
+        int base = word << 6;
+        while (bits != 0) {
+            int e = base + Long.numberOfTrailingZeros(bits);
+            stats[group] += posterior[e];
+            stats[3 + group] += plogp[e];
+            bits &= bits - 1;
+        }
+    }
+
+    private long[] child(int attr, long[] subset, Answer answer) {
+        long[] child = subset.clone();
+        if (answer == Answer.MAYBE) return child;
+        for (int w = 0; w < child.length; w++) {
+            child[w] &= ~(answer == Answer.YES ? kb.falseWord(attr, w) : kb.trueWord(attr, w));
+        }
+        return child;
+    }
+
+    private double entropy(long[] subset) {
+        double m = 0.0;
+        double s = 0.0;
+        for (int w = 0; w < subset.length; w++) {
+            long bits = subset[w];
+            while (bits != 0) {
+                int e = (w << 6) + Long.numberOfTrailingZeros(bits);
+                m += posterior[e];
+                s += plogp[e];
+                bits &= bits - 1;
+            }
+        }
+        return m > 0 ? log2(m) - s / m : 0.0;
+    }
+
+    private static long hash(long[] subset, long h) {
+        for (long word : subset) {
+            h ^= word;
+            h *= 0xbf58476d1ce4e5b9L;
+            h ^= h >>> 31;
+        }
+        return h;
+    }
+
+    // Memo key: compared in full, so a hash collision can't return another node's value
+    private static final class Node {
+        private final long[] subset;
+        private final long[] asked;
+        private final int depth;
+        private final int hash;
+
+        Node(long[] subset, long[] asked, int depth) {
+            this.subset = subset;
+            this.asked = asked;
+            this.depth = depth;
+            long h = hash(asked, hash(subset, 0x9e3779b97f4a7c15L)) * 31 + depth;
+            this.hash = (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Node)) return false;
+            Node n = (Node) o;
+            return hash == n.hash && depth == n.depth && Arrays.equals(subset, n.subset) && Arrays.equals(asked, n.asked);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private interface EntityConsumer {
+        void accept(int entity);
+    }
+
+    private static void forEach(long[] set, EntityConsumer consumer) {
+        for (int w = 0; w < set.length; w++) {
+            long bits = set[w];
+            while (bits != 0) {
+                consumer.accept((w << 6) + Long.numberOfTrailingZeros(bits));
+                bits &= bits - 1;
+            }
+        }
+    }
+
+    private static double log2(double x) {
+        return Math.log(x) / LOG2;
+    }
+}
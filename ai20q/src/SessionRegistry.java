@@ -0,0 +1,138 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Live games keyed by session id. All sessions share one compiled knowledge base
+// (and opening book); idle sessions are expired by a background sweeper. With a
+// KnowledgeBaseStore, each new session starts on the latest learned snapshot.
+//
+// A session costs about 25 bytes per animal: the posterior (log and normalised), the
+// active set and the window mask, plus 16 more once pruning starts. Measured between
+// turns, 1,000 animals come to ~28 KB a session, so 100k games need ~3 GB of heap.
+public final class SessionRegistry implements AutoCloseable {
+    private final Supplier<CompiledKnowledgeBase> snapshots;
+    private final KnowledgeBaseStore store;
+    private final OpeningBook book;
+    private final long idleTimeoutNanos;
+    private final ConcurrentHashMap<Long, GameSession> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final ScheduledExecutorService sweeper;
+    private volatile TranscriptLog transcript;
+    private volatile StepCache stepCache;
+
+    public SessionRegistry(CompiledKnowledgeBase kb, OpeningBook book, long idleTimeout, TimeUnit unit) {
+        this(() -> kb, null, book, idleTimeout, unit);
+    }
+
+    public SessionRegistry(KnowledgeBaseStore store, OpeningBook book, long idleTimeout, TimeUnit unit) {
+        this(store::snapshot, store, book, idleTimeout, unit);
+    }
+
+    private SessionRegistry(Supplier<CompiledKnowledgeBase> snapshots, KnowledgeBaseStore store,
+                            OpeningBook book, long idleTimeout, TimeUnit unit) {
+        this.snapshots = snapshots;
+        this.store = store;
+        this.book = book;
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, unit.toMillis(idleTimeout) / 4);
+        sweeper.scheduleAtFixedRate(this::expireIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Sessions created from now on log their games here
+    public void setTranscriptLog(TranscriptLog transcript) {
+        this.transcript = transcript;
+    }
+
+    // Sessions created from now on share solver steps through this cache
+    public void setStepCache(StepCache stepCache) {
+        this.stepCache = stepCache;
+    }
+
+    public StepCache getStepCache() {
+        return stepCache;
+    }
+
+    public long create() {
+        long id = nextId.getAndIncrement();
+        sessions.put(id, new GameSession(id, snapshots.get(), book, transcript, stepCache));
+        return id;
+    }
+
+    // Continues a game saved by snapshot() here or on another node, under a new id
+    public long restore(byte[] snapshot) {
+        long id = nextId.getAndIncrement();
+        sessions.put(id, GameSession.restore(id, snapshots.get(), book, transcript, stepCache, snapshot));
+        return id;
+    }
+
+    public byte[] snapshot(long id) {
+        return get(id).snapshot();
+    }
+
+    // Next solver step ("ATTR:..." / "ANIMAL:..."), or null when the solver gives up
+    public String step(long id) {
+        return get(id).step();
+    }
+
+    public void answer(long id, String attribute, Answer answer) {
+        get(id).answer(attribute, answer);
+    }
+
+    public boolean hasMoreGuesses(long id) {
+        return get(id).hasMoreGuesses();
+    }
+
+    public void recordOutcome(long id, boolean won) {
+        get(id).recordOutcome(won);
+    }
+
+    // Teaches the store the animal the player was thinking of, from the session's answers
+    public int learn(long id, String animal) {
+        if (store == null) {
+            throw new IllegalStateException("This registry has no knowledge base store to learn into");
+        }
+        GameSession session = get(id);
+        session.recordTarget(animal);
+        return store.learn(animal, session.getUserAnswers());
+    }
+
+    public boolean expire(long id) {
+        return sessions.remove(id) != null;
+    }
+
+    public int expireIdle() {
+        long cutoff = System.nanoTime() - idleTimeoutNanos;
+        int expired = 0;
+        for (Iterator<GameSession> it = sessions.values().iterator(); it.hasNext(); ) {
+            if (it.next().getLastAccess() - cutoff < 0) {
+                it.remove();
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public GameSession get(long id) {
+        GameSession session = sessions.get(id);
+        if (session == null) {
+            throw new NoSuchElementException("No such session: " + id);
+        }
+        return session;
+    }
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+        sessions.clear();
+    }
+}
@@ -0,0 +1,183 @@
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+// Compact, self-contained byte form of one game, so any node holding the same knowledge
+// base can pick the game up. Layout (varints are unsigned LEB128):
+//
+//   magic u8 | version u8 | flags u8 | knowledge base fingerprint i64 (little-endian)
+//   questionIndex, guessIndex, candidateCount, bookNode + 1        varints
+//   answer count, then per answer (attribute id << 2 | answer)    varints
+//   [flag POSTERIOR] cutoff exponent, animal count, then per animal
+//       animal id delta, round(-log2 p * 256)                     varints
+//
+// A typical game is a few dozen bytes. Without a posterior, restoring replays the
+// answers; with one, the listed animals take their stored probabilities directly and
+// everything below the cutoff is parked as pruned at the cutoff.
+public final class SessionSnapshot {
+    static final int MAGIC = 0xa5;
+    static final int VERSION = 1;
+    static final int POSTERIOR = 1;
+    // Posterior resolution: 1/256 of a bit of -log2 p
+    static final double STEPS_PER_BIT = 256.0;
+
+    public final long fingerprint;
+    public final int questionIndex;
+    public final int guessIndex;
+    public final int candidateCount;
+    public final int bookNode;
+    public final int[] attributes;
+    public final Answer[] answers;
+
+    // Quantised posterior; ids null when the snapshot carries none
+    public final int[] posteriorIds;
+    public final double[] logProbabilities;
+    public final double logCutoff;
+
+    SessionSnapshot(long fingerprint, int questionIndex, int guessIndex, int candidateCount, int bookNode,
+                    int[] attributes, Answer[] answers, int[] posteriorIds, double[] logProbabilities, double logCutoff) {
+        this.fingerprint = fingerprint;
+        this.questionIndex = questionIndex;
+        this.guessIndex = guessIndex;
+        this.candidateCount = candidateCount;
+        this.bookNode = bookNode;
+        this.attributes = attributes;
+        this.answers = answers;
+        this.posteriorIds = posteriorIds;
+        this.logProbabilities = logProbabilities;
+        this.logCutoff = logCutoff;
+    }
+
+    // probabilities may be null for a replay-only snapshot; otherwise animals at or
+    // above cutoff (a power of two) are kept
+    static byte[] encode(long fingerprint, int questionIndex, int guessIndex, int candidateCount, int bookNode,
+                         int[] attributes, Answer[] answers, int answerCount, double[] probabilities, double cutoff) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 + answerCount * 2);
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(probabilities != null ? POSTERIOR : 0);
+        for (int i = 0; i < 8; i++) out.write((int) (fingerprint >>> (8 * i)));
+        writeVarint(out, questionIndex);
+        writeVarint(out, guessIndex);
+        writeVarint(out, candidateCount);
+        writeVarint(out, bookNode + 1);
+        writeVarint(out, answerCount);
+        for (int i = 0; i < answerCount; i++) {
+            writeVarint(out, (long) attributes[i] << 2 | answers[i].ordinal());
+        }
+
+        if (probabilities != null) {
+            int exponent = Math.max(0, (int) Math.ceil(-Math.log(cutoff) / Math.log(2)));
+            double kept = Math.scalb(1.0, -exponent);
+            int count = 0;
+            for (double p : probabilities) {
+                if (p > 0 && p >= kept) count++;
+            }
+            writeVarint(out, exponent);
+            writeVarint(out, count);
+            int previous = 0;
+            for (int e = 0; e < probabilities.length; e++) {
+                double p = probabilities[e];
+                if (p <= 0 || p < kept) continue;
+                writeVarint(out, e - previous);
+                writeVarint(out, Math.round(-Math.log(p) / Math.log(2) * STEPS_PER_BIT));
+                previous = e;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public static SessionSnapshot decode(byte[] bytes) {
+        int[] at = {0};
+        if (bytes.length < 11 || (bytes[0] & 0xff) != MAGIC) {
+            throw new IllegalArgumentException("Not a session snapshot");
+        }
+        if (bytes[1] != VERSION) {
+            throw new IllegalArgumentException("Unsupported session snapshot version " + bytes[1]);
+        }
+        int flags = bytes[2];
+        long fingerprint = 0;
+        for (int i = 0; i < 8; i++) fingerprint |= (bytes[3 + i] & 0xffL) << (8 * i);
+        at[0] = 11;
+
+        int questionIndex = readInt(bytes, at);
+        int guessIndex = readInt(bytes, at);
+        int candidateCount = readInt(bytes, at);
+        int bookNode = readInt(bytes, at) - 1;
+        // Every answer takes at least a byte, so a count past the bytes left is malformed
+        int answerCount = readInt(bytes, at);
+        if (answerCount > bytes.length - at[0]) throw new IllegalArgumentException("Malformed session snapshot");
+        int[] attributes = new int[answerCount];
+        Answer[] answers = new Answer[answerCount];
+        Answer[] values = Answer.values();
+        for (int i = 0; i < answerCount; i++) {
+            long v = readVarint(bytes, at);
+            if ((v & 3) >= values.length || v >>> 2 > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Malformed session snapshot");
+            }
+            attributes[i] = (int) (v >>> 2);
+            answers[i] = values[(int) (v & 3)];
+        }
+
+        int[] ids = null;
+        double[] logs = null;
+        double logCutoff = Double.NEGATIVE_INFINITY;
+        if ((flags & POSTERIOR) != 0) {
+            int exponent = readInt(bytes, at);
+            // Two bytes at least per animal: id delta and probability
+            int count = readInt(bytes, at);
+            if (count > (bytes.length - at[0]) / 2) throw new IllegalArgumentException("Malformed session snapshot");
+            logCutoff = -exponent * Math.log(2);
+            ids = new int[count];
+            logs = new double[count];
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                long delta = readVarint(bytes, at);
+                // Ids strictly increase; only the first may be 0
+                if ((i > 0 && delta == 0) || delta > Integer.MAX_VALUE || previous + delta > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Malformed session snapshot");
+                }
+                previous += delta;
+                ids[i] = (int) previous;
+                logs[i] = -readVarint(bytes, at) / STEPS_PER_BIT * Math.log(2);
+            }
+        }
+        if (at[0] != bytes.length) throw new IllegalArgumentException("Malformed session snapshot");
+        return new SessionSnapshot(fingerprint, questionIndex, guessIndex, candidateCount, bookNode,
+            attributes, answers, ids, logs, logCutoff);
+    }
+
+    public boolean hasPosterior() {
+        return posteriorIds != null;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static int readInt(byte[] bytes, int[] at) {
+        long value = readVarint(bytes, at);
+        if (value > Integer.MAX_VALUE - 1) throw new IllegalArgumentException("Malformed session snapshot");
+        return (int) value;
+    }
+
+    private static long readVarint(byte[] bytes, int[] at) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (at[0] >= bytes.length) throw new IllegalArgumentException("Truncated session snapshot");
+            int b = bytes[at[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed session snapshot");
+    }
+
+    @Override
+    public String toString() {
+        return "SessionSnapshot[questions=" + questionIndex + ", answers=" + Arrays.toString(answers)
+            + (hasPosterior() ? ", posterior=" + posteriorIds.length + " animals" : "") + "]";
+    }
+}
@@ -0,0 +1,355 @@
+import org.apache.commons.math3.util.FastMath;
+
+import java.io.*;
+import java.net.*;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+// Coordinator side of a sharded knowledge base: the KnowledgeShards (in this process, or
+// worker processes reached over sockets) plus what every game needs from all of them at
+// once, i.e. attribute names and ids, and attribute classes merged across shards. Two
+// attributes share a class only if they do on every shard.
+//
+// Calls to remote shards are scattered on virtual threads and gathered in shard order.
+// ShardedSolver plays games on a cluster.
+public class ShardCluster implements AutoCloseable {
+
+    // What a coordinator needs from one shard. Remote failures surface as UncheckedIOException.
+    public interface Shard extends AutoCloseable {
+        KnowledgeShard.Info info();
+
+        void start(long game, double logPrior);
+
+        void apply(long game, int attribute, Answer answer);
+
+        KnowledgeShard.Top top(long game, int k);
+
+        KnowledgeShard.Split split(long game, double logZ, double threshold, int[] forced, long[] asked);
+
+        void end(long game);
+
+        @Override
+        void close();
+    }
+
+    private final List<Shard> shards;
+    private final List<Process> processes;
+    // Null when every shard is in this process
+    private final ExecutorService executor;
+    private final AtomicLong nextGame = new AtomicLong(1);
+
+    private final int entityCount;
+    private final String[] attributeNames;
+    private final Map<String, Integer> attributeIds = new HashMap<>();
+    private final int[] representative;
+    private final int[][] members;
+    private final long[] aliases;
+    private double[] log2Counts;
+
+    private ShardCluster(List<Shard> shards, List<Process> processes, boolean remote) {
+        this.shards = shards;
+        this.processes = processes;
+        this.executor = remote ? Executors.newVirtualThreadPerTaskExecutor() : null;
+
+        List<KnowledgeShard.Info> infos = gather(Shard::info);
+        String[] names = infos.get(0).attributeNames;
+        int entities = 0;
+        for (KnowledgeShard.Info info : infos) {
+            if (!Arrays.equals(info.attributeNames, names)) {
+                close();
+                throw new IllegalArgumentException("Shards disagree on the attributes of the knowledge base");
+            }
+            entities += info.entityCount;
+        }
+        this.entityCount = entities;
+        this.attributeNames = names;
+        for (int a = 0; a < names.length; a++) attributeIds.put(names[a], a);
+
+        // Class key of an attribute: its (representative, negated) code on every shard
+        this.representative = new int[names.length];
+        this.aliases = new long[CompiledKnowledgeBase.wordsFor(names.length)];
+        Map<IntBuffer, Integer> byKey = new HashMap<>();
+        int[] sizes = new int[names.length];
+        for (int a = 0; a < names.length; a++) {
+            int[] key = new int[infos.size()];
+            for (int s = 0; s < key.length; s++) key[s] = infos.get(s).classes[a];
+            Integer first = byKey.putIfAbsent(IntBuffer.wrap(key), a);
+            representative[a] = first == null ? a : first;
+            if (first != null) aliases[a >>> 6] |= 1L << a;
+            sizes[representative[a]]++;
+        }
+        this.members = new int[names.length][];
+        for (int a = 0; a < names.length; a++) {
+            int r = representative[a];
+            if (members[r] == null) members[r] = new int[sizes[r]];
+            members[r][members[r].length - sizes[r]--] = a;
+        }
+    }
+
+    // Splits a loaded knowledge base into in-process shards, e.g. for tests and benchmarks
+    public static ShardCluster local(CompiledKnowledgeBase kb, int shards) {
+        List<Shard> list = new ArrayList<>(shards);
+        for (int s = 0; s < shards; s++) {
+            list.add(new KnowledgeShard(KnowledgeShard.partition(kb, s, shards, kb.isSparse()), s, shards));
+        }
+        return new ShardCluster(list, List.of(), false);
+    }
+
+    // Starts one worker JVM per shard on this machine, with this process's classpath, and
+    // connects to them. The workers load their slices in parallel and exit with us.
+    public static ShardCluster launch(String kbPath, int shards) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> processes = new ArrayList<>(shards);
+        List<Shard> list = new ArrayList<>(shards);
+        try {
+            for (int s = 0; s < shards; s++) {
+                ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    "KnowledgeShard", kbPath, String.valueOf(s), String.valueOf(shards), "0", "--parent");
+                builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+                processes.add(builder.start());
+            }
+            for (int s = 0; s < shards; s++) {
+                BufferedReader out = new BufferedReader(new InputStreamReader(processes.get(s).getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = out.readLine()) != null && !line.startsWith("READY ")) {
+                    // Anything the worker prints while loading
+                }
+                if (line == null) throw new IOException("Shard " + s + " exited before it was ready");
+                int port = Integer.parseInt(line.substring("READY ".length()).trim());
+                list.add(new RemoteShard(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Shard shard : list) shard.close();
+            for (Process process : processes) process.destroyForcibly();
+            throw e;
+        }
+        return new ShardCluster(list, processes, true);
+    }
+
+    // Shards already running elsewhere, listed in shard order
+    public static ShardCluster connect(List<InetSocketAddress> addresses) throws IOException {
+        List<Shard> list = new ArrayList<>(addresses.size());
+        try {
+            for (InetSocketAddress address : addresses) list.add(new RemoteShard(address));
+        } catch (IOException e) {
+            for (Shard shard : list) shard.close();
+            throw e;
+        }
+        return new ShardCluster(list, List.of(), true);
+    }
+
+    // One call per shard, in parallel for remote shards; results in shard order
+    <T> List<T> gather(Function<Shard, T> call) {
+        List<T> results = new ArrayList<>(shards.size());
+        if (executor == null) {
+            for (Shard shard : shards) results.add(call.apply(shard));
+            return results;
+        }
+        List<Future<T>> futures = new ArrayList<>(shards.size());
+        for (Shard shard : shards) futures.add(executor.submit(() -> call.apply(shard)));
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for shards", e);
+            }
+        }
+        return results;
+    }
+
+    long newGame() {
+        long game = nextGame.getAndIncrement();
+        double uniform = -Math.log(entityCount);
+        gather(shard -> {
+            shard.start(game, uniform);
+            return null;
+        });
+        return game;
+    }
+
+    public int shardCount() {
+        return shards.size();
+    }
+
+    public int entityCount() {
+        return entityCount;
+    }
+
+    public int attributeCount() {
+        return attributeNames.length;
+    }
+
+    public String attributeName(int attribute) {
+        return attributeNames[attribute];
+    }
+
+    public int attributeId(String name) {
+        Integer id = attributeIds.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public int representative(int attribute) {
+        return representative[attribute];
+    }
+
+    // All attributes of the attribute's class, representative first
+    public int[] members(int attribute) {
+        return members[representative[attribute]];
+    }
+
+    public long[] aliasMask() {
+        return aliases.clone();
+    }
+
+    // log2 of every possible window size, as InformationGainKernel uses them
+    double[] log2Counts() {
+        double[] table = log2Counts;
+        if (table == null) {
+            table = new double[entityCount + 1];
+            for (int i = 1; i < table.length; i++) {
+                table[i] = FastMath.log(i) / FastMath.log(2);
+            }
+            log2Counts = table;
+        }
+        return table;
+    }
+
+    @Override
+    public void close() {
+        for (Shard shard : shards) shard.close();
+        if (executor != null) executor.shutdown();
+        for (Process process : processes) {
+            try {
+                // Workers started with --parent exit when their input closes
+                process.getOutputStream().close();
+                if (!process.waitFor(5, TimeUnit.SECONDS)) process.destroyForcibly();
+            } catch (IOException e) {
+                process.destroyForcibly();
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // A shard in another process. Requests on one connection are serialised with a lock
+    // rather than synchronized, which would pin a virtual thread's carrier while it waits
+    // for the reply.
+    private static final class RemoteShard implements Shard {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        private interface Exchange<T> {
+            T run() throws IOException;
+        }
+
+        RemoteShard(InetSocketAddress address) throws IOException {
+            this.socket = new Socket();
+            socket.connect(address, 10_000);
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        private <T> T call(Exchange<T> exchange) {
+            lock.lock();
+            try {
+                return exchange.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public KnowledgeShard.Info info() {
+            return call(() -> {
+                out.writeByte(KnowledgeShard.HELLO);
+                out.flush();
+                return KnowledgeShard.Info.read(in);
+            });
+        }
+
+        @Override
+        public void start(long game, double logPrior) {
+            call(() -> {
+                out.writeByte(KnowledgeShard.START);
+                out.writeLong(game);
+                out.writeDouble(logPrior);
+                out.flush();
+                return in.readByte();
+            });
+        }
+
+        @Override
+        public void apply(long game, int attribute, Answer answer) {
+            call(() -> {
+                out.writeByte(KnowledgeShard.ANSWER);
+                out.writeLong(game);
+                out.writeInt(attribute);
+                out.writeByte(answer.ordinal());
+                out.flush();
+                return in.readByte();
+            });
+        }
+
+        @Override
+        public KnowledgeShard.Top top(long game, int k) {
+            return call(() -> {
+                out.writeByte(KnowledgeShard.TOP);
+                out.writeLong(game);
+                out.writeInt(k);
+                out.flush();
+                return KnowledgeShard.Top.read(in);
+            });
+        }
+
+        @Override
+        public KnowledgeShard.Split split(long game, double logZ, double threshold, int[] forced, long[] asked) {
+            return call(() -> {
+                out.writeByte(KnowledgeShard.SPLIT);
+                out.writeLong(game);
+                out.writeDouble(logZ);
+                out.writeDouble(threshold);
+                out.writeInt(forced.length);
+                for (int id : forced) out.writeInt(id);
+                out.writeInt(asked.length);
+                for (long word : asked) out.writeLong(word);
+                out.flush();
+                return KnowledgeShard.Split.read(in);
+            });
+        }
+
+        @Override
+        public void end(long game) {
+            call(() -> {
+                out.writeByte(KnowledgeShard.END);
+                out.writeLong(game);
+                out.flush();
+                return in.readByte();
+            });
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+import java.util.*;
+
+// One game over a ShardCluster, making the same decisions as Solver's greedy path
+// (no opening book, planner or pruning). Each turn is two scatter-gathers:
+//
+//   1. top: every shard's best animals and log posterior mass, merged into the global
+//      normaliser, the global top animals and the window threshold
+//   2. split: every shard's window count and mass and, per attribute, yes/no counts and
+//      masses; summed, these give exactly the inputs of the gain formula
+//
+// Answers are broadcast and each shard updates its own animals. The normaliser is
+// merged afresh every turn, so renormalising costs no extra round trip.
+public class ShardedSolver implements AutoCloseable {
+    private static final int TOP_CANDIDATES = 5;
+
+    private final ShardCluster cluster;
+    private final long game;
+    private final long[] askedAttributes;
+    private final Map<String, Answer> userAnswers = new HashMap<>();
+    private int guessIndex = 0;
+    private int questionIndex = 0;
+    private int candidateCount;
+
+    // Global ranking from the last top gather, best first
+    private int[] rankedIds = new int[0];
+    private String[] rankedNames = new String[0];
+    private double bestLog;
+    private double lastGain = Double.NaN;
+
+    public ShardedSolver(ShardCluster cluster) {
+        this.cluster = cluster;
+        this.game = cluster.newGame();
+        this.askedAttributes = cluster.aliasMask();
+        this.candidateCount = cluster.entityCount();
+    }
+
+    public int getQuestionIndex() {
+        return questionIndex;
+    }
+
+    public boolean hasMoreConcreteGuesses() {
+        return guessIndex < candidateCount;
+    }
+
+    // Best gain found by the last makeGuess, NaN if it guessed before scoring
+    double getLastGain() {
+        return lastGain;
+    }
+
+    public Map<String, Answer> getUserAnswers() {
+        return Collections.unmodifiableMap(userAnswers);
+    }
+
+    public String makeGuess() {
+        lastGain = Double.NaN;
+        // 1. Global top animals and normaliser
+        double logZ = rank(TOP_CANDIDATES);
+        if (rankedIds.length == 0) return null;
+        double bestProb = Math.exp(bestLog - logZ);
+
+        if (bestProb >= 0.90 && questionIndex < 20) {
+            questionIndex++;
+            return "ANIMAL:" + rankedNames[0];
+        }
+
+        // 2. Window counts and masses per attribute, summed over shards
+        double threshold = bestProb * 0.25;
+        int[] forced = rankedIds.clone();
+        List<KnowledgeShard.Split> splits = cluster.gather(shard -> shard.split(game, logZ, threshold, forced, askedAttributes));
+        int count = 0;
+        double mass = 0.0;
+        for (KnowledgeShard.Split split : splits) {
+            count += split.count;
+            mass += split.mass;
+        }
+        candidateCount = count;
+
+        double[] log2 = cluster.log2Counts();
+        int bestAttr = -1;
+        double bestGain = Double.NEGATIVE_INFINITY;
+        for (int a = 0; a < cluster.attributeCount(); a++) {
+            if ((askedAttributes[a >>> 6] & (1L << a)) != 0) continue;
+            int yes = 0;
+            int no = 0;
+            double pYes = 0.0;
+            double pNo = 0.0;
+            for (KnowledgeShard.Split split : splits) {
+                yes += split.yes[a];
+                no += split.no[a];
+                pYes += split.pYes[a];
+                pNo += split.pNo[a];
+            }
+            // Same test as AttributeIndex: the attribute has to split the window
+            if (yes + no == 0 || yes == count || no == count) continue;
+
+            int maybe = count - yes - no;
+            double pMaybe = Math.max(0.0, mass - pYes - pNo);
+            double pTotal = pYes + pNo + pMaybe;
+            double gain = log2[count] - (pYes * log2[yes] + pNo * log2[no] + pMaybe * log2[maybe]) / pTotal;
+            if (gain > bestGain) {
+                bestGain = gain;
+                bestAttr = a;
+            }
+        }
+
+        lastGain = bestGain;
+
+        // 3. Decision, as in Solver
+        if (questionIndex >= 20) {
+            return guessIndex < candidateCount ? "ANIMAL:" + rankedName(guessIndex++) : null;
+        }
+        if (bestAttr >= 0 && bestGain > 0.001) {
+            questionIndex++;
+            return "ATTR:" + cluster.attributeName(bestAttr);
+        }
+        if (guessIndex < candidateCount) {
+            questionIndex++;
+            return "ANIMAL:" + rankedName(guessIndex++);
+        }
+        return null;
+    }
+
+    // Merges the shards' k best into the global ranking (ties to the lower id) and
+    // returns the log of the total posterior mass
+    private double rank(int k) {
+        List<KnowledgeShard.Top> tops = cluster.gather(shard -> shard.top(game, k));
+        double max = Double.NEGATIVE_INFINITY;
+        int total = 0;
+        for (KnowledgeShard.Top top : tops) {
+            max = Math.max(max, top.logMax);
+            total += top.ids.length;
+        }
+        double sum = 0.0;
+        for (KnowledgeShard.Top top : tops) {
+            if (top.sum > 0) sum += top.sum * Math.exp(top.logMax - max);
+        }
+
+        int[] ids = new int[total];
+        double[] logs = new double[total];
+        String[] names = new String[total];
+        int n = 0;
+        for (KnowledgeShard.Top top : tops) {
+            for (int i = 0; i < top.ids.length; i++) {
+                int j = n++;
+                while (j > 0 && (top.logPosterior[i] > logs[j - 1]
+                    || (top.logPosterior[i] == logs[j - 1] && top.ids[i] < ids[j - 1]))) {
+                    ids[j] = ids[j - 1];
+                    logs[j] = logs[j - 1];
+                    names[j] = names[j - 1];
+                    j--;
+                }
+                ids[j] = top.ids[i];
+                logs[j] = top.logPosterior[i];
+                names[j] = top.names[i];
+            }
+        }
+        int kept = Math.min(k, n);
+        rankedIds = Arrays.copyOf(ids, kept);
+        rankedNames = Arrays.copyOf(names, kept);
+        bestLog = kept > 0 ? logs[0] : Double.NEGATIVE_INFINITY;
+        return max + Math.log(sum);
+    }
+
+    // The window is a prefix of the global ranking, so the rank-th guess is the rank-th
+    // best animal overall
+    private String rankedName(int rank) {
+        if (rank >= rankedNames.length) rank(rank + 1);
+        return rankedNames[rank];
+    }
+
+    public boolean applyAnswer(String attribute, Answer answer) {
+        userAnswers.put(attribute, answer);
+        guessIndex = 0;
+        int attr = cluster.attributeId(attribute);
+        if (attr < 0) return true;
+
+        int representative = cluster.representative(attr);
+        if ((askedAttributes[representative >>> 6] & (1L << representative)) == 0) {
+            for (int m : cluster.members(attr)) askedAttributes[m >>> 6] |= 1L << m;
+        }
+        cluster.gather(shard -> {
+            shard.apply(game, attr, answer);
+            return null;
+        });
+        return true;
+    }
+
+    @Override
+    public void close() {
+        cluster.gather(shard -> {
+            shard.end(game);
+            return null;
+        });
+    }
+}
@@ -0,0 +1,239 @@
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+// Plays simulated games in parallel. Every trial gets its own SplittableRandom seeded
+// from (seed, trial index), and tallies are plain counters merged per chunk, so the
+// results are bit-for-bit the same whatever the thread count.
+public class SimulationEngine {
+    private static final int CHUNK = 256;
+
+    // How the simulated player answers a question about its target
+    public interface AnswerModel {
+        Answer answer(CompiledKnowledgeBase kb, int target, int attribute, SplittableRandom random);
+    }
+
+    // Truthful player who says "maybe" when the value is unknown, and otherwise with the given rate
+    public static AnswerModel noisy(double maybeRate) {
+        return (kb, target, attribute, random) -> {
+            byte truth = kb.value(target, attribute);
+            if (truth == CompiledKnowledgeBase.UNKNOWN) return Answer.MAYBE;
+            if (random.nextDouble() < maybeRate) return Answer.MAYBE;
+            return truth == CompiledKnowledgeBase.TRUE ? Answer.YES : Answer.NO;
+        };
+    }
+
+    public static class Results {
+        public final long[] successCount;
+        public final long[] failureCount;
+        public long trials;
+        public long successes;
+        public long failures;
+        public long totalQuestions;
+
+        Results(int entities) {
+            successCount = new long[entities];
+            failureCount = new long[entities];
+        }
+
+        void merge(Results other) {
+            trials += other.trials;
+            successes += other.successes;
+            failures += other.failures;
+            totalQuestions += other.totalQuestions;
+            for (int e = 0; e < successCount.length; e++) {
+                successCount[e] += other.successCount[e];
+                failureCount[e] += other.failureCount[e];
+            }
+        }
+    }
+
+    private final CompiledKnowledgeBase kb;
+    private final AnswerModel answerModel;
+    private final long seed;
+    private Consumer<Solver> solverSetup = solver -> {};
+
+    public SimulationEngine(CompiledKnowledgeBase kb, AnswerModel answerModel, long seed) {
+        this.kb = kb;
+        this.answerModel = answerModel;
+        this.seed = seed;
+    }
+
+    // Configures every solver before its game starts (planner, pruning, ...)
+    public void setSolverSetup(Consumer<Solver> solverSetup) {
+        this.solverSetup = solverSetup;
+    }
+
+    public Results run(int trials, int threads) {
+        int chunks = (trials + CHUNK - 1) / CHUNK;
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            return pool.submit(() -> IntStream.range(0, chunks).parallel()
+                .mapToObj(chunk -> runTrials(chunk * CHUNK, Math.min(trials, (chunk + 1) * CHUNK)))
+                .reduce(new Results(kb.entityCount()), (a, b) -> {
+                    Results merged = new Results(kb.entityCount());
+                    merged.merge(a);
+                    merged.merge(b);
+                    return merged;
+                })).join();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Same games as run(), played through BatchSolver in batches of batchSize. Games
+    // share work while their histories agree, which is most of the early turns. The
+    // solver setup isn't applied: batches always use the greedy solver without pruning.
+    public Results runBatched(int trials, int threads, int batchSize) {
+        int batches = (trials + batchSize - 1) / batchSize;
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            return pool.submit(() -> IntStream.range(0, batches).parallel()
+                .mapToObj(batch -> runBatch(batch * batchSize, Math.min(trials, (batch + 1) * batchSize)))
+                .reduce(new Results(kb.entityCount()), (a, b) -> {
+                    Results merged = new Results(kb.entityCount());
+                    merged.merge(a);
+                    merged.merge(b);
+                    return merged;
+                })).join();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Plays trials [from, to) as one batch, with the same rules as playGame
+    public Results runBatch(int from, int to) {
+        int games = to - from;
+        SplittableRandom[] randoms = new SplittableRandom[games];
+        int[] targets = new int[games];
+        int[] questions = new int[games];
+        boolean[] lastGuess = new boolean[games];
+        for (int g = 0; g < games; g++) {
+            randoms[g] = new SplittableRandom(mix64(seed + (from + g) * 0x9e3779b97f4a7c15L));
+            targets[g] = randoms[g].nextInt(kb.entityCount());
+        }
+
+        Results results = new Results(kb.entityCount());
+        BatchSolver batch = new BatchSolver(kb, games);
+        while (batch.activeGames() > 0) {
+            int[] steps = batch.step();
+            for (int g = 0; g < games; g++) {
+                int step = steps[g];
+                if (step == BatchSolver.FINISHED) continue;
+
+                if (step == BatchSolver.GIVE_UP) {
+                    finishGame(results, batch, g, targets[g], ~questions[g]);
+                } else if (BatchSolver.isQuestion(step)) {
+                    batch.answer(g, answerModel.answer(kb, targets[g], step, randoms[g]));
+                    // After the 20th question the solver gets one last guess
+                    if (++questions[g] >= 20) lastGuess[g] = true;
+                } else if (lastGuess[g]) {
+                    boolean right = BatchSolver.guessedAnimal(step) == targets[g];
+                    finishGame(results, batch, g, targets[g], right ? questions[g] : ~questions[g]);
+                } else {
+                    questions[g]++;
+                    if (BatchSolver.guessedAnimal(step) == targets[g]) {
+                        finishGame(results, batch, g, targets[g], questions[g]);
+                    } else if (!batch.hasMoreGuesses(g)) {
+                        finishGame(results, batch, g, targets[g], ~questions[g]);
+                    } else {
+                        batch.wrong(g);
+                    }
+                }
+            }
+            batch.advance();
+        }
+        return results;
+    }
+
+    private static void finishGame(Results results, BatchSolver batch, int game, int target, int questions) {
+        batch.finish(game);
+        results.trials++;
+        if (questions >= 0) {
+            results.successes++;
+            results.successCount[target]++;
+            results.totalQuestions += questions;
+        } else {
+            results.failures++;
+            results.failureCount[target]++;
+            results.totalQuestions += ~questions;
+        }
+    }
+
+    // Plays trials [from, to) on the calling thread
+    public Results runTrials(int from, int to) {
+        Results results = new Results(kb.entityCount());
+        for (int trial = from; trial < to; trial++) {
+            SplittableRandom random = new SplittableRandom(mix64(seed + trial * 0x9e3779b97f4a7c15L));
+            int target = random.nextInt(kb.entityCount());
+            int questions = playGame(target, random);
+
+            results.trials++;
+            if (questions >= 0) {
+                results.successes++;
+                results.successCount[target]++;
+                results.totalQuestions += questions;
+            } else {
+                results.failures++;
+                results.failureCount[target]++;
+                results.totalQuestions += ~questions;
+            }
+        }
+        return results;
+    }
+
+    // Returns the question count on success, or its complement (~count) on failure
+    private int playGame(int target, SplittableRandom random) {
+        Solver solver = Solver.offline(kb);
+        solverSetup.accept(solver);
+        int questions = play(solver, target, random);
+        solver.recordOutcome(questions >= 0);
+        return questions;
+    }
+
+    private int play(Solver solver, int target, SplittableRandom random) {
+        String targetName = kb.entityName(target);
+        int qCount = 0;
+
+        while (true) {
+            String result = solver.makeGuess();
+
+            if (result == null) {
+                return ~qCount;
+            }
+
+            if (result.startsWith("ATTR:")) {
+                String attr = result.substring(5);
+                solver.applyAnswer(attr, answerModel.answer(kb, target, kb.attributeId(attr), random));
+                qCount++;
+            } else if (result.startsWith("ANIMAL:")) {
+                qCount++;
+                if (result.substring(7).equals(targetName)) {
+                    return qCount;
+                }
+                if (!solver.hasMoreConcreteGuesses()) {
+                    return ~qCount;
+                }
+                continue;
+            }
+
+            // Safety: prevent infinite loops
+            if (qCount >= 20) {
+                String fallback = solver.makeGuess();  // LET SOLVER TRY A CONCRETE GUESS
+                if (fallback == null) {
+                    return ~qCount;
+                }
+                if (fallback.startsWith("ANIMAL:")) {
+                    return fallback.substring(7).equals(targetName) ? qCount : ~qCount;
+                }
+            }
+        }
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
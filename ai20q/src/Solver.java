@@ -1,200 +1,529 @@
 import java.util.*;
-import org.apache.commons.math3.util.FastMath;
+import java.util.concurrent.ForkJoinPool;
 
 enum Answer {
     YES, NO, MAYBE
 }
 
 public class Solver {
-    private Map<String, Map<String, Boolean>> allAnimals;
-    private Set<String> askedAttributes = new HashSet<>();
+    private static final int TOP_CANDIDATES = 5;
+    // Window buffer a session keeps between turns; larger windows get one for the turn
+    private static final int KEPT_WINDOW_CAPACITY = 64;
+
+    private CompiledKnowledgeBase kb;
+    private InformationGainKernel kernel;
+    // Counts per attribute over the candidate window, kept up to date between turns
+    private AttributeIndex attributeIndex;
+    private long[] askedAttributes;
     private int guessIndex = 0;
     private int questionIndex = 0;
 
-    private List<String> currentCandidates = new ArrayList<>();
+    private int candidateCount = 0;
+    // Candidate window as a max-heap; the first rankedCount guesses in order sit at its end.
+    // Rebuilt every scored turn, so nothing in it outlives the turn.
+    private int[] rankHeap = new int[KEPT_WINDOW_CAPACITY];
+    private int rankedCount = 0;
+    private final int[] topAnimals = new int[TOP_CANDIDATES];
+    private long[] candidateMask;
     private Map<String, Answer> userAnswers = new HashMap<>();
-    private Map<String, Double> probabilities = new HashMap<>();
-
+    // Answers to known attributes in the order given, for snapshots
+    private int[] answerAttributes = new int[8];
+    private Answer[] answerLog = new Answer[8];
+    private int answerCount = 0;
+    private PosteriorEngine posterior;
+    private double[] probabilities;
+    private double pruneEpsilon = PosteriorEngine.DEFAULT_PRUNE_EPSILON;
+
+    // Steps shared with other games; off while planning or sampling, or after a restore
+    // from a quantised posterior, where the step no longer follows from the answers alone
+    private StepCache stepCache;
+    private boolean exactPosterior = true;
+
+    // Sampled scoring on windows of at least sampleWindow animals; off while sampleSize is 0
+    private int sampleWindow;
+    private int sampleSize = 0;
+    private int sampleExact;
+    private double sampleDelta;
+
+    // Lookahead planner; null means the greedy size-based choice
+    private QuestionPlanner planner;
+
+    // Position in the opening book, or -1 once the game has left it
+    private OpeningBook openingBook;
+    private int bookNode = 0;
+    private int bookAttribute = -1;
+
+    private final SolverMetrics metrics;
+    private final long traceId;
+    private boolean gaveUp = false;
+    private boolean finished = false;
+    private int turn = 0;
+    private int turnEvaluated;
+    private double turnGain;
+    private double turnEntropy;
+
+    // Transcript of this game, if logging is on
+    private TranscriptLog transcript;
+    private long transcriptGame;
+    private int lastGuess = -1;
 
     public Solver(Map<String, Map<String, Boolean>> data) {
-        this.allAnimals = data;
-        this.currentCandidates = new ArrayList<>(data.keySet());
-        for (String animal : data.keySet()) {
-            probabilities.put(animal, 1.0 / data.size());
-        }
+        this(CompiledKnowledgeBase.compile(data));
+    }
+
+    public Solver(CompiledKnowledgeBase kb) {
+        this(kb, SolverMetrics.global(), SolverMetrics.global().startGame());
+    }
+
+    private Solver(CompiledKnowledgeBase kb, SolverMetrics metrics, long traceId) {
+        this.kb = kb;
+        this.metrics = metrics;
+        this.kernel = new InformationGainKernel(kb);
+        this.attributeIndex = new AttributeIndex(kb);
+        // Aliases of another attribute's column start out retired
+        this.askedAttributes = kb.attributeClasses().aliasMask();
+        this.candidateMask = new long[kb.wordCount()];
+        this.posterior = new PosteriorEngine(kb);
+        this.candidateCount = kb.entityCount();
+        this.traceId = traceId;
+    }
+
+    // A solver that isn't a live game (building a book, replaying transcripts, simulating
+    // games): nothing it does is counted in the metrics
+    static Solver offline(CompiledKnowledgeBase kb) {
+        return new Solver(kb, SolverMetrics.OFF, 0);
+    }
+
+    // Likelihoods for this game; must be set before the first answer
+    public void setLikelihoodModel(LikelihoodModel model) {
+        posterior.setLikelihoodModel(model);
+        if (transcript != null) transcript.model(transcriptGame, posterior.getLikelihoodModel());
     }
 
     public int getQuestionIndex() {
         return questionIndex;
     }
 
-    public String makeGuess() {
-        // 1. Calculate scores for ALL animals and sort them
-        List<String> sortedAnimals = new ArrayList<>(allAnimals.keySet());
-        sortedAnimals.sort((a, b) -> Double.compare(calculateScore(b), calculateScore(a)));
-        for (String animal : sortedAnimals) {
-            // System.out.println("Animal: " + animal + ", Score: " + calculateScore(animal));
+    // Scores attributes on the given pool once attributes x bitset words reaches the threshold
+    public void enableParallelScoring(ForkJoinPool pool, long threshold) {
+        kernel.setParallelism(pool, threshold);
+    }
+
+    public void disableParallelScoring() {
+        kernel.setParallelism(null, InformationGainKernel.DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    // Animals whose posterior drops below epsilon are skipped until an answer brings them back
+    public void setPruneEpsilon(double epsilon) {
+        this.pruneEpsilon = epsilon;
+        posterior.setPruneEpsilon(epsilon);
+    }
+
+    // Trades accuracy for latency on large windows: turns whose window holds at least
+    // minWindow animals estimate every attribute from sampleSize posterior-weighted draws
+    // and score only the exactAttributes most promising ones exactly (see
+    // InformationGainKernel.scoreSampled). Can change between turns; a sample size of 0
+    // scores every turn exactly again. The sample is seeded from the answers so far, so a
+    // game replays the same way while different games draw different samples.
+    public void setSampledScoring(int minWindow, int sampleSize, int exactAttributes, double delta) {
+        this.sampleWindow = minWindow;
+        this.sampleSize = sampleSize;
+        this.sampleExact = exactAttributes;
+        this.sampleDelta = delta;
+    }
+
+    // Reads the first questions from a precomputed book until the game leaves it
+    public void setOpeningBook(OpeningBook book) {
+        this.openingBook = book;
+    }
+
+    // Chooses questions with the lookahead planner instead of the greedy score
+    public void setPlanner(QuestionPlanner planner) {
+        this.planner = planner;
+    }
+
+    // Looks each greedy step up in (and adds it to) a cache shared across games
+    public void setStepCache(StepCache cache) {
+        this.stepCache = cache;
+    }
+
+    // Logs every question, guess and the outcome of this game
+    public void setTranscript(TranscriptLog transcript) {
+        this.transcript = transcript;
+        if (transcript != null) {
+            transcriptGame = transcript.startGame(kb.fingerprint());
+            LikelihoodModel model = posterior.getLikelihoodModel();
+            if (model != LikelihoodModel.DEFAULT) transcript.model(transcriptGame, model);
         }
+    }
 
-        // 2. Filter to get the "current candidates"
-        // We take the top animals (e.g., top 15) or those with scores close to the max
-        this.currentCandidates = new ArrayList<>(); // Clear old list
-        
-        List<String> sortedProbabilities = new ArrayList<>(probabilities.keySet());
-        sortedProbabilities.sort((a, b) -> Double.compare(calculateScore(b), calculateScore(a)));
+    public double getProbability(String animal) {
+        int id = kb.entityId(animal);
+        return id < 0 ? 0.0 : posterior.probability(id);
+    }
 
-        double bestProb = calculateScore(sortedProbabilities.get(0));
+    public String makeGuess() {
+        String step = metrics.isEnabled() ? measuredStep() : nextStep();
+        if (step != null && step.startsWith("ANIMAL:")) {
+            lastGuess = kb.entityId(step.substring("ANIMAL:".length()));
+            if (transcript != null) transcript.guess(transcriptGame, questionIndex, lastGuess);
+        }
+        return step;
+    }
 
-        // Guess the top animal if it meets the probability threshold
-        String top = sortedProbabilities.get(0);
-        double topProb = calculateScore(top);
+    private String measuredStep() {
+        turnEvaluated = -1;
+        turnGain = Double.NaN;
+        turnEntropy = Double.NaN;
+        int candidatesBefore = candidateCount;
+        long allocated = metrics.allocatedBytes();
+        long start = System.nanoTime();
+
+        String step = nextStep();
+
+        long nanos = System.nanoTime() - start;
+        allocated = metrics.allocatedBytes() - allocated;
+        int candidates = turnEvaluated >= 0 ? candidateCount : -1;
+        metrics.recordMakeGuess(nanos, allocated, candidates, turnEvaluated, turnGain, turnEntropy);
+        if (step == null && !gaveUp) {
+            gaveUp = true;
+            metrics.recordGaveUp();
+        }
+        if (traceId != 0) {
+            metrics.trace(new SolverMetrics.TraceEvent(traceId, ++turn, questionIndex, step,
+                turnEvaluated >= 0 ? candidateCount : candidatesBefore, turnEvaluated, turnGain, turnEntropy, nanos, allocated));
+        }
+        return step;
+    }
 
-        if (topProb >= 0.90 && questionIndex < 20) {
-            questionIndex++;
-            // System.out.println("===================================================");
-            // System.out.println("High confidence guess: " + top + " with probability " + topProb);
-            return "ANIMAL:" + top;
+    // The game reached its end: the player confirmed a guess, or we ran out of them
+    public void recordOutcome(boolean won) {
+        if (finished) return;
+        finished = true;
+        if (metrics.isEnabled()) metrics.recordOutcome(won, gaveUp, questionIndex);
+        if (transcript != null) {
+            if (won && lastGuess >= 0) transcript.target(transcriptGame, lastGuess);
+            transcript.end(transcriptGame, questionIndex, won);
         }
+    }
 
-        for (String animal : sortedProbabilities) {
-            if(this.currentCandidates.size() < 5 || 
-                probabilities.get(animal) >= bestProb * 0.25) {
-                this.currentCandidates.add(animal);
+    // The player told us which animal it was (after we lost)
+    public void recordTarget(String animal) {
+        int id = kb.entityId(animal);
+        if (transcript != null && id >= 0) transcript.target(transcriptGame, id);
+    }
+
+    private String nextStep() {
+        // 0. Opening book: same answers so far as the book was built with
+        if (openingBook != null && bookNode >= 0 && questionIndex < 20
+                && openingBook.appliesTo(posterior.getLikelihoodModel(), pruneEpsilon)) {
+            bookAttribute = openingBook.question(kb, bookNode);
+            if (bookAttribute >= 0) {
+                questionIndex++;
+                return "ATTR:" + kb.attributeName(bookAttribute);
             }
         }
-
-        // 3. Information Gain Logic (Applied to 'candidates' instead of 'remaining')
-        Set<String> attrs = new HashSet<>();
-        for (String animal : this.currentCandidates) {
-            Map<String, Boolean> mp = allAnimals.get(animal);
-            if (mp != null) attrs.addAll(mp.keySet());
+        bookNode = -1;
+
+        if (stepCache == null || planner != null || sampleSize > 0 || !exactPosterior) return scoreStep();
+        StepCache.Key key = new StepCache.Key(kb.fingerprint(), posterior.getLikelihoodModel(), pruneEpsilon,
+            questionIndex, guessIndex, answerAttributes, answerLog, answerCount);
+        StepCache.Step cached = stepCache.get(key);
+        if (cached != null) {
+            // Normalise (and prune) here as scoring would; the window itself is rebuilt
+            // by the next step that scores
+            posterior.activeCount();
+            candidateCount = cached.candidateCount;
+            questionIndex = cached.questionIndex;
+            guessIndex = cached.guessIndex;
+            return cached.step;
         }
+        String step = scoreStep();
+        stepCache.put(key, new StepCache.Step(step, candidateCount, questionIndex, guessIndex, key));
+        return step;
+    }
 
-        String bestAttr = null;
-        double bestGain = Double.NEGATIVE_INFINITY;
+    private String scoreStep() {
+        String step = scoreWindow();
+        // Early windows span most of the knowledge base; a session waiting for its
+        // player shouldn't hold on to one
+        if (rankHeap.length > KEPT_WINDOW_CAPACITY) rankHeap = new int[KEPT_WINDOW_CAPACITY];
+        return step;
+    }
 
-        // Iterate over attributes to find the best split
-        for (String attr : attrs) {
-            if (askedAttributes.contains(attr)) continue;
+    private String scoreWindow() {
+        this.probabilities = posterior.probabilities();
 
-            // Entropy Calculation on 'candidates'
-            List<String> yesGroup = new ArrayList<>();
-            List<String> noGroup = new ArrayList<>();
-            List<String> maybeGroup = new ArrayList<>();
+        // 1. Top animals in one pass, best first (ties go to the lower id)
+        int topCount = selectTop();
+        int top = topAnimals[0];
+        double bestProb = calculateScore(top);
+
+        // 2. Filter to get the "current candidates"
+        // We take the top animals (e.g., top 5) or those with scores close to the max
+        this.candidateCount = 0; // Clear old list
+        this.rankedCount = 0;
+        Arrays.fill(candidateMask, 0L);
 
-            for (String animal : this.currentCandidates) {
-                Boolean value = allAnimals.get(animal).get(attr);
-                if (value == null) maybeGroup.add(animal);
-                else if (value) yesGroup.add(animal);
-                else noGroup.add(animal);
+        // Guess the top animal if it meets the probability threshold
+        if (bestProb >= 0.90 && questionIndex < 20) {
+            questionIndex++;
+            return "ANIMAL:" + kb.entityName(top);
+        }
+
+        for (int i = 0; i < topCount; i++) {
+            addCandidate(topAnimals[i]);
+        }
+        double threshold = bestProb * 0.25;
+        for (int e = 0; e < kb.entityCount(); e++) {
+            if (probabilities[e] >= threshold && (candidateMask[e >>> 6] & (1L << e)) == 0) {
+                addCandidate(e);
             }
+        }
 
-            // If a question doesn't split the group at all, skip it
-            if (yesGroup.isEmpty() && noGroup.isEmpty()) continue;
-            
-            // Calculate IG (standard logic)
-            int total = this.currentCandidates.size();
-            double hBefore = log2(total);
-            double pYes = yesGroup.stream().mapToDouble(animal -> probabilities.get(animal)).sum();
-            double pNo = noGroup.stream().mapToDouble(animal -> probabilities.get(animal)).sum();
-            double pMaybe = maybeGroup.stream().mapToDouble(animal -> probabilities.get(animal)).sum();
-
-            double pTotal = pYes + pNo + pMaybe;
-            pYes /= pTotal;
-            pNo /= pTotal;
-            pMaybe /= pTotal;
-            
-            double hYes = (yesGroup.size() == 0) ? 0 : log2(yesGroup.size());
-            double hNo = (noGroup.size() == 0) ? 0 : log2(noGroup.size());
-            double hMaybe = (maybeGroup.size() == 0) ? 0 : log2(maybeGroup.size());
-
-            double infoGain = hBefore - (pYes * hYes + pNo * hNo + pMaybe * hMaybe);
-
-            if (infoGain > bestGain) {
-                bestGain = infoGain;
-                bestAttr = attr;
+        // Guess order is only needed as far as we guess, so the window is kept as a heap
+        for (int i = candidateCount / 2 - 1; i >= 0; i--) siftDown(i, candidateCount);
+
+        // 3. Information Gain Logic (Applied to 'candidates' instead of 'remaining')
+        int bestAttr;
+        double bestGain;
+        if (planner != null) {
+            planner.plan(candidateMask, probabilities, askedAttributes);
+            bestAttr = planner.getBestAttribute();
+            bestGain = planner.getBestGain();
+        } else {
+            // Only attributes that still split the window can have a positive gain
+            attributeIndex.update(candidateMask, candidateCount);
+            if (sampleSize > 0 && candidateCount >= sampleWindow) {
+                kernel.scoreSampled(candidateMask, candidateCount, probabilities, attributeIndex,
+                    sampleSize, sampleExact, sampleDelta, sampleSeed());
+            } else {
+                kernel.score(candidateMask, candidateCount, probabilities,
+                    attributeIndex.informative(), attributeIndex.informativeCount());
             }
+            bestAttr = kernel.getBestAttribute();
+            bestGain = kernel.getBestGain();
+        }
+        if (metrics.isEnabled()) {
+            turnEvaluated = planner != null ? kb.attributeCount() - askedCount() : attributeIndex.informativeCount();
+            turnGain = bestGain;
+            // A log per candidate: only when someone reads it
+            turnEntropy = traceId != 0 || metrics.isTrackingEntropy() ? windowEntropy() : Double.NaN;
         }
 
         // 4. Decision: Ask Attribute or Guess Animal
         // If we have reached the 20th question, guess the best candidate
         if (questionIndex >= 20) {
-            if (guessIndex < this.currentCandidates.size()) {
-                return "ANIMAL:" + this.currentCandidates.get(guessIndex++);
+            if (guessIndex < this.candidateCount) {
+                return "ANIMAL:" + kb.entityName(rankedCandidate(guessIndex++));
             } else {
                 return null;
             }
         }
 
         // If we found a good attribute, ask it
-        if (bestAttr != null && bestGain > 0.001) { 
+        if (bestAttr >= 0 && bestGain > 0.001) {
             questionIndex++;
-            // System.out.println("===================================================");
-            // System.out.println("Asking about attribute: " + bestAttr);
-            return "ATTR:" + bestAttr;
+            return "ATTR:" + kb.attributeName(bestAttr);
         }
 
         // If no good attribute found (or IG is 0), start guessing from the top of the sorted list
-        if (guessIndex < this.currentCandidates.size()) {
+        if (guessIndex < this.candidateCount) {
             questionIndex++;
-            // System.out.println("===================================================");
-            // System.out.println("Guessing animal: " + this.currentCandidates.get(guessIndex));
-            return "ANIMAL:" + this.currentCandidates.get(guessIndex++);
+            return "ANIMAL:" + kb.entityName(rankedCandidate(guessIndex++));
         }
 
         return null;
     }
 
     public boolean applyAnswer(String attribute, Answer answer) {
+        boolean timed = metrics.isEnabled();
+        long start = timed ? System.nanoTime() : 0;
+        int attr = kb.attributeId(attribute);
+        recordAnswer(attribute, attr, answer);
+        if (transcript != null && attr >= 0) transcript.question(transcriptGame, questionIndex, attr, answer);
+
+        if (bookNode >= 0 && attr >= 0 && attr == bookAttribute) {
+            bookNode = OpeningBook.child(bookNode, answer);
+        } else {
+            bookNode = -1;
+        }
+
+        // Normalisation is deferred to the next read of the posterior
+        posterior.apply(attr, answer);
+
+        if (timed) metrics.recordApplyAnswer(System.nanoTime() - start);
+        return true;
+    }
+
+    // Everything an answer changes apart from the posterior and the opening book
+    private void recordAnswer(String attribute, int attr, Answer answer) {
         userAnswers.put(attribute, answer);
-        askedAttributes.add(attribute);
         guessIndex = 0;
-        double total = 0.0;
+        if (attr < 0) return;
 
-        for(String animal : probabilities.keySet()) {
-            Boolean value = allAnimals.get(animal).get(attribute);
-            double likelihood = likelihood(answer, value);
+        if (answerCount == answerAttributes.length) {
+            answerAttributes = Arrays.copyOf(answerAttributes, answerCount * 2);
+            answerLog = Arrays.copyOf(answerLog, answerCount * 2);
+        }
+        answerAttributes[answerCount] = attr;
+        answerLog[answerCount++] = answer;
+
+        // Asking one attribute answers its whole class
+        int representative = kb.attributeClasses().representative(attr);
+        if ((askedAttributes[representative >>> 6] & (1L << representative)) == 0) {
+            for (int m : kb.attributeClasses().members(attr)) askedAttributes[m >>> 6] |= 1L << m;
+            attributeIndex.retire(attr);
+        }
+    }
 
-            double posterior = probabilities.get(animal) * likelihood;
-            probabilities.put(animal, posterior);
+    // The game so far as a few dozen bytes: the answers, counters and knowledge base
+    // fingerprint. Any node with the same knowledge base can restore() it.
+    public byte[] snapshot() {
+        return SessionSnapshot.encode(kb.fingerprint(), questionIndex, guessIndex, candidateCount, bookNode,
+            answerAttributes, answerLog, answerCount, null, 0);
+    }
+
+    // Also stores the posterior of every animal at or above the cutoff, quantised, so a
+    // restore doesn't replay answers over the whole knowledge base. Animals below the
+    // cutoff come back pruned at the cutoff.
+    public byte[] snapshot(double posteriorCutoff) {
+        return SessionSnapshot.encode(kb.fingerprint(), questionIndex, guessIndex, candidateCount, bookNode,
+            answerAttributes, answerLog, answerCount, posterior.probabilities(), posteriorCutoff);
+    }
 
-            total += posterior;
+    // Rebuilds a game from snapshot() bytes. Answers naming attributes that aren't in the
+    // knowledge base are not part of the snapshot. Transcript logging, the opening book
+    // and the planner are per node and have to be set again.
+    public static Solver restore(CompiledKnowledgeBase kb, byte[] bytes) {
+        SessionSnapshot snapshot = SessionSnapshot.decode(bytes);
+        if (snapshot.fingerprint != kb.fingerprint()) {
+            throw new IllegalArgumentException("Session snapshot was taken on a different knowledge base");
         }
-        
-        // Normalize probabilities
-        for (String animal : probabilities.keySet()) {
-            probabilities.put(animal, probabilities.get(animal) / total);
+        for (int attr : snapshot.attributes) {
+            if (attr < 0 || attr >= kb.attributeCount()) throw new IllegalArgumentException("Bad attribute in session snapshot");
         }
+        if (snapshot.hasPosterior()) {
+            int[] ids = snapshot.posteriorIds;
+            if (ids.length > kb.entityCount() || (ids.length > 0 && ids[ids.length - 1] >= kb.entityCount())) {
+                throw new IllegalArgumentException("Bad animal in session snapshot");
+            }
+        }
+        // The game was counted when it started
+        Solver solver = new Solver(kb, SolverMetrics.global(), 0);
+        for (int i = 0; i < snapshot.attributes.length; i++) {
+            int attr = snapshot.attributes[i];
+            solver.recordAnswer(kb.attributeName(attr), attr, snapshot.answers[i]);
+            if (!snapshot.hasPosterior()) {
+                // Normalise between answers as a live game does, so pruning follows it
+                solver.posterior.activeCount();
+                solver.posterior.apply(attr, snapshot.answers[i]);
+            }
+        }
+        if (snapshot.hasPosterior()) {
+            solver.exactPosterior = false;
+            solver.posterior.restore(snapshot.attributes, snapshot.answers, snapshot.posteriorIds,
+                snapshot.logProbabilities, snapshot.logCutoff);
+        }
+        solver.questionIndex = snapshot.questionIndex;
+        solver.guessIndex = snapshot.guessIndex;
+        solver.candidateCount = Math.min(snapshot.candidateCount, kb.entityCount());
+        solver.bookNode = snapshot.bookNode;
+        return solver;
+    }
 
-        return true;
+    // The answers given so far, keyed by attribute name
+    public Map<String, Answer> getUserAnswers() {
+        return Collections.unmodifiableMap(userAnswers);
     }
 
     public boolean hasMoreConcreteGuesses() {
-        return guessIndex < currentCandidates.size();
+        return guessIndex < candidateCount;
+    }
+
+    // Fills topAnimals with the (up to) TOP_CANDIDATES most likely animals, best first
+    private int selectTop() {
+        int count = 0;
+        for (int e = 0; e < kb.entityCount(); e++) {
+            if (count == TOP_CANDIDATES && !ranksBefore(e, topAnimals[count - 1])) continue;
+            int i = count < TOP_CANDIDATES ? count++ : count - 1;
+            while (i > 0 && ranksBefore(e, topAnimals[i - 1])) {
+                topAnimals[i] = topAnimals[i - 1];
+                i--;
+            }
+            topAnimals[i] = e;
+        }
+        return count;
     }
 
-    private double log2(double x) {
-        return FastMath.log(x) / FastMath.log(2);
+    private void addCandidate(int animal) {
+        if (candidateCount == rankHeap.length) rankHeap = Arrays.copyOf(rankHeap, candidateCount * 2);
+        rankHeap[candidateCount++] = animal;
+        candidateMask[animal >>> 6] |= 1L << animal;
     }
 
-    private double likelihood(Answer userAnswer, Boolean animalValue) {
-        if (animalValue == null) {
-            return 0.5;
+    // The rank-th best candidate, popping the heap as far as needed
+    private int rankedCandidate(int rank) {
+        while (rankedCount <= rank) {
+            int last = candidateCount - 1 - rankedCount;
+            int best = rankHeap[0];
+            rankHeap[0] = rankHeap[last];
+            rankHeap[last] = best;
+            rankedCount++;
+            siftDown(0, last);
         }
+        return rankHeap[candidateCount - 1 - rank];
+    }
+
+    private void siftDown(int i, int size) {
+        int animal = rankHeap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && ranksBefore(rankHeap[child + 1], rankHeap[child])) child++;
+            if (!ranksBefore(rankHeap[child], animal)) break;
+            rankHeap[i] = rankHeap[child];
+            i = child;
+        }
+        rankHeap[i] = animal;
+    }
+
+    private boolean ranksBefore(int a, int b) {
+        double pa = probabilities[a];
+        double pb = probabilities[b];
+        return pa > pb || (pa == pb && a < b);
+    }
+
+    // Seed for this turn's sample: the knowledge base, the answers in order and the counters
+    private long sampleSeed() {
+        long h = kb.fingerprint();
+        for (int i = 0; i < answerCount; i++) {
+            h = (h ^ (answerAttributes[i] << 2 | answerLog[i].ordinal())) * 0x100000001b3L;
+        }
+        h = (h ^ questionIndex) * 0x100000001b3L;
+        return (h ^ guessIndex) * 0x9e3779b97f4a7c15L;
+    }
+
+    private int askedCount() {
+        int count = 0;
+        for (long word : askedAttributes) count += Long.bitCount(word);
+        return count;
+    }
 
-        switch (userAnswer) {
-            case YES:
-                return animalValue ? 0.85 : 0.1;
-            case NO:
-                return animalValue ? 0.1 : 0.85;
-            case MAYBE:
-                return 0.5;
-            default:
-                return 0.5;
+    // Entropy in bits of the posterior restricted to the candidate window
+    private double windowEntropy() {
+        double mass = 0.0;
+        for (int i = 0; i < candidateCount; i++) mass += probabilities[rankHeap[i]];
+        if (mass <= 0) return 0.0;
+        double h = 0.0;
+        for (int i = 0; i < candidateCount; i++) {
+            double p = probabilities[rankHeap[i]] / mass;
+            if (p > 0) h -= p * Math.log(p);
         }
+        return h / Math.log(2);
     }
 
-    private double calculateScore(String animal) {
-        return probabilities.get(animal);
+    private double calculateScore(int animal) {
+        return probabilities[animal];
     }
 }
@@ -0,0 +1,124 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+// Micro-benchmarks for the solver hot paths. Each benchmark warms up, then times every
+// operation on its own and reports mean / p50 / p99 latency plus bytes allocated per
+// operation (from the per-thread allocation counter, like a GC profiler would).
+//
+// Usage: SolverBenchmark [filter] [iterations]
+public class SolverBenchmark {
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final int[][] SIZES = {
+        // entities, attributes
+        { 1_000, 200 },
+        { 10_000, 500 },
+        { 50_000, 2_000 },
+    };
+    private static final double DENSITY = 0.3;
+    private static final double NULL_RATE = 0.2;
+
+    // One timed operation. setup() runs before every run() and is not measured.
+    private interface Op {
+        default void setup() throws Exception {}
+        Object run() throws Exception;
+    }
+
+    private static String filter = "";
+    private static int iterations = 200;
+    private static Object sink;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) filter = args[0];
+        if (args.length > 1) iterations = Integer.parseInt(args[1]);
+
+        System.out.printf("%-36s %12s %12s %12s %14s%n", "benchmark", "mean us", "p50 us", "p99 us", "alloc B/op");
+
+        for (int[] size : SIZES) {
+            CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(size[0], size[1], DENSITY, NULL_RATE, 42);
+            String label = size[0] + "x" + size[1];
+
+            Solver[] fresh = new Solver[1];
+            bench("makeGuess.first " + label, new Op() {
+                public void setup() { fresh[0] = new Solver(kb); }
+                public Object run() { return fresh[0].makeGuess(); }
+            });
+
+            Solver[] midGame = new Solver[1];
+            bench("makeGuess.midGame " + label, new Op() {
+                public void setup() {
+                    midGame[0] = new Solver(kb);
+                    for (int i = 0; i < 3; i++) {
+                        String step = midGame[0].makeGuess();
+                        if (step != null && step.startsWith("ATTR:")) midGame[0].applyAnswer(step.substring(5), Answer.YES);
+                    }
+                }
+                public Object run() { return midGame[0].makeGuess(); }
+            });
+
+            Solver[] answering = new Solver[1];
+            int[] nextAttr = new int[1];
+            bench("applyAnswer " + label, new Op() {
+                public void setup() {
+                    if (answering[0] == null || nextAttr[0] >= 15) {
+                        answering[0] = new Solver(kb);
+                        nextAttr[0] = 0;
+                    }
+                }
+                public Object run() {
+                    answering[0].applyAnswer(kb.attributeName(nextAttr[0]++), Answer.NO);
+                    return answering[0].getProbability(kb.entityName(0));
+                }
+            });
+
+            SimulationEngine engine = new SimulationEngine(kb, SimulationEngine.noisy(0.05), 7);
+            int[] trial = new int[1];
+            bench("fullGame " + label, () -> engine.runTrials(trial[0], ++trial[0]));
+        }
+
+        File json = new File("animals.json");
+        if (json.exists()) {
+            bench("load.json animals", () -> KnowledgeBaseIngest.ingest(json.getPath()));
+        }
+
+        if ("load.mapped 50000x2000".contains(filter)) {
+            File kbFile = File.createTempFile("bench", ".kb");
+            kbFile.deleteOnExit();
+            KnowledgeBaseFile.write(SyntheticKnowledgeBase.generate(50_000, 2_000, DENSITY, NULL_RATE, 42), kbFile.getPath());
+            bench("load.mapped 50000x2000", () -> KnowledgeBaseFile.open(kbFile.getPath()));
+        }
+    }
+
+    private static void bench(String name, Op op) throws Exception {
+        if (!name.contains(filter)) return;
+
+        int warmup = Math.max(10, iterations / 2);
+        for (int i = 0; i < warmup; i++) {
+            op.setup();
+            sink = op.run();
+        }
+
+        long thread = Thread.currentThread().threadId();
+        long[] nanos = new long[iterations];
+        long allocated = 0;
+        for (int i = 0; i < iterations; i++) {
+            op.setup();
+            long bytesBefore = THREADS.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            sink = op.run();
+            nanos[i] = System.nanoTime() - start;
+            allocated += THREADS.getThreadAllocatedBytes(thread) - bytesBefore;
+        }
+
+        long total = 0;
+        for (long n : nanos) total += n;
+        Arrays.sort(nanos);
+        System.out.printf("%-36s %12.1f %12.1f %12.1f %14d%n", name,
+            total / 1000.0 / iterations,
+            nanos[iterations / 2] / 1000.0,
+            nanos[Math.min(iterations - 1, (int) (iterations * 0.99))] / 1000.0,
+            allocated / iterations);
+    }
+}
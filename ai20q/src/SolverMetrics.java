@@ -0,0 +1,297 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Process-wide solver metrics: latency histograms for makeGuess / applyAnswer, per-turn
+// search statistics, game outcomes and, when sampling is on, a trace event for every
+// turn of the sampled games. Everything is recorded through lock-free adders and
+// histograms, so solvers on many threads never contend on a lock.
+//
+// Allocation tracking reads the per-thread allocation counter twice per turn and is
+// off by default. So is the window entropy, a pass over the window with a log per
+// animal; traced games always compute it.
+public class SolverMetrics implements SolverMetricsMXBean {
+    private static final SolverMetrics GLOBAL = new SolverMetrics();
+    // For solvers that aren't games, e.g. while building an opening book
+    static final SolverMetrics OFF = new SolverMetrics(false);
+    private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    // One solver turn of a sampled game
+    public static final class TraceEvent {
+        public final long game;
+        public final int turn;
+        public final int questionIndex;
+        public final String step;
+        public final int candidates;
+        public final int attributesEvaluated;
+        public final double bestGain;
+        public final double entropy;
+        public final long nanos;
+        public final long allocatedBytes;
+
+        TraceEvent(long game, int turn, int questionIndex, String step, int candidates, int attributesEvaluated,
+                   double bestGain, double entropy, long nanos, long allocatedBytes) {
+            this.game = game;
+            this.turn = turn;
+            this.questionIndex = questionIndex;
+            this.step = step;
+            this.candidates = candidates;
+            this.attributesEvaluated = attributesEvaluated;
+            this.bestGain = bestGain;
+            this.entropy = entropy;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("game=%d turn=%d question=%d step=%s candidates=%d evaluated=%d gain=%.4f entropy=%.4f us=%.1f alloc=%d",
+                game, turn, questionIndex, step, candidates, attributesEvaluated, bestGain, entropy, nanos / 1000.0, allocatedBytes);
+        }
+    }
+
+    private final LogHistogram makeGuessNanos = new LogHistogram();
+    private final LogHistogram applyAnswerNanos = new LogHistogram();
+    private final LogHistogram candidates = new LogHistogram();
+    private final LogHistogram attributesEvaluated = new LogHistogram();
+    private final LogHistogram allocatedBytes = new LogHistogram();
+    private final DoubleAdder gainSum = new DoubleAdder();
+    private final DoubleAdder entropySum = new DoubleAdder();
+    private final LongAdder scoredTurns = new LongAdder();
+    private final LongAdder entropyTurns = new LongAdder();
+
+    private final LongAdder gamesStarted = new LongAdder();
+    private final LongAdder gamesWon = new LongAdder();
+    private final LongAdder gamesLost = new LongAdder();
+    private final LongAdder gamesGivenUp = new LongAdder();
+    private final LongAdder questionsInFinishedGames = new LongAdder();
+
+    private volatile boolean enabled;
+    private volatile boolean trackAllocations = false;
+    private volatile boolean trackEntropy = false;
+    private volatile double traceRate = 0.0;
+    private volatile Consumer<TraceEvent> traceSink;
+    private final AtomicLong nextTracedGame = new AtomicLong();
+    private ScheduledExecutorService exporter;
+
+    public SolverMetrics() {
+        this(true);
+    }
+
+    private SolverMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public static SolverMetrics global() {
+        return GLOBAL;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setAllocationTracking(boolean track) {
+        if (track && THREADS instanceof com.sun.management.ThreadMXBean) {
+            ((com.sun.management.ThreadMXBean) THREADS).setThreadAllocatedMemoryEnabled(true);
+            this.trackAllocations = true;
+        } else {
+            this.trackAllocations = false;
+        }
+    }
+
+    // Records the entropy of the window on every scored turn, not just in traced games
+    public void setEntropyTracking(boolean track) {
+        this.trackEntropy = track;
+    }
+
+    boolean isTrackingEntropy() {
+        return trackEntropy;
+    }
+
+    // Traces every turn of roughly sampleRate of the games started from now on
+    public void setTracing(double sampleRate, Consumer<TraceEvent> sink) {
+        this.traceSink = sink;
+        this.traceRate = sink == null ? 0.0 : sampleRate;
+    }
+
+    // Counts a new game; returns its trace id, or 0 if the game isn't sampled
+    long startGame() {
+        if (!enabled) return 0;
+        gamesStarted.increment();
+        double rate = traceRate;
+        if (rate <= 0 || ThreadLocalRandom.current().nextDouble() >= rate) return 0;
+        return nextTracedGame.incrementAndGet();
+    }
+
+    long allocatedBytes() {
+        if (!trackAllocations) return 0;
+        return ((com.sun.management.ThreadMXBean) THREADS).getCurrentThreadAllocatedBytes();
+    }
+
+    // Negative counts and NaN gains mean the turn didn't score questions (book or guess)
+    void recordMakeGuess(long nanos, long allocated, int candidateCount, int evaluated, double gain, double entropy) {
+        makeGuessNanos.record(nanos);
+        if (trackAllocations) allocatedBytes.record(allocated);
+        if (candidateCount >= 0) candidates.record(candidateCount);
+        if (evaluated >= 0) {
+            attributesEvaluated.record(evaluated);
+            if (!Double.isNaN(gain) && !Double.isInfinite(gain)) {
+                gainSum.add(gain);
+                scoredTurns.increment();
+            }
+            if (!Double.isNaN(entropy)) {
+                entropySum.add(entropy);
+                entropyTurns.increment();
+            }
+        }
+    }
+
+    void recordApplyAnswer(long nanos) {
+        applyAnswerNanos.record(nanos);
+    }
+
+    void recordGaveUp() {
+        gamesGivenUp.increment();
+    }
+
+    // A game that gave up was counted then, and isn't counted as lost again
+    void recordOutcome(boolean won, boolean gaveUp, int questions) {
+        if (won) {
+            gamesWon.increment();
+        } else if (!gaveUp) {
+            gamesLost.increment();
+        }
+        questionsInFinishedGames.add(questions);
+    }
+
+    void trace(TraceEvent event) {
+        Consumer<TraceEvent> sink = traceSink;
+        if (sink != null) sink.accept(event);
+    }
+
+    public Map<String, Double> snapshot() {
+        Map<String, Double> out = new LinkedHashMap<>();
+        latency(out, "makeGuess", makeGuessNanos);
+        latency(out, "applyAnswer", applyAnswerNanos);
+        out.put("turn.candidates.mean", candidates.getMean());
+        out.put("turn.candidates.p99", (double) candidates.percentile(0.99));
+        out.put("turn.attributesEvaluated.mean", attributesEvaluated.getMean());
+        long scored = scoredTurns.sum();
+        out.put("turn.bestGain.mean", scored == 0 ? 0.0 : gainSum.sum() / scored);
+        long entropies = entropyTurns.sum();
+        out.put("turn.entropy.mean", entropies == 0 ? 0.0 : entropySum.sum() / entropies);
+        out.put("turn.allocatedBytes.mean", allocatedBytes.getMean());
+        out.put("turn.allocatedBytes.p99", (double) allocatedBytes.percentile(0.99));
+        out.put("games.started", (double) gamesStarted.sum());
+        out.put("games.won", (double) gamesWon.sum());
+        out.put("games.lost", (double) gamesLost.sum());
+        out.put("games.givenUp", (double) gamesGivenUp.sum());
+        long finished = gamesWon.sum() + gamesLost.sum() + gamesGivenUp.sum();
+        out.put("games.questions.mean", finished == 0 ? 0.0 : (double) questionsInFinishedGames.sum() / finished);
+        return out;
+    }
+
+    private static void latency(Map<String, Double> out, String name, LogHistogram histogram) {
+        out.put(name + ".count", (double) histogram.getCount());
+        out.put(name + ".mean_us", histogram.getMean() / 1000.0);
+        out.put(name + ".p50_us", histogram.percentile(0.50) / 1000.0);
+        out.put(name + ".p99_us", histogram.percentile(0.99) / 1000.0);
+        out.put(name + ".max_us", histogram.getMax() / 1000.0);
+    }
+
+    // Hands a snapshot to the exporter every period on a daemon thread
+    public synchronized ScheduledFuture<?> startExporter(MetricsExporter metricsExporter, long period, TimeUnit unit) {
+        if (exporter == null) {
+            exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-exporter");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return exporter.scheduleAtFixedRate(() -> metricsExporter.export(snapshot()), period, period, unit);
+    }
+
+    public ObjectName registerMBean() throws JMException {
+        ObjectName name = new ObjectName("ai20q:type=SolverMetrics");
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        return name;
+    }
+
+    @Override
+    public long getMakeGuessCount() {
+        return makeGuessNanos.getCount();
+    }
+
+    @Override
+    public double getMakeGuessP50Micros() {
+        return makeGuessNanos.percentile(0.50) / 1000.0;
+    }
+
+    @Override
+    public double getMakeGuessP99Micros() {
+        return makeGuessNanos.percentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getApplyAnswerP99Micros() {
+        return applyAnswerNanos.percentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getMeanCandidatesPerTurn() {
+        return candidates.getMean();
+    }
+
+    @Override
+    public double getMeanAllocatedBytesPerTurn() {
+        return allocatedBytes.getMean();
+    }
+
+    @Override
+    public long getGamesWon() {
+        return gamesWon.sum();
+    }
+
+    @Override
+    public long getGamesLost() {
+        return gamesLost.sum();
+    }
+
+    @Override
+    public long getGamesGivenUp() {
+        return gamesGivenUp.sum();
+    }
+
+    @Override
+    public Map<String, Double> getSnapshot() {
+        return snapshot();
+    }
+
+    @Override
+    public void reset() {
+        makeGuessNanos.reset();
+        applyAnswerNanos.reset();
+        candidates.reset();
+        attributesEvaluated.reset();
+        allocatedBytes.reset();
+        gainSum.reset();
+        entropySum.reset();
+        scoredTurns.reset();
+        entropyTurns.reset();
+        gamesStarted.reset();
+        gamesWon.reset();
+        gamesLost.reset();
+        gamesGivenUp.reset();
+        questionsInFinishedGames.reset();
+    }
+}
@@ -0,0 +1,26 @@
+import java.util.Map;
+
+// JMX view of SolverMetrics. Latencies are in microseconds.
+public interface SolverMetricsMXBean {
+    long getMakeGuessCount();
+
+    double getMakeGuessP50Micros();
+
+    double getMakeGuessP99Micros();
+
+    double getApplyAnswerP99Micros();
+
+    double getMeanCandidatesPerTurn();
+
+    double getMeanAllocatedBytesPerTurn();
+
+    long getGamesWon();
+
+    long getGamesLost();
+
+    long getGamesGivenUp();
+
+    Map<String, Double> getSnapshot();
+
+    void reset();
+}
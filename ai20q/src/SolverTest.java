@@ -2,6 +2,9 @@ import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.Test;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 public class SolverTest {
 
@@ -104,20 +107,709 @@ public class SolverTest {
         assertTrue(solver.getQuestionIndex() >= 20);
     }
 
+    @Test
+    void testGuessOrderMatchesSortedWindow() {
+        // Mostly unknown cells: many animals tie on what the answers say about them
+        CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(60, 24, 0.5, 0.7, 68);
+        int checked = 0;
+        for (int script = 0; script < 8; script++) {
+            // Play to the question limit with random answers, more of them "maybe" the
+            // higher the script (wider windows); past the limit the solver guesses its
+            // window in rank order
+            Solver solver = new Solver(kb);
+            SplittableRandom random = new SplittableRandom(script);
+            boolean answered = false;
+            while (solver.getQuestionIndex() < 20) {
+                String step = solver.makeGuess();
+                if (step == null) break;
+                answered = step.startsWith("ATTR:");
+                if (answered) {
+                    solver.applyAnswer(step.substring(5), random.nextInt(8) < script ? Answer.MAYBE
+                        : random.nextBoolean() ? Answer.YES : Answer.NO);
+                }
+            }
+            // A guess as the last step leaves the solver partway down its window
+            if (!answered) continue;
+            checked++;
+
+            // The window as the old full sort built it: top five, plus everything within
+            // a quarter of the best, by probability then lower id
+            Integer[] order = new Integer[kb.entityCount()];
+            for (int e = 0; e < order.length; e++) order[e] = e;
+            double[] p = new double[kb.entityCount()];
+            for (int e = 0; e < p.length; e++) p[e] = solver.getProbability(kb.entityName(e));
+            Arrays.sort(order, (a, b) -> p[a] != p[b] ? Double.compare(p[b], p[a]) : Integer.compare(a, b));
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < order.length; i++) {
+                if (i < 5 || p[order[i]] >= p[order[0]] * 0.25) expected.add("ANIMAL:" + kb.entityName(order[i]));
+            }
+
+            List<String> guesses = new ArrayList<>();
+            for (String step = solver.makeGuess(); step != null; step = solver.makeGuess()) guesses.add(step);
+            assertEquals(expected, guesses);
+        }
+        assertTrue(checked >= 5, "only " + checked + " games reached the limit on an answer");
+    }
+
     // ---------------------------------------------
-    // Helper: reflection-free probability access
+    // Opening book
     // ---------------------------------------------
 
-    private double getProbability(Solver solver, String animal) {
+    @Test
+    void testOpeningBookMatchesFreshComputation() throws Exception {
+        Map<String, Map<String, Boolean>> data = new HashMap<>();
+        data.put("dog", Map.of("hasFur", true, "isDomestic", true, "isPredator", true));
+        data.put("cow", Map.of("hasFur", true, "isDomestic", true, "isPredator", false));
+        data.put("shark", Map.of("hasFur", false, "isDomestic", false, "isPredator", true));
+        data.put("eagle", Map.of("hasFur", false, "isDomestic", false, "isPredator", true, "canFly", true));
+        CompiledKnowledgeBase kb = CompiledKnowledgeBase.compile(data);
+
+        java.io.File file = java.io.File.createTempFile("opening", ".book");
+        file.deleteOnExit();
+        OpeningBook.build(kb, 3).save(file.getPath());
+
+        for (Answer first : Answer.values()) {
+            for (Answer second : Answer.values()) {
+                Solver plain = new Solver(kb);
+                Solver booked = new Solver(kb);
+                booked.setOpeningBook(OpeningBook.open(file.getPath()));
+
+                for (Answer answer : List.of(first, second, Answer.NO, Answer.YES)) {
+                    String step = plain.makeGuess();
+                    assertEquals(step, booked.makeGuess());
+                    if (step == null || !step.startsWith("ATTR:")) break;
+                    plain.applyAnswer(step.substring(5), answer);
+                    booked.applyAnswer(step.substring(5), answer);
+                }
+            }
+        }
+
+        // Past the first answer the book is only right for the model and epsilon it was built with
+        OpeningBook book = OpeningBook.open(file.getPath());
+        int n = kb.attributeCount();
+        double[] uniform = new double[9 * n];
+        Arrays.fill(uniform, Math.log(1.0 / 3));
+        LikelihoodModel flat = new LikelihoodModel(LikelihoodModel.attributeHash(kb, n), n, uniform, new long[0], new double[0]);
+        assertTrue(book.appliesTo(LikelihoodModel.DEFAULT, PosteriorEngine.DEFAULT_PRUNE_EPSILON));
+        assertFalse(book.appliesTo(LikelihoodModel.DEFAULT, 1e-6));
+        assertFalse(book.appliesTo(flat, PosteriorEngine.DEFAULT_PRUNE_EPSILON));
+        assertTrue(OpeningBook.build(kb, 2, flat, 1e-6).appliesTo(flat, 1e-6));
+    }
+
+    // ---------------------------------------------
+    // Batch solver
+    // ---------------------------------------------
+
+    @Test
+    void testBatchedGamesMatchSingleSolvers() {
+        CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(300, 60, 0.3, 0.2, 11);
+        SimulationEngine engine = new SimulationEngine(kb, SimulationEngine.noisy(0.1), 5);
+        engine.setSolverSetup(solver -> solver.setPruneEpsilon(0));
+
+        SimulationEngine.Results single = engine.runTrials(0, 500);
+        SimulationEngine.Results batched = engine.runBatch(0, 500);
+
+        assertEquals(single.successes, batched.successes);
+        assertEquals(single.totalQuestions, batched.totalQuestions);
+        assertArrayEquals(single.successCount, batched.successCount);
+        assertArrayEquals(single.failureCount, batched.failureCount);
+    }
+
+    // ---------------------------------------------
+    // Simulation
+    // ---------------------------------------------
+
+    @Test
+    void testTrialsAreReproducibleAcrossThreadCounts() throws Exception {
+        CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(200, 50, 0.3, 0.2, 13);
+        SimulationEngine engine = new SimulationEngine(kb, SimulationEngine.noisy(0.1), 21);
+        int trials = 600;
+
+        SimulationEngine.Results serial = engine.run(trials, 1);
+        SimulationEngine.Results parallel = new SimulationEngine(kb, SimulationEngine.noisy(0.1), 21).run(trials, 4);
+        assertEquals(trials, parallel.trials);
+        assertEquals(serial.successes, parallel.successes);
+        assertEquals(serial.failures, parallel.failures);
+        assertEquals(serial.totalQuestions, parallel.totalQuestions);
+        assertArrayEquals(serial.successCount, parallel.successCount);
+        assertArrayEquals(serial.failureCount, parallel.failureCount);
+
+        // Trial by trial: each one played alone, in order and then spread over 4 threads
+        SimulationEngine.Results[] inOrder = new SimulationEngine.Results[trials];
+        for (int t = 0; t < trials; t++) inOrder[t] = engine.runTrials(t, t + 1);
+        SimulationEngine.Results[] spread = new SimulationEngine.Results[trials];
+        ForkJoinPool pool = new ForkJoinPool(4);
         try {
-            var field = Solver.class.getDeclaredField("probabilities");
-            field.setAccessible(true);
-            @SuppressWarnings("unchecked")
-            Map<String, Double> probs = (Map<String, Double>) field.get(solver);
-            return probs.get(animal);
-        } catch (Exception e) {
-            fail("Unable to access probabilities map");
-            return 0.0;
+            pool.submit(() -> IntStream.range(0, trials).parallel()
+                .forEach(t -> spread[t] = engine.runTrials(t, t + 1))).get();
+        } finally {
+            pool.shutdown();
         }
+        for (int t = 0; t < trials; t++) {
+            assertEquals(inOrder[t].successes, spread[t].successes, "trial " + t);
+            assertEquals(inOrder[t].totalQuestions, spread[t].totalQuestions, "trial " + t);
+            assertArrayEquals(inOrder[t].successCount, spread[t].successCount, "trial " + t);
+            assertArrayEquals(inOrder[t].failureCount, spread[t].failureCount, "trial " + t);
+        }
+    }
+
+    // ---------------------------------------------
+    // Transcripts
+    // ---------------------------------------------
+
+    @Test
+    void testTranscriptsReplayThroughSolver() throws Exception {
+        CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(200, 40, 0.3, 0.2, 3);
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("transcripts");
+
+        // Tiny segments so the log has to roll over
+        int questions = 0;
+        int guesses = 0;
+        int n = kb.attributeCount();
+        double[] rows = new double[9 * n];
+        for (int i = 0; i < rows.length; i++) rows[i] = Math.log(i % 3 == 2 ? 0.2 : 0.4);
+        LikelihoodModel fitted = new LikelihoodModel(LikelihoodModel.attributeHash(kb, n), n, rows, new long[0], new double[0]);
+        try (TranscriptLog log = new TranscriptLog(dir, 1024, 1, 1024)) {
+            for (int game = 0; game < 24; game++) {
+                Solver solver = new Solver(kb);
+                solver.setTranscript(log);
+                if (game >= 20) solver.setLikelihoodModel(fitted);
+                // Answers true to the animal, so wrong guesses come up between questions
+                String step = solver.makeGuess();
+                for (int turn = 0; turn < 30 && step != null; turn++) {
+                    if (step.startsWith("ATTR:")) {
+                        byte value = kb.value(game, kb.attributeId(step.substring(5)));
+                        solver.applyAnswer(step.substring(5), value == CompiledKnowledgeBase.TRUE ? Answer.YES
+                            : value == CompiledKnowledgeBase.FALSE ? Answer.NO : Answer.MAYBE);
+                        if (game < 20) questions++;
+                    } else if (game < 20) {
+                        guesses++;
+                    }
+                    step = solver.makeGuess();
+                }
+                solver.recordOutcome(false);
+                solver.recordTarget(kb.entityName(game));
+            }
+        }
+        assertTrue(TranscriptLog.segments(dir).size() > 1);
+        assertTrue(guesses > 0);
+
+        // A torn record at the end is ignored
+        java.nio.file.Path last = TranscriptLog.segments(dir).get(TranscriptLog.segments(dir).size() - 1);
+        java.nio.file.Files.write(last, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28 },
+            java.nio.file.StandardOpenOption.APPEND);
+
+        LikelihoodEstimator estimator = new LikelihoodEstimator(kb);
+        TranscriptReplay.Report report = TranscriptReplay.replay(dir, kb, estimator);
+        assertEquals(20, report.games);
+        assertEquals(4, report.skippedGames);
+        assertEquals(20, report.targeted);
+        assertEquals(questions, report.turns);
+        assertEquals(report.turns, report.sameQuestion);
+        assertEquals(guesses, report.guesses);
+        assertEquals(report.guesses, report.sameGuess);
+        assertEquals(questions, estimator.getObservations());
+
+        // Games played under another model replay under it
+        TranscriptReplay.Report all = TranscriptReplay.replay(dir, kb, null, List.of(fitted));
+        assertEquals(24, all.games);
+        assertEquals(all.turns, all.sameQuestion);
+        assertEquals(all.guesses, all.sameGuess);
+    }
+
+    // ---------------------------------------------
+    // Session snapshots
+    // ---------------------------------------------
+
+    @Test
+    void testRestoredSessionPlaysOnIdentically() {
+        CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(400, 60, 0.3, 0.2, 21);
+        Solver live = new Solver(kb);
+        for (int turn = 0; turn < 25; turn++) {
+            byte[] snapshot = live.snapshot();
+            assertTrue(snapshot.length < 16 + 2 * 25 + 10, "snapshot is " + snapshot.length + " bytes");
+            Solver restored = Solver.restore(kb, snapshot);
+            assertEquals(live.getQuestionIndex(), restored.getQuestionIndex());
+            assertEquals(live.getUserAnswers(), restored.getUserAnswers());
+
+            // Quantised posterior: probabilities within the quantisation step
+            Solver warm = Solver.restore(kb, live.snapshot(1e-6));
+            for (int e = 0; e < kb.entityCount(); e++) {
+                double p = live.getProbability(kb.entityName(e));
+                if (p >= 1e-4) assertEquals(p, warm.getProbability(kb.entityName(e)), p * 0.01);
+            }
+
+            String step = live.makeGuess();
+            assertEquals(step, restored.makeGuess());
+            if (step == null) break;
+            if (step.startsWith("ATTR:")) {
+                Answer answer = Answer.values()[turn % 3];
+                live.applyAnswer(step.substring(5), answer);
+            } else if (!live.hasMoreConcreteGuesses()) {
+                break;
+            }
+        }
+
+        CompiledKnowledgeBase other = SyntheticKnowledgeBase.generate(400, 60, 0.3, 0.2, 22);
+        assertThrows(IllegalArgumentException.class, () -> Solver.restore(other, live.snapshot()));
+        assertThrows(IllegalArgumentException.class, () -> Solver.restore(kb, new byte[] { 1, 2, 3 }));
+    }
+
+    // Header for kb, then the given varints
+    private static byte[] snapshotBytes(CompiledKnowledgeBase kb, boolean posterior, long... varints) {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        out.write(SessionSnapshot.MAGIC);
+        out.write(SessionSnapshot.VERSION);
+        out.write(posterior ? SessionSnapshot.POSTERIOR : 0);
+        for (int i = 0; i < 8; i++) out.write((int) (kb.fingerprint() >>> (8 * i)));
+        for (long value : varints) {
+            for (; (value & ~0x7fL) != 0; value >>>= 7) out.write((int) (value & 0x7f) | 0x80);
+            out.write((int) value);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void testMalformedSnapshotsAreRejected() {
+        CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(100, 20, 0.3, 0.2, 23);
+        // Well formed: one answer, two animals
+        Solver.restore(kb, snapshotBytes(kb, true, 1, 0, 10, 0, 1, 5L << 2, 20, 2, 3, 100, 4, 200));
+
+        // Counts far past the bytes that follow
+        assertThrows(IllegalArgumentException.class, () -> Solver.restore(kb, snapshotBytes(kb, false, 0, 0, 0, 0, 1L << 28)));
+        assertThrows(IllegalArgumentException.class, () -> Solver.restore(kb, snapshotBytes(kb, true, 0, 0, 0, 0, 0, 20, 1L << 30)));
+        // Attribute ids that are out of range, or negative as an int; an answer ordinal past MAYBE
+        assertThrows(IllegalArgumentException.class, () -> Solver.restore(kb, snapshotBytes(kb, false, 0, 0, 0, 0, 1, 20L << 2)));
+        assertThrows(IllegalArgumentException.class, () -> Solver.restore(kb, snapshotBytes(kb, false, 0, 0, 0, 0, 1, 1L << 33)));
+        assertThrows(IllegalArgumentException.class, () -> Solver.restore(kb, snapshotBytes(kb, false, 0, 0, 0, 0, 1, 3)));
+        // Repeated and out-of-range animals
+        assertThrows(IllegalArgumentException.class, () -> Solver.restore(kb, snapshotBytes(kb, true, 0, 0, 0, 0, 0, 20, 2, 3, 100, 0, 200)));
+        assertThrows(IllegalArgumentException.class, () -> Solver.restore(kb, snapshotBytes(kb, true, 0, 0, 0, 0, 0, 20, 1, 100, 100)));
+        // Trailing bytes
+        assertThrows(IllegalArgumentException.class, () -> Solver.restore(kb, snapshotBytes(kb, false, 0, 0, 0, 0, 0, 7)));
+    }
+
+    // ---------------------------------------------
+    // Sessions
+    // ---------------------------------------------
+
+    @Test
+    void testSessionLifecycleThroughTheServer() {
+        CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(200, 40, 0.3, 0.2, 25);
+        try (SessionRegistry registry = new SessionRegistry(kb, null, 1, TimeUnit.HOURS)) {
+            GameServer server = new GameServer(registry);
+            String id = server.execute("NEW").substring(3);
+            long other = registry.create();
+            assertEquals(2, registry.size());
+
+            String step = server.execute("STEP " + id);
+            assertTrue(step.startsWith("ATTR "), step);
+            assertEquals("OK", server.execute("ANSWER " + id + " " + step.substring(5) + " y"));
+            assertTrue(server.execute("ANSWER " + id + " " + step.substring(5) + " x").startsWith("ERR"));
+            assertEquals(Answer.YES, registry.get(Long.parseLong(id)).getUserAnswers().get(step.substring(5)));
+            assertTrue(registry.get(other).getUserAnswers().isEmpty());
+
+            // Saved and loaded under a new id, the game goes on where it was
+            String loaded = server.execute("LOAD " + server.execute("SAVE " + id).substring(3)).substring(3);
+            assertEquals(server.execute("STEP " + id), server.execute("STEP " + loaded));
+
+            assertEquals("OK", server.execute("END " + id));
+            assertTrue(server.execute("STEP " + id).startsWith("ERR"));
+            assertThrows(NoSuchElementException.class, () -> registry.step(Long.parseLong(id)));
+            assertEquals(2, registry.size());
+            assertTrue(server.execute("LEARN " + loaded + " cake").startsWith("ERR"));
+        }
+    }
+
+    @Test
+    void testIdleSessionsExpire() throws Exception {
+        CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(100, 20, 0.3, 0.2, 26);
+        try (SessionRegistry registry = new SessionRegistry(kb, null, 200, TimeUnit.MILLISECONDS)) {
+            long idle = registry.create();
+            long busy = registry.create();
+            assertEquals(0, registry.expireIdle());
+
+            // The sweeper runs every 50ms; the busy session is touched well within the timeout
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (registry.size() > 1 && System.nanoTime() < deadline) {
+                registry.hasMoreGuesses(busy);
+                Thread.sleep(20);
+            }
+            assertEquals(1, registry.size());
+            assertThrows(NoSuchElementException.class, () -> registry.get(idle));
+            assertEquals(busy, registry.get(busy).getId());
+            assertTrue(registry.expire(busy));
+            assertFalse(registry.expire(busy));
+        }
+    }
+
+    @Test
+    void testOneSessionFromSeveralThreads() throws Exception {
+        CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(200, 40, 0.3, 0.2, 27);
+        try (SessionRegistry registry = new SessionRegistry(kb, null, 1, TimeUnit.HOURS)) {
+            long id = registry.create();
+            // Each thread answers its own attributes and asks for steps in between
+            int threads = 4;
+            List<Thread> players = new ArrayList<>();
+            List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+            for (int t = 0; t < threads; t++) {
+                int first = t;
+                Thread player = new Thread(() -> {
+                    try {
+                        for (int a = first; a < kb.attributeCount(); a += threads) {
+                            registry.answer(id, kb.attributeName(a), a % 2 == 0 ? Answer.YES : Answer.NO);
+                            registry.step(id);
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                });
+                players.add(player);
+                player.start();
+            }
+            for (Thread player : players) player.join();
+            assertEquals(List.of(), failures);
+
+            // Every answer landed once, and the session still snapshots and restores
+            Map<String, Answer> answers = registry.get(id).getUserAnswers();
+            assertEquals(kb.attributeCount(), answers.size());
+            Solver restored = Solver.restore(kb, registry.snapshot(id));
+            assertEquals(answers, restored.getUserAnswers());
+        }
+    }
+
+    // ---------------------------------------------
+    // Step cache
+    // ---------------------------------------------
+
+    private List<String> playGame(CompiledKnowledgeBase kb, StepCache cache, int seed) {
+        Solver solver = new Solver(kb);
+        solver.setStepCache(cache);
+        List<String> steps = new ArrayList<>();
+        for (int turn = 0; turn < 30; turn++) {
+            String step = solver.makeGuess();
+            steps.add(step + " " + solver.hasMoreConcreteGuesses());
+            if (step == null) break;
+            if (step.startsWith("ATTR:")) {
+                solver.applyAnswer(step.substring(5), Answer.values()[(seed >> (turn % 4)) % 3]);
+            } else if (!solver.hasMoreConcreteGuesses()) {
+                break;
+            }
+        }
+        return steps;
+    }
+
+    @Test
+    void testCachedStepsMatchFreshOnes() {
+        CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(400, 60, 0.3, 0.2, 41);
+        StepCache cache = new StepCache(1 << 20, 8);
+        for (int round = 0; round < 2; round++) {
+            for (int seed = 0; seed < 24; seed++) {
+                assertEquals(playGame(kb, null, seed), playGame(kb, cache, seed), "seed " + seed);
+            }
+        }
+        assertTrue(cache.getHits() > cache.getMisses(), cache.toString());
+
+        // Another knowledge base never hits the first one's entries
+        long hits = cache.getHits();
+        CompiledKnowledgeBase other = SyntheticKnowledgeBase.generate(400, 60, 0.3, 0.2, 42);
+        new Solver(other).makeGuess();
+        Solver solver = new Solver(other);
+        solver.setStepCache(cache);
+        solver.makeGuess();
+        assertEquals(hits, cache.getHits());
+    }
+
+    @Test
+    void testStepCacheEvictsByWeight() {
+        CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(300, 40, 0.3, 0.2, 43);
+        StepCache cache = new StepCache(4096, 4);
+        for (int seed = 0; seed < 40; seed++) playGame(kb, cache, seed);
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.weight() <= 4096, cache.toString());
+        // Every miss added one entry, and nothing else did
+        assertEquals(cache.getMisses(), cache.size() + cache.getEvictions());
+    }
+
+    // ---------------------------------------------
+    // Sharded knowledge base
+    // ---------------------------------------------
+
+    // Masses are summed per shard, so two questions whose gains tie to the last bit
+    // (mirror-image splits) can come out in the other order. The game stops there.
+    private void assertShardedGamesMatch(CompiledKnowledgeBase kb, ShardCluster cluster, int games) {
+        SolverMetrics metrics = SolverMetrics.global();
+        List<SolverMetrics.TraceEvent> events = new ArrayList<>();
+        metrics.setTracing(1.0, events::add);
+        try {
+            for (int game = 0; game < games; game++) {
+                Solver solver = new Solver(kb);
+                solver.setPruneEpsilon(0);
+                try (ShardedSolver sharded = new ShardedSolver(cluster)) {
+                    for (int turn = 0; turn < 30; turn++) {
+                        String step = solver.makeGuess();
+                        String shardedStep = sharded.makeGuess();
+                        if (step != null && step.startsWith("ATTR:") && !step.equals(shardedStep)) {
+                            assertTrue(shardedStep.startsWith("ATTR:"), shardedStep);
+                            assertEquals(events.get(events.size() - 1).bestGain, sharded.getLastGain(), 1e-9);
+                            break;
+                        }
+                        assertEquals(step, shardedStep, "game " + game + ", turn " + turn);
+                        if (step == null) break;
+                        if (step.startsWith("ATTR:")) {
+                            Answer answer = Answer.values()[(game + turn * 7) % 5 % 3];
+                            solver.applyAnswer(step.substring(5), answer);
+                            sharded.applyAnswer(step.substring(5), answer);
+                        } else if (!solver.hasMoreConcreteGuesses()) {
+                            assertFalse(sharded.hasMoreConcreteGuesses());
+                            break;
+                        }
+                    }
+                }
+            }
+        } finally {
+            metrics.setTracing(0.0, null);
+            metrics.reset();
+        }
+    }
+
+    @Test
+    void testShardedGamesMatchSingleSolver() {
+        CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(500, 50, 0.3, 0.3, 31);
+        try (ShardCluster cluster = ShardCluster.local(kb, 3)) {
+            assertEquals(kb.entityCount(), cluster.entityCount());
+            assertEquals(kb.attributeClasses().classCount(), kb.attributeCount() - Long.bitCount(cluster.aliasMask()[0]));
+            assertShardedGamesMatch(kb, cluster, 6);
+        }
+    }
+
+    @Test
+    void testShardedGamesOverSockets() throws Exception {
+        CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(300, 40, 0.3, 0.3, 32);
+        List<java.net.ServerSocket> servers = new ArrayList<>();
+        List<java.net.InetSocketAddress> addresses = new ArrayList<>();
+        try {
+            for (int s = 0; s < 2; s++) {
+                java.net.ServerSocket server = new java.net.ServerSocket(0, 50, java.net.InetAddress.getLoopbackAddress());
+                KnowledgeShard shard = new KnowledgeShard(KnowledgeShard.partition(kb, s, 2, true), s, 2);
+                Thread.ofVirtual().start(() -> {
+                    try {
+                        shard.serve(server);
+                    } catch (java.io.IOException e) {
+                        // Closed at the end of the test
+                    }
+                });
+                servers.add(server);
+                addresses.add(new java.net.InetSocketAddress(server.getInetAddress(), server.getLocalPort()));
+            }
+            try (ShardCluster cluster = ShardCluster.connect(addresses)) {
+                assertShardedGamesMatch(kb, cluster, 3);
+            }
+        } finally {
+            for (java.net.ServerSocket server : servers) server.close();
+        }
+    }
+
+    // ---------------------------------------------
+    // Planner
+    // ---------------------------------------------
+
+    @Test
+    void testPlannerDepthOneMatchesBruteForceEntropy() {
+        CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(120, 30, 0.4, 0.2, 43);
+        LikelihoodModel model = LikelihoodModel.DEFAULT;
+        Random random = new Random(47);
+        long[] window = new long[kb.wordCount()];
+        double[] posterior = new double[kb.entityCount()];
+        for (int e = 0; e < kb.entityCount(); e++) {
+            posterior[e] = random.nextDouble();
+            if (random.nextInt(4) > 0) window[e >>> 6] |= 1L << e;
+        }
+        long[] asked = new long[CompiledKnowledgeBase.wordsFor(kb.attributeCount())];
+        asked[0] |= 1L << 3;
+
+        // Entropy of the window, and expected entropy after each question, the long way
+        double mass = 0.0;
+        for (int e = 0; e < kb.entityCount(); e++) if ((window[e >>> 6] & (1L << e)) != 0) mass += posterior[e];
+        double before = 0.0;
+        for (int e = 0; e < kb.entityCount(); e++) {
+            if ((window[e >>> 6] & (1L << e)) != 0) before -= posterior[e] / mass * Math.log(posterior[e] / mass) / Math.log(2);
+        }
+        int bestAttr = -1;
+        double bestExpected = Double.POSITIVE_INFINITY;
+        for (int a = 0; a < kb.attributeCount(); a++) {
+            if (a == 3) continue;
+            boolean splits = false;
+            double expected = 0.0;
+            for (Answer answer : Answer.values()) {
+                double[] weight = new double[kb.entityCount()];
+                double total = 0.0;
+                for (int e = 0; e < kb.entityCount(); e++) {
+                    if ((window[e >>> 6] & (1L << e)) == 0) continue;
+                    byte value = kb.value(e, a);
+                    splits |= value != CompiledKnowledgeBase.UNKNOWN;
+                    double norm = 0.0;
+                    for (Answer any : Answer.values()) norm += model.likelihood(a, any, value);
+                    weight[e] = posterior[e] / mass * model.likelihood(a, answer, value) / norm;
+                    total += weight[e];
+                }
+                double h = 0.0;
+                for (double w : weight) if (w > 0) h -= w / total * Math.log(w / total) / Math.log(2);
+                expected += total * h;
+            }
+            if (splits && expected < bestExpected) {
+                bestExpected = expected;
+                bestAttr = a;
+            }
+        }
+
+        QuestionPlanner planner = new QuestionPlanner(kb, 1, Long.MAX_VALUE / 2, 4, model);
+        planner.plan(window, posterior, asked);
+        assertEquals(bestAttr, planner.getBestAttribute());
+        assertEquals(before - bestExpected, planner.getBestGain(), 1e-9);
+    }
+
+    @Test
+    void testPlannerNeverRepeatsAQuestionOnAPath() {
+        CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(80, 12, 0.4, 0.3, 53);
+        QuestionPlanner planner = new QuestionPlanner(kb, 3, Long.MAX_VALUE / 2, 3, LikelihoodModel.DEFAULT);
+        long[] window = new long[kb.wordCount()];
+        for (int e = 0; e < kb.entityCount(); e++) window[e >>> 6] |= 1L << e;
+        long[] asked = kb.attributeClasses().aliasMask();
+
+        // Play a game against animal 0, one planned question per turn
+        int turns = 0;
+        while (true) {
+            double[] posterior = new double[kb.entityCount()];
+            int size = 0;
+            for (long word : window) size += Long.bitCount(word);
+            for (int e = 0; e < kb.entityCount(); e++) {
+                if ((window[e >>> 6] & (1L << e)) != 0) posterior[e] = 1.0 / size;
+            }
+            planner.plan(window, posterior, asked);
+            if (turns == 0) assertEquals(3, planner.getCompletedDepth());
+            int attr = planner.getBestAttribute();
+            if (attr < 0) break;
+            assertEquals(0, asked[attr >>> 6] & (1L << attr), "attribute " + attr + " asked twice");
+            for (int m : kb.attributeClasses().members(attr)) asked[m >>> 6] |= 1L << m;
+            turns++;
+
+            // Animals that contradict animal 0's value leave the window
+            byte truth = kb.value(0, attr);
+            for (int e = 0; e < kb.entityCount(); e++) {
+                byte value = kb.value(e, attr);
+                if (truth != CompiledKnowledgeBase.UNKNOWN && value != CompiledKnowledgeBase.UNKNOWN && value != truth) {
+                    window[e >>> 6] &= ~(1L << e);
+                }
+            }
+        }
+        assertTrue(turns > 3, "only " + turns + " turns");
+    }
+
+    @Test
+    void testPlannerStopsAtTheTimeBudget() {
+        CompiledKnowledgeBase kb = SyntheticKnowledgeBase.generate(200, 40, 0.4, 0.2, 59);
+        long[] window = new long[kb.wordCount()];
+        double[] posterior = new double[kb.entityCount()];
+        for (int e = 0; e < kb.entityCount(); e++) {
+            window[e >>> 6] |= 1L << e;
+            posterior[e] = 1.0 / kb.entityCount();
+        }
+        long[] asked = kb.attributeClasses().aliasMask();
+
+        QuestionPlanner greedy = new QuestionPlanner(kb, 1, Long.MAX_VALUE / 2, 4, LikelihoodModel.DEFAULT);
+        greedy.plan(window, posterior, asked);
+        // No time for anything past depth 1, which always completes
+        QuestionPlanner starved = new QuestionPlanner(kb, 4, 0, 4, LikelihoodModel.DEFAULT);
+        starved.plan(window, posterior, asked);
+
+        assertEquals(1, starved.getCompletedDepth());
+        assertEquals(greedy.getBestAttribute(), starved.getBestAttribute());
+        assertEquals(greedy.getBestGain(), starved.getBestGain());
+    }
+
+    // ---------------------------------------------
+    // Metrics
+    // ---------------------------------------------
+
+    @Test
+    void testSampledGamesEmitOneTraceEventPerTurn() {
+        SolverMetrics metrics = SolverMetrics.global();
+        List<SolverMetrics.TraceEvent> events = new ArrayList<>();
+        metrics.reset();
+        metrics.setTracing(1.0, events::add);
+        try {
+            Solver solver = Solver();
+            String first = solver.makeGuess();
+            solver.applyAnswer(first.substring(5), Answer.YES);
+            solver.makeGuess();
+            solver.recordOutcome(true);
+
+            assertEquals(2, events.size());
+            assertEquals(first, events.get(0).step);
+            assertEquals(3, events.get(0).candidates);
+            // hasFur and isDomestic have identical columns and are scored as one class
+            assertEquals(2, events.get(0).attributesEvaluated);
+            assertEquals(2, metrics.getMakeGuessCount());
+            assertEquals(1, metrics.getGamesWon());
+        } finally {
+            metrics.setTracing(0.0, null);
+            metrics.reset();
+        }
+    }
+
+    @Test
+    void testOfflineSolversAndGiveUpsAreCountedOnce() {
+        SolverMetrics metrics = SolverMetrics.global();
+        metrics.reset();
+        try {
+            CompiledKnowledgeBase synthetic = SyntheticKnowledgeBase.generate(100, 20, 0.3, 0.2, 61);
+            OpeningBook.build(synthetic, 2);
+            new SimulationEngine(synthetic, SimulationEngine.noisy(0.1), 3).runTrials(0, 20);
+            assertEquals(0.0, metrics.snapshot().get("games.started"));
+            assertEquals(0, metrics.getMakeGuessCount());
+
+            // Every answer MAYBE and every guess wrong until the solver gives up
+            Solver solver = Solver();
+            for (int turn = 0; turn < 30; turn++) {
+                String step = solver.makeGuess();
+                if (step == null) break;
+                if (step.startsWith("ATTR:")) solver.applyAnswer(step.substring(5), Answer.MAYBE);
+            }
+            assertNull(solver.makeGuess());
+            solver.recordOutcome(false);
+            // A second report of the same game (the CLI's last-guess path) is ignored
+            solver.recordOutcome(true);
+
+            Map<String, Double> snapshot = metrics.snapshot();
+            assertEquals(1.0, snapshot.get("games.started"));
+            assertEquals(1, metrics.getGamesGivenUp());
+            assertEquals(0, metrics.getGamesLost());
+            assertEquals(0, metrics.getGamesWon());
+            // Untraced games skip the entropy pass unless it is asked for
+            assertEquals(0.0, snapshot.get("turn.entropy.mean"));
+        } finally {
+            metrics.reset();
+        }
+    }
+
+    @Test
+    void testHistogramPercentilesAreWithinABucket() {
+        LogHistogram histogram = new LogHistogram();
+        for (long v = 1; v <= 10_000; v++) histogram.record(v);
+
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(5_000.5, histogram.getMean(), 1e-9);
+        assertEquals(10_000, histogram.getMax());
+        assertEquals(5_000, histogram.percentile(0.5), 5_000 * 0.125);
+        assertEquals(9_900, histogram.percentile(0.99), 9_900 * 0.125);
+    }
+
+    // ---------------------------------------------
+    // Helper: reflection-free probability access
+    // ---------------------------------------------
+
+    private double getProbability(Solver solver, String animal) {
+        return solver.getProbability(animal);
     }
 }
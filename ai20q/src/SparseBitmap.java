@@ -0,0 +1,207 @@
+import java.util.Arrays;
+
+// Immutable Roaring-style compressed set of animal ids. Ids are split on their high
+// 16 bits into containers; a container holding up to 4096 ids is a sorted char[]
+// (2 bytes per id), a fuller one a 65536-bit bitmap (8 KB). Memory therefore follows
+// the number of ids stored, not the id range.
+public final class SparseBitmap {
+    static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    public static final SparseBitmap EMPTY = new SparseBitmap(new char[0], new char[0][], new long[0][], 0);
+
+    private final char[] keys;
+    // Per container: exactly one of arrays[i] / bitmaps[i] is set
+    private final char[][] arrays;
+    private final long[][] bitmaps;
+    private final int cardinality;
+
+    private SparseBitmap(char[] keys, char[][] arrays, long[][] bitmaps, int cardinality) {
+        this.keys = keys;
+        this.arrays = arrays;
+        this.bitmaps = bitmaps;
+        this.cardinality = cardinality;
+    }
+
+    // ids must be sorted ascending and distinct
+    public static SparseBitmap of(int[] ids, int count) {
+        if (count == 0) return EMPTY;
+        int containers = 1;
+        for (int i = 1; i < count; i++) {
+            if ((ids[i] >>> 16) != (ids[i - 1] >>> 16)) containers++;
+        }
+
+        char[] keys = new char[containers];
+        char[][] arrays = new char[containers][];
+        long[][] bitmaps = new long[containers][];
+        int c = 0;
+        for (int start = 0; start < count; c++) {
+            int key = ids[start] >>> 16;
+            int end = start;
+            while (end < count && (ids[end] >>> 16) == key) end++;
+
+            keys[c] = (char) key;
+            if (end - start <= ARRAY_MAX) {
+                char[] values = new char[end - start];
+                for (int i = start; i < end; i++) values[i - start] = (char) ids[i];
+                arrays[c] = values;
+            } else {
+                long[] bits = new long[BITMAP_WORDS];
+                for (int i = start; i < end; i++) bits[(ids[i] & 0xffff) >>> 6] |= 1L << ids[i];
+                bitmaps[c] = bits;
+            }
+            start = end;
+        }
+        return new SparseBitmap(keys, arrays, bitmaps, count);
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean contains(int id) {
+        int c = container(id >>> 16);
+        if (c < 0) return false;
+        if (bitmaps[c] != null) return (bitmaps[c][(id & 0xffff) >>> 6] & (1L << id)) != 0;
+        return Arrays.binarySearch(arrays[c], (char) id) >= 0;
+    }
+
+    // Bits 64w .. 64w + 63, as in the dense column layout
+    public long word(int w) {
+        int c = container(w >>> 10);
+        if (c < 0) return 0L;
+        if (bitmaps[c] != null) return bitmaps[c][w & (BITMAP_WORDS - 1)];
+
+        char[] values = arrays[c];
+        int low = (w & (BITMAP_WORDS - 1)) << 6;
+        int i = Arrays.binarySearch(values, (char) low);
+        if (i < 0) i = -i - 1;
+        long word = 0L;
+        for (; i < values.length && values[i] < low + 64; i++) word |= 1L << values[i];
+        return word;
+    }
+
+    // Writes the set out as dense words; out must be zeroed and long enough
+    public void toWords(long[] out) {
+        for (int c = 0; c < keys.length; c++) {
+            int base = keys[c] << 10;
+            if (bitmaps[c] != null) {
+                System.arraycopy(bitmaps[c], 0, out, base, Math.min(BITMAP_WORDS, out.length - base));
+            } else {
+                for (char v : arrays[c]) out[base + (v >>> 6)] |= 1L << v;
+            }
+        }
+    }
+
+    public int[] toArray() {
+        int[] ids = new int[cardinality];
+        int n = 0;
+        for (int c = 0; c < keys.length; c++) {
+            int high = keys[c] << 16;
+            if (bitmaps[c] != null) {
+                long[] bits = bitmaps[c];
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    for (long b = bits[w]; b != 0; b &= b - 1) ids[n++] = high | (w << 6) | Long.numberOfTrailingZeros(b);
+                }
+            } else {
+                for (char v : arrays[c]) ids[n++] = high | v;
+            }
+        }
+        return ids;
+    }
+
+    // Number of ids in the set that are also set in the dense mask
+    public int andCardinality(long[] mask) {
+        int count = 0;
+        for (int c = 0; c < keys.length; c++) {
+            int base = keys[c] << 10;
+            if (bitmaps[c] != null) {
+                long[] bits = bitmaps[c];
+                int end = Math.min(BITMAP_WORDS, mask.length - base);
+                for (int w = 0; w < end; w++) count += Long.bitCount(bits[w] & mask[base + w]);
+            } else {
+                for (char v : arrays[c]) {
+                    if ((mask[base + (v >>> 6)] & (1L << v)) != 0) count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // Sum of weights[id] over the ids in the set that are also set in the dense mask.
+    // Sums word by word, like a dense AND + popcount scan, so both give the same double.
+    public double andMass(long[] mask, double[] weights) {
+        double mass = 0.0;
+        for (int c = 0; c < keys.length; c++) {
+            int base = keys[c] << 10;
+            int high = keys[c] << 16;
+            if (bitmaps[c] != null) {
+                long[] bits = bitmaps[c];
+                int end = Math.min(BITMAP_WORDS, mask.length - base);
+                for (int w = 0; w < end; w++) {
+                    long b = bits[w] & mask[base + w];
+                    if (b == 0) continue;
+                    double word = 0.0;
+                    for (; b != 0; b &= b - 1) word += weights[high | (w << 6) | Long.numberOfTrailingZeros(b)];
+                    mass += word;
+                }
+            } else {
+                char[] values = arrays[c];
+                for (int i = 0; i < values.length; ) {
+                    int w = values[i] >>> 6;
+                    long m = mask[base + w];
+                    double word = 0.0;
+                    for (; i < values.length && values[i] >>> 6 == w; i++) {
+                        if ((m & (1L << values[i])) != 0) word += weights[high | values[i]];
+                    }
+                    mass += word;
+                }
+            }
+        }
+        return mass;
+    }
+
+    // Approximate heap footprint of the containers
+    public long sizeInBytes() {
+        long bytes = 16L + keys.length * 2L;
+        for (int c = 0; c < keys.length; c++) {
+            bytes += bitmaps[c] != null ? BITMAP_WORDS * 8L + 16 : arrays[c].length * 2L + 16;
+        }
+        return bytes;
+    }
+
+    // Content equality; construction is canonical, so equal sets have equal containers
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SparseBitmap)) return false;
+        SparseBitmap other = (SparseBitmap) o;
+        if (cardinality != other.cardinality || !Arrays.equals(keys, other.keys)) return false;
+        for (int c = 0; c < keys.length; c++) {
+            if (!Arrays.equals(arrays[c], other.arrays[c]) || !Arrays.equals(bitmaps[c], other.bitmaps[c])) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = cardinality;
+        for (int c = 0; c < keys.length; c++) {
+            h = 31 * h + keys[c];
+            h = 31 * h + (bitmaps[c] != null ? Arrays.hashCode(bitmaps[c]) : Arrays.hashCode(arrays[c]));
+        }
+        return h;
+    }
+
+    private int container(int key) {
+        int lo = 0;
+        int hi = keys.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) lo = mid + 1;
+            else if (keys[mid] > key) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+}
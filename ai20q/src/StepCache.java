@@ -0,0 +1,207 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Next solver step by game state, shared by every game on a node. Popular targets send
+// many games down the same answer path, and the greedy step is a pure function of:
+//
+//   knowledge base fingerprint, likelihood model, prune epsilon,
+//   question and guess counters, and the answers to known attributes in order
+//
+// so a hit returns exactly what scoring would. The answers stay in the order they were
+// given: the posterior adds log-likelihoods in that order, and a different order can
+// round the last bit differently and flip an exact tie. Games that follow the solver's
+// own questions reach a given set of answers in one order only, so nothing is lost.
+//
+// The map is split into stripes, each an access-ordered LinkedHashMap under its own
+// lock and with an equal share of the weight budget; the least recently used entries
+// of a stripe go first. Keys are compared in full, never by hash alone.
+public final class StepCache {
+    public static final int DEFAULT_STRIPES = 64;
+
+    private final Stripe[] stripes;
+    private final long stripeBudget;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public StepCache(long maxWeightBytes) {
+        this(maxWeightBytes, DEFAULT_STRIPES);
+    }
+
+    public StepCache(long maxWeightBytes, int stripeCount) {
+        int n = Integer.highestOneBit(Math.max(1, stripeCount));
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) stripes[i] = new Stripe();
+        this.stripeBudget = Math.max(1, maxWeightBytes / n);
+    }
+
+    public static final class Key {
+        private final long fingerprint;
+        private final LikelihoodModel model;
+        private final long pruneEpsilonBits;
+        private final int questionIndex;
+        private final int guessIndex;
+        // attribute << 2 | answer, in the order given
+        private final int[] answers;
+        private final long hash;
+
+        Key(long fingerprint, LikelihoodModel model, double pruneEpsilon, int questionIndex, int guessIndex,
+            int[] attributes, Answer[] answerLog, int answerCount) {
+            this.fingerprint = fingerprint;
+            this.model = model;
+            this.pruneEpsilonBits = Double.doubleToLongBits(pruneEpsilon);
+            this.questionIndex = questionIndex;
+            this.guessIndex = guessIndex;
+            this.answers = new int[answerCount];
+            long h = fingerprint * 0x9e3779b97f4a7c15L + System.identityHashCode(model);
+            h = h * 31 + pruneEpsilonBits;
+            h = h * 31 + ((long) questionIndex << 32 | guessIndex);
+            for (int i = 0; i < answerCount; i++) {
+                answers[i] = attributes[i] << 2 | answerLog[i].ordinal();
+                h = (h ^ answers[i]) * 0x100000001b3L;
+            }
+            this.hash = h ^ (h >>> 31);
+        }
+
+        // Rough heap footprint of a cached entry with this key
+        int weight() {
+            return 96 + 4 * answers.length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return hash == k.hash && fingerprint == k.fingerprint && model == k.model
+                && pruneEpsilonBits == k.pruneEpsilonBits && questionIndex == k.questionIndex
+                && guessIndex == k.guessIndex && Arrays.equals(answers, k.answers);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) hash;
+        }
+    }
+
+    // What a step leaves behind besides its text: the window size and the counters
+    public static final class Step {
+        public final String step;
+        public final int candidateCount;
+        public final int questionIndex;
+        public final int guessIndex;
+        final int weight;
+
+        Step(String step, int candidateCount, int questionIndex, int guessIndex, Key key) {
+            this.step = step;
+            this.candidateCount = candidateCount;
+            this.questionIndex = questionIndex;
+            this.guessIndex = guessIndex;
+            this.weight = key.weight() + (step == null ? 0 : 40 + 2 * step.length());
+        }
+    }
+
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final LinkedHashMap<Key, Step> map = new LinkedHashMap<>(64, 0.75f, true);
+        long weight;
+    }
+
+    private Stripe stripe(Key key) {
+        return stripes[(int) (key.hash >>> 40) & (stripes.length - 1)];
+    }
+
+    public Step get(Key key) {
+        Stripe stripe = stripe(key);
+        Step step;
+        stripe.lock.lock();
+        try {
+            step = stripe.map.get(key);
+        } finally {
+            stripe.lock.unlock();
+        }
+        (step != null ? hits : misses).increment();
+        return step;
+    }
+
+    public void put(Key key, Step step) {
+        Stripe stripe = stripe(key);
+        stripe.lock.lock();
+        try {
+            Step previous = stripe.map.put(key, step);
+            stripe.weight += step.weight - (previous == null ? 0 : previous.weight);
+            Iterator<Step> it = stripe.map.values().iterator();
+            while (stripe.weight > stripeBudget && it.hasNext()) {
+                Step eldest = it.next();
+                if (eldest == step) break;
+                it.remove();
+                stripe.weight -= eldest.weight;
+                evictions.increment();
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                stripe.map.clear();
+                stripe.weight = 0;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public double getHitRate() {
+        long h = getHits();
+        long total = h + getMisses();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.map.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    public long weight() {
+        long weight = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                weight += stripe.weight;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return weight;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StepCache[%d entries, %d bytes, hits=%d, misses=%d, evictions=%d, hit rate %.1f%%]",
+            size(), weight(), getHits(), getMisses(), getEvictions(), 100 * getHitRate());
+    }
+}
@@ -0,0 +1,28 @@
+import java.nio.LongBuffer;
+import java.util.*;
+
+// Random knowledge bases for benchmarks and scale tests. Every cell is unknown with
+// probability nullRate, otherwise true with probability density.
+public class SyntheticKnowledgeBase {
+
+    public static CompiledKnowledgeBase generate(int entities, int attributes, double density, double nullRate, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        String[] entityNames = new String[entities];
+        String[] attributeNames = new String[attributes];
+        for (int e = 0; e < entities; e++) entityNames[e] = "entity" + e;
+        for (int a = 0; a < attributes; a++) attributeNames[a] = "attr" + a;
+
+        int words = CompiledKnowledgeBase.wordsFor(entities);
+        long[] columns = new long[attributes * 2 * words];
+        for (int a = 0; a < attributes; a++) {
+            int trueBase = (2 * a) * words;
+            int falseBase = (2 * a + 1) * words;
+            for (int e = 0; e < entities; e++) {
+                if (random.nextDouble() < nullRate) continue;
+                if (random.nextDouble() < density) columns[trueBase + (e >>> 6)] |= 1L << e;
+                else columns[falseBase + (e >>> 6)] |= 1L << e;
+            }
+        }
+        return new CompiledKnowledgeBase(entityNames, attributeNames, LongBuffer.wrap(columns), 0);
+    }
+}
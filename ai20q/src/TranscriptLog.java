@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+// Append-only log of every game turn. Callers only put a small record on a bounded
+// queue, which never blocks: if the writer falls behind, records are dropped and
+// counted. A background thread drains the queue in batches, writes each batch with
+// one channel write and forces it to disk at most once per commit interval (group
+// commit). Segments roll over at a size limit and are never reopened.
+//
+// Several processes can log into one directory: segment names carry a random tag per
+// log (transcript-<number>-<tag>.log), and so do the game ids, so neither collides.
+//
+// Segment layout (little-endian): 16-byte header (MAGIC, VERSION, segment number),
+// then fixed 28-byte records:
+//   type u8 | answer u8 | turn u16 | id i32 | game i64 | value i64 | crc32c i32
+// START records carry the knowledge base fingerprint in value, MODEL records the
+// content hash of the game's likelihood model, the others a timestamp in
+// milliseconds. A torn record at the end of a segment fails its CRC.
+public final class TranscriptLog implements AutoCloseable {
+    static final int MAGIC = 0x314c5441; // "ATL1"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int RECORD_BYTES = 28;
+
+    public static final byte START = 1;
+    public static final byte QUESTION = 2;
+    public static final byte GUESS = 3;
+    public static final byte END = 4;
+    public static final byte TARGET = 5;
+    public static final byte MODEL = 6;
+
+    public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+    public static final long DEFAULT_COMMIT_MILLIS = 20;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1 << 16;
+
+    private static final class Record {
+        final byte type;
+        final byte answer;
+        final int turn;
+        final int id;
+        final long game;
+        final long value;
+
+        Record(byte type, byte answer, int turn, int id, long game, long value) {
+            this.type = type;
+            this.answer = answer;
+            this.turn = turn;
+            this.id = id;
+            this.game = game;
+            this.value = value;
+        }
+    }
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long commitNanos;
+    private final ArrayBlockingQueue<Record> queue;
+    private final int tag = new java.security.SecureRandom().nextInt();
+    // Tag in the top 24 bits, then a counter started from the clock
+    private final AtomicLong nextGame = new AtomicLong((long) (tag & 0xffffff) << 40 | (System.currentTimeMillis() << 8) & ((1L << 40) - 1));
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    private FileChannel channel;
+    private long segmentSize;
+    private int segmentNumber;
+    private final ByteBuffer buffer;
+    private final CRC32C crc = new CRC32C();
+
+    public TranscriptLog(Path directory, long segmentBytes, long commitMillis, int queueCapacity) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = Math.max(HEADER_BYTES + RECORD_BYTES, segmentBytes);
+        // Waiting at least a millisecond keeps an idle writer from spinning and forcing
+        // every batch
+        this.commitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, commitMillis));
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.buffer = ByteBuffer.allocateDirect(Math.min(queueCapacity, 4096) * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+        Files.createDirectories(directory);
+        List<Path> existing = segments(directory);
+        segmentNumber = existing.isEmpty() ? 0 : segmentNumber(existing.get(existing.size() - 1));
+        openSegment();
+
+        this.writer = new Thread(this::writeLoop, "transcript-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static TranscriptLog open(String directory) throws IOException {
+        return new TranscriptLog(Paths.get(directory), DEFAULT_SEGMENT_BYTES, DEFAULT_COMMIT_MILLIS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    // Segment files of a log directory, oldest first
+    public static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) return segments;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "transcript-*.log")) {
+            for (Path path : stream) segments.add(path);
+        }
+        segments.sort(Comparator.comparingInt(TranscriptLog::segmentNumber).thenComparing(Path::toString));
+        return segments;
+    }
+
+    // transcript-<number>.log, or transcript-<number>-<tag>.log
+    private static int segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        name = name.substring("transcript-".length(), name.length() - ".log".length());
+        int dash = name.indexOf('-');
+        return Integer.parseInt(dash < 0 ? name : name.substring(0, dash));
+    }
+
+    public long startGame(long fingerprint) {
+        long game = nextGame.incrementAndGet();
+        offer(new Record(START, (byte) 0, 0, -1, game, fingerprint));
+        return game;
+    }
+
+    // The likelihood model the game is played with, if it isn't the default
+    public void model(long game, LikelihoodModel model) {
+        offer(new Record(MODEL, (byte) 0, 0, -1, game, model.contentHash()));
+    }
+
+    public void question(long game, int turn, int attribute, Answer answer) {
+        offer(new Record(QUESTION, (byte) answer.ordinal(), turn, attribute, game, System.currentTimeMillis()));
+    }
+
+    public void guess(long game, int turn, int animal) {
+        offer(new Record(GUESS, (byte) 0, turn, animal, game, System.currentTimeMillis()));
+    }
+
+    // The animal the player was thinking of, when we find out
+    public void target(long game, int animal) {
+        offer(new Record(TARGET, (byte) 0, 0, animal, game, System.currentTimeMillis()));
+    }
+
+    public void end(long game, int turn, boolean won) {
+        offer(new Record(END, (byte) (won ? 1 : 0), turn, -1, game, System.currentTimeMillis()));
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    private void offer(Record record) {
+        if (closed || !queue.offer(record)) dropped.incrementAndGet();
+    }
+
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>();
+        long lastForce = System.nanoTime();
+        boolean unforced = false;
+        try {
+            while (!closed || !queue.isEmpty()) {
+                Record first = queue.poll(commitNanos, TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, buffer.capacity() / RECORD_BYTES - 1);
+                    write(batch);
+                    batch.clear();
+                    unforced = true;
+                }
+                if (unforced && System.nanoTime() - lastForce >= commitNanos) {
+                    channel.force(false);
+                    lastForce = System.nanoTime();
+                    unforced = false;
+                }
+            }
+            channel.force(false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Transcript log stopped: " + e.getMessage());
+            closed = true;
+        }
+    }
+
+    private void write(List<Record> batch) throws IOException {
+        buffer.clear();
+        for (Record r : batch) {
+            int start = buffer.position();
+            buffer.put(r.type).put(r.answer).putShort((short) r.turn).putInt(r.id).putLong(r.game).putLong(r.value);
+            crc.reset();
+            crc.update(buffer.duplicate().position(start).limit(buffer.position()));
+            buffer.putInt((int) crc.getValue());
+        }
+        buffer.flip();
+
+        if (segmentSize + buffer.remaining() > segmentBytes) {
+            channel.force(false);
+            channel.close();
+            openSegment();
+        }
+        while (buffer.hasRemaining()) segmentSize += channel.write(buffer);
+        written.addAndGet(batch.size());
+    }
+
+    private void openSegment() throws IOException {
+        segmentNumber++;
+        Path path = directory.resolve(String.format("transcript-%06d-%08x.log", segmentNumber, tag));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(segmentNumber).flip();
+        while (header.hasRemaining()) channel.write(header);
+        segmentSize = HEADER_BYTES;
+    }
+
+    // Writes out everything queued so far and closes the current segment
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}
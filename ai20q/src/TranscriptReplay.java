@@ -0,0 +1,234 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+// Streams transcript segments back as whole games and replays them through Solver.
+//
+// For every logged game on the same knowledge base, a fresh solver with the game's
+// likelihood model is fed the logged steps in order; at each step we check whether it
+// would still ask the question the player was asked, or make the same guess. Games
+// that name their animal also feed a LikelihoodEstimator, so the replay can write a
+// likelihood model tuned on real answers.
+//
+// Usage: TranscriptReplay <transcript dir> [kb=animals.json] [likelihood model out] [likelihood model played with]
+public class TranscriptReplay {
+
+    public static final class Game {
+        public final long id;
+        public long fingerprint;
+        public int[] attributes = new int[8];
+        public Answer[] answers = new Answer[8];
+        public int questions = 0;
+        public int guesses = 0;
+        // Every step in order: an attribute asked, or ~animal for a guess
+        public int[] steps = new int[8];
+        public int stepCount = 0;
+        public long modelHash = LikelihoodModel.DEFAULT.contentHash();
+        public int target = -1;
+        public boolean ended = false;
+        public boolean won = false;
+
+        Game(long id) {
+            this.id = id;
+        }
+
+        void addQuestion(int attribute, Answer answer) {
+            if (questions == attributes.length) {
+                attributes = Arrays.copyOf(attributes, questions * 2);
+                answers = Arrays.copyOf(answers, questions * 2);
+            }
+            attributes[questions] = attribute;
+            answers[questions++] = answer;
+            addStep(attribute);
+        }
+
+        void addGuess(int animal) {
+            guesses++;
+            addStep(~animal);
+        }
+
+        private void addStep(int step) {
+            if (stepCount == steps.length) steps = Arrays.copyOf(steps, stepCount * 2);
+            steps[stepCount++] = step;
+        }
+    }
+
+    public static final class Report {
+        public long games;
+        public long skippedGames;
+        public long turns;
+        public long sameQuestion;
+        public long guesses;
+        public long sameGuess;
+        public long won;
+        public long targeted;
+    }
+
+    // Games stay around for a while after their END record, since front ends may only
+    // learn the animal (TARGET) after the game is over
+    private static final int ENDED_GAMES_KEPT = 10_000;
+
+    // Calls the consumer for every game in the log, shortly after its END record is read.
+    // Games that never ended (still running, or cut off) are passed on at the end.
+    public static void forEachGame(Path directory, Consumer<Game> consumer) throws IOException {
+        Map<Long, Game> open = new LinkedHashMap<>();
+        Map<Long, Game> ended = new LinkedHashMap<Long, Game>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Game> eldest) {
+                if (size() <= ENDED_GAMES_KEPT) return false;
+                consumer.accept(eldest.getValue());
+                return true;
+            }
+        };
+        Answer[] answers = Answer.values();
+        ByteBuffer buffer = ByteBuffer.allocate(TranscriptLog.RECORD_BYTES * 4096).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32C crc = new CRC32C();
+
+        for (Path segment : TranscriptLog.segments(directory)) {
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(TranscriptLog.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                while (header.hasRemaining() && channel.read(header) >= 0) { }
+                header.flip();
+                if (header.remaining() < TranscriptLog.HEADER_BYTES || header.getInt() != TranscriptLog.MAGIC) {
+                    throw new IOException("Not a transcript segment: " + segment);
+                }
+
+                buffer.clear();
+                boolean torn = false;
+                while (!torn && channel.read(buffer) >= 0) {
+                    buffer.flip();
+                    while (buffer.remaining() >= TranscriptLog.RECORD_BYTES) {
+                        int start = buffer.position();
+                        crc.reset();
+                        crc.update(buffer.duplicate().limit(start + TranscriptLog.RECORD_BYTES - 4));
+                        byte type = buffer.get();
+                        byte answer = buffer.get();
+                        int turn = buffer.getShort() & 0xffff;
+                        int id = buffer.getInt();
+                        long game = buffer.getLong();
+                        long value = buffer.getLong();
+                        if (buffer.getInt() != (int) crc.getValue()) {
+                            torn = true;
+                            break;
+                        }
+                        apply(open, ended, answers, type, answer, turn, id, game, value);
+                    }
+                    buffer.compact();
+                }
+            }
+        }
+        for (Game game : ended.values()) consumer.accept(game);
+        for (Game game : open.values()) consumer.accept(game);
+    }
+
+    private static void apply(Map<Long, Game> open, Map<Long, Game> ended, Answer[] answers,
+                              byte type, byte answer, int turn, int id, long gameId, long value) {
+        Game game = ended.get(gameId);
+        if (game == null) game = open.computeIfAbsent(gameId, Game::new);
+        switch (type) {
+            case TranscriptLog.START:
+                game.fingerprint = value;
+                break;
+            case TranscriptLog.QUESTION:
+                game.addQuestion(id, answers[answer]);
+                break;
+            case TranscriptLog.GUESS:
+                game.addGuess(id);
+                break;
+            case TranscriptLog.MODEL:
+                game.modelHash = value;
+                break;
+            case TranscriptLog.TARGET:
+                game.target = id;
+                break;
+            case TranscriptLog.END:
+                game.ended = true;
+                game.won = answer == 1;
+                if (id >= 0) game.target = id;
+                if (open.remove(gameId) != null) ended.put(gameId, game);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Replays games played with the default likelihood model
+    public static Report replay(Path directory, CompiledKnowledgeBase kb, LikelihoodEstimator estimator) throws IOException {
+        return replay(directory, kb, estimator, List.of());
+    }
+
+    // Games played with a model that is neither the default nor in models are skipped
+    public static Report replay(Path directory, CompiledKnowledgeBase kb, LikelihoodEstimator estimator,
+                                Collection<LikelihoodModel> models) throws IOException {
+        Map<Long, LikelihoodModel> byHash = new HashMap<>();
+        byHash.put(LikelihoodModel.DEFAULT.contentHash(), LikelihoodModel.DEFAULT);
+        for (LikelihoodModel model : models) byHash.put(model.contentHash(), model);
+        Report report = new Report();
+        forEachGame(directory, game -> {
+            LikelihoodModel model = byHash.get(game.modelHash);
+            if (game.fingerprint != kb.fingerprint() || model == null || !model.appliesTo(kb)) {
+                report.skippedGames++;
+                return;
+            }
+            report.games++;
+            if (game.won) report.won++;
+
+            Solver solver = Solver.offline(kb);
+            solver.setLikelihoodModel(model);
+            for (int s = 0, q = 0; s < game.stepCount; s++) {
+                String step = solver.makeGuess();
+                if (game.steps[s] < 0) {
+                    report.guesses++;
+                    if (("ANIMAL:" + kb.entityName(~game.steps[s])).equals(step)) report.sameGuess++;
+                    continue;
+                }
+                String asked = "ATTR:" + kb.attributeName(game.attributes[q]);
+                report.turns++;
+                if (asked.equals(step)) report.sameQuestion++;
+                solver.applyAnswer(kb.attributeName(game.attributes[q]), game.answers[q]);
+                q++;
+            }
+
+            if (game.target >= 0) {
+                report.targeted++;
+                if (estimator != null) {
+                    for (int i = 0; i < game.questions; i++) {
+                        estimator.observe(game.target, game.attributes[i], game.answers[i]);
+                    }
+                }
+            }
+        });
+        return report;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: TranscriptReplay <transcript dir> [kb=animals.json] [likelihood model out]"
+                + " [likelihood model played with]");
+            System.exit(1);
+        }
+        CompiledKnowledgeBase kb = KnowledgeBase.load(args.length > 1 ? args[1] : "animals.json");
+        LikelihoodEstimator estimator = args.length > 2 ? new LikelihoodEstimator(kb) : null;
+        List<LikelihoodModel> played = args.length > 3 ? List.of(LikelihoodModel.load(args[3])) : List.of();
+
+        long start = System.nanoTime();
+        Report report = replay(Paths.get(args[0]), kb, estimator, played);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("Games replayed: " + report.games + " (" + report.skippedGames + " on other knowledge bases skipped)");
+        System.out.println("Turns: " + report.turns + String.format(" (%.0f/s)", report.turns / seconds));
+        System.out.println("Same question as logged: " + String.format("%.2f%%", report.sameQuestion * 100.0 / Math.max(1, report.turns)));
+        System.out.println("Same guess as logged: " + String.format("%.2f%%", report.sameGuess * 100.0 / Math.max(1, report.guesses)));
+        System.out.println("Games won: " + report.won + ", with known animal: " + report.targeted);
+
+        if (estimator != null) {
+            estimator.estimate(2.0, 20).save(args[2]);
+            System.out.println("Likelihood model from " + estimator.getObservations() + " answers written to " + args[2]);
+        }
+    }
+}